@@ -21,7 +21,8 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 /**
- * Represents an event triggered when a (Maven) artifact is stored in Nexus.<br>
+ * Represents an event triggered when a (Maven) artifact is stored in Nexus - or deleted, cached, or its metadata
+ * updated (see {@link WebHookEventType}).<br>
  * This event is sent to webhook listeners as JSON.
  * 
  * @author Vincent Behar
@@ -30,6 +31,9 @@ public class ArtifactStoredEvent implements Serializable {
 
     private static final long serialVersionUID = 1L;
 
+    /** what happened to the artifact */
+    private WebHookEventType type = WebHookEventType.STORED;
+
     /** timestamp of the event (number of milliseconds since January 1, 1970, 00:00:00 GMT) */
     private Long timestamp;
 
@@ -42,6 +46,23 @@ public class ArtifactStoredEvent implements Serializable {
     /** details about the uploaded artifact */
     private Gav artifact;
 
+    /** size and checksums of the stored file, from its attributes in Nexus - may be null */
+    private Item item;
+
+    /**
+     * path of the item in the repository, as stored (a timestamped snapshot, ...) - may be null. Not sent to the
+     * listeners, nor part of the identity of the event.
+     */
+    private transient String path;
+
+    public WebHookEventType getType() {
+        return type;
+    }
+
+    public void setType(WebHookEventType type) {
+        this.type = type;
+    }
+
     public Long getTimestamp() {
         return timestamp;
     }
@@ -74,6 +95,22 @@ public class ArtifactStoredEvent implements Serializable {
         this.artifact = artifact;
     }
 
+    public Item getItem() {
+        return item;
+    }
+
+    public void setItem(Item item) {
+        this.item = item;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public void setPath(String path) {
+        this.path = path;
+    }
+
     /**
      * @return a JSON representation of the event
      * @throws JSONException
@@ -83,11 +120,17 @@ public class ArtifactStoredEvent implements Serializable {
         jsonRepository.remove("class");
         JSONObject jsonArtifact = new JSONObject(artifact);
         jsonArtifact.remove("class");
-        return new JSONObject().put("timestamp", timestamp)
-                               .put("user", user)
-                               .put("repository", jsonRepository)
-                               .put("artifact", jsonArtifact)
-                               .toString();
+        JSONObject json = new JSONObject().put("type", type.getName())
+                                          .put("timestamp", timestamp)
+                                          .put("user", user)
+                                          .put("repository", jsonRepository)
+                                          .put("artifact", jsonArtifact);
+        if (item != null) {
+            JSONObject jsonItem = new JSONObject(item);
+            jsonItem.remove("class");
+            json.put("item", jsonItem);
+        }
+        return json.toString();
     }
 
     /**
@@ -109,8 +152,9 @@ public class ArtifactStoredEvent implements Serializable {
 
     @Override
     public String toString() {
-        return "ArtifactStoredEvent [artifact=" + gavToString(artifact) + ", repository=" + repository + ", timestamp="
-               + timestamp + ", user=" + user + "]";
+        return "ArtifactStoredEvent [type=" + type + ", artifact=" + gavToString(artifact) + ", repository="
+               + repository + ", item=" + item + ", path=" + path + ", timestamp=" + timestamp + ", user=" + user
+               + "]";
     }
 
     @Override
@@ -118,8 +162,10 @@ public class ArtifactStoredEvent implements Serializable {
         final int prime = 31;
         int result = 1;
         result = prime * result + ((artifact == null) ? 0 : artifact.hashCode());
+        result = prime * result + ((item == null) ? 0 : item.hashCode());
         result = prime * result + ((repository == null) ? 0 : repository.hashCode());
         result = prime * result + ((timestamp == null) ? 0 : timestamp.hashCode());
+        result = prime * result + ((type == null) ? 0 : type.hashCode());
         result = prime * result + ((user == null) ? 0 : user.hashCode());
         return result;
     }
@@ -138,6 +184,11 @@ public class ArtifactStoredEvent implements Serializable {
                 return false;
         } else if (!artifact.equals(other.artifact))
             return false;
+        if (item == null) {
+            if (other.item != null)
+                return false;
+        } else if (!item.equals(other.item))
+            return false;
         if (repository == null) {
             if (other.repository != null)
                 return false;
@@ -148,6 +199,8 @@ public class ArtifactStoredEvent implements Serializable {
                 return false;
         } else if (!timestamp.equals(other.timestamp))
             return false;
+        if (type != other.type)
+            return false;
         if (user == null) {
             if (other.user != null)
                 return false;
@@ -228,4 +281,116 @@ public class ArtifactStoredEvent implements Serializable {
 
     }
 
+    /**
+     * Size and checksums of a stored file, as known by Nexus (from the attributes of the item) : the listeners don't
+     * need to download the file again to check it. Each value may be null if Nexus doesn't know it.
+     */
+    public static class Item implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        /** size of the file, in bytes */
+        private Long size;
+
+        private String sha1;
+
+        private String md5;
+
+        /** last modification of the file (number of milliseconds since January 1, 1970, 00:00:00 GMT) */
+        private Long lastModified;
+
+        public Item(Long size, String sha1, String md5, Long lastModified) {
+            super();
+            this.size = size;
+            this.sha1 = sha1;
+            this.md5 = md5;
+            this.lastModified = lastModified;
+        }
+
+        public Item() {
+            super();
+        }
+
+        public Long getSize() {
+            return size;
+        }
+
+        public void setSize(Long size) {
+            this.size = size;
+        }
+
+        public String getSha1() {
+            return sha1;
+        }
+
+        public void setSha1(String sha1) {
+            this.sha1 = sha1;
+        }
+
+        public String getMd5() {
+            return md5;
+        }
+
+        public void setMd5(String md5) {
+            this.md5 = md5;
+        }
+
+        public Long getLastModified() {
+            return lastModified;
+        }
+
+        public void setLastModified(Long lastModified) {
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public String toString() {
+            return "Item [size=" + size + ", sha1=" + sha1 + ", md5=" + md5 + ", lastModified=" + lastModified + "]";
+        }
+
+        @Override
+        public int hashCode() {
+            final int prime = 31;
+            int result = 1;
+            result = prime * result + ((lastModified == null) ? 0 : lastModified.hashCode());
+            result = prime * result + ((md5 == null) ? 0 : md5.hashCode());
+            result = prime * result + ((sha1 == null) ? 0 : sha1.hashCode());
+            result = prime * result + ((size == null) ? 0 : size.hashCode());
+            return result;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj)
+                return true;
+            if (obj == null)
+                return false;
+            if (getClass() != obj.getClass())
+                return false;
+            Item other = (Item) obj;
+            if (lastModified == null) {
+                if (other.lastModified != null)
+                    return false;
+            } else if (!lastModified.equals(other.lastModified))
+                return false;
+            if (md5 == null) {
+                if (other.md5 != null)
+                    return false;
+            } else if (!md5.equals(other.md5))
+                return false;
+            if (sha1 == null) {
+                if (other.sha1 != null)
+                    return false;
+            } else if (!sha1.equals(other.sha1))
+                return false;
+            if (size == null) {
+                if (other.size != null)
+                    return false;
+            } else if (!size.equals(other.size))
+                return false;
+            return true;
+        }
+
+    }
+
 }
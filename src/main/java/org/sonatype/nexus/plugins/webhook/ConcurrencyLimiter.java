@@ -0,0 +1,229 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+/**
+ * Adaptive limit of the number of concurrent (in-flight) HTTP requests.<br>
+ * The limit follows an AIMD (additive increase, multiplicative decrease) algorithm, driven by the observed round-trip
+ * time and errors :
+ * <ul>
+ * <li>each successful request whose round-trip time stays close to the lowest observed one increases the limit by
+ * <code>1 / limit</code> (so roughly +1 per "window" of requests)</li>
+ * <li>each failed request (or a request whose round-trip time exceeds {@link #RTT_TOLERANCE} times the lowest
+ * observed one, meaning that the receiver is queuing) decreases the limit by a multiplicative factor</li>
+ * </ul>
+ * A limiter shared by several endpoints can't compare their round-trip times : it is only driven by the congestion
+ * detected by the limiter of each endpoint (see {@link #release(boolean)}).
+ *
+ * @author Vincent Behar
+ */
+public class ConcurrencyLimiter {
+
+    /** a request "slower" than this factor times the lowest round-trip time is a sign of congestion */
+    private static final transient double RTT_TOLERANCE = 2.0;
+
+    /** multiplicative decrease applied on congestion (slow request) */
+    private static final transient double CONGESTION_BACKOFF = 0.9;
+
+    /** multiplicative decrease applied on error (failed request) */
+    private static final transient double ERROR_BACKOFF = 0.75;
+
+    /** the lowest round-trip time is reset after this number of samples, to follow receivers changes */
+    private static final transient int RTT_PROBE_INTERVAL = 1000;
+
+    /** a deviation from the lowest round-trip time below this (in nanoseconds) is just noise, not queuing */
+    private static final transient long RTT_NOISE = 10000000L;
+
+    private final int minLimit;
+
+    private int maxLimit;
+
+    private double limit;
+
+    private int inFlight;
+
+    private long minRtt = Long.MAX_VALUE;
+
+    private long lastRtt;
+
+    private int samples;
+
+    /**
+     * @param initialLimit the limit to start with
+     * @param minLimit the lowest limit (at least 1)
+     * @param maxLimit the highest limit
+     */
+    public ConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit) {
+        super();
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = Math.min(this.maxLimit, Math.max(this.minLimit, initialLimit));
+    }
+
+    /**
+     * Wait until a new request is allowed, and count it as "in-flight". Each call must be followed by a call to
+     * {@link #release(long, boolean)} (or {@link #release()}).
+     *
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while (inFlight >= getLimit()) {
+            wait();
+        }
+        inFlight++;
+    }
+
+    /**
+     * Count a new request as "in-flight" if it is allowed now, without waiting. Each successful call must be followed
+     * by a call to {@link #release(long, boolean)} (or {@link #release()}).
+     *
+     * @return true if the request is allowed, false if the limit is reached
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= getLimit()) {
+            return false;
+        }
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Release a request previously allowed by {@link #acquire()}, and adapt the limit based on its result.
+     *
+     * @param rtt round-trip time of the request, in nanoseconds
+     * @param success false if the request failed (I/O error, server error, ...)
+     * @return true if the round-trip time of the request is a sign of congestion
+     */
+    public synchronized boolean release(long rtt, boolean success) {
+        boolean congested = sample(rtt, success);
+        release();
+        return congested;
+    }
+
+    /**
+     * Adapt the limit based on the result of a request, without releasing it : for a caller that sends several
+     * requests one after the other in the same slot.
+     *
+     * @param rtt round-trip time of the request, in nanoseconds
+     * @param success false if the request failed (I/O error, server error, ...)
+     * @return true if the round-trip time of the request is a sign of congestion
+     */
+    public synchronized boolean sample(long rtt, boolean success) {
+        lastRtt = rtt;
+        if (++samples >= RTT_PROBE_INTERVAL) {
+            samples = 0;
+            minRtt = Long.MAX_VALUE;
+        }
+
+        boolean congested = false;
+        if (success) {
+            minRtt = Math.min(minRtt, rtt);
+            congested = rtt > minRtt * RTT_TOLERANCE && rtt - minRtt > RTT_NOISE;
+        }
+        adapt(success, congested);
+        return congested;
+    }
+
+    /**
+     * Release a request previously allowed by {@link #acquire()}, without adapting the limit : the request has not
+     * been sent (interrupted, ...), or its results have already been sampled (see {@link #sample(long, boolean)}).
+     */
+    public synchronized void release() {
+        inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Release a request previously allowed by {@link #acquire()}, and adapt the limit based on the congestion
+     * detected by the limiter of its endpoint - for a limiter shared by several endpoints.<br>
+     * The failures are not taken into account : they are specific to an endpoint, and already handled by its limiter.
+     *
+     * @param congested result of {@link #release(long, boolean)} on the limiter of the endpoint
+     */
+    public synchronized void release(boolean congested) {
+        adapt(true, congested);
+        release();
+    }
+
+    /**
+     * Adapt the limit based on the result of a request, which is still counted as "in-flight".
+     */
+    private void adapt(boolean success, boolean congested) {
+        boolean saturated = inFlight >= getLimit();
+
+        if (!success) {
+            limit = Math.max(minLimit, limit * ERROR_BACKOFF);
+        } else if (congested) {
+            limit = Math.max(minLimit, limit * CONGESTION_BACKOFF);
+        } else if (saturated || inFlight - 1 >= getLimit() / 2) {
+            // only grow if the current limit is actually used (not counting this request)
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        }
+    }
+
+    /**
+     * Change the highest limit (the current limit is lowered if needed, the in-flight requests are not interrupted).
+     *
+     * @param maxLimit the highest limit
+     */
+    public synchronized void setMaxLimit(int maxLimit) {
+        this.maxLimit = Math.max(minLimit, maxLimit);
+        limit = Math.min(limit, this.maxLimit);
+        notifyAll();
+    }
+
+    /**
+     * @return the highest limit
+     */
+    public synchronized int getMaxLimit() {
+        return maxLimit;
+    }
+
+    /**
+     * @return the current limit of concurrent requests
+     */
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    /**
+     * @return the current number of in-flight requests
+     */
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    /**
+     * @return the lowest observed round-trip time (in nanoseconds), or -1 if none has been observed yet
+     */
+    public synchronized long getMinRtt() {
+        return minRtt == Long.MAX_VALUE ? -1 : minRtt;
+    }
+
+    /**
+     * @return the last observed round-trip time (in nanoseconds)
+     */
+    public synchronized long getLastRtt() {
+        return lastRtt;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "ConcurrencyLimiter [limit=" + getLimit() + ", inFlight=" + inFlight + ", minRtt=" + getMinRtt()
+               + ", lastRtt=" + lastRtt + "]";
+    }
+
+}
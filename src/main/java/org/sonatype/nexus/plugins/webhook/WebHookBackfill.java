@@ -0,0 +1,128 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.restlet.Context;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.Variant;
+import org.sonatype.nexus.plugins.webhook.WebHookBackfiller.Job;
+import org.sonatype.nexus.proxy.NoSuchRepositoryException;
+import org.sonatype.plexus.rest.resource.AbstractPlexusResource;
+import org.sonatype.plexus.rest.resource.PathProtectionDescriptor;
+import org.sonatype.plexus.rest.resource.PlexusResource;
+
+/**
+ * HTTP resource for replaying notifications of the artifacts already stored in a repository (see
+ * {@link WebHookBackfiller}).<br>
+ * Send HTTP POST requests to "NEXUS_HOST/service/local/webhooks/backfill" with the following parameters :<br>
+ * <ul>
+ * <li><strong>r</strong> : ID of the repository</li>
+ * <li><strong>url</strong> : name of a declared endpoint, or url of a webhook listener of the configuration (the
+ * artifacts are never sent to another url)</li>
+ * <li><strong>rate</strong> : maximum number of notifications per second (optional)</li>
+ * </ul>
+ * <br>
+ * Example : <code>curl -X POST "NEXUS_HOST/service/local/webhooks/backfill?r=releases&url=handler&rate=20"</code>
+ * <br>
+ * An HTTP GET request lists the backfill jobs. An HTTP DELETE request with the "r" and "url" parameters cancels a
+ * job.<br>
+ * As the whole content of a repository is sent, the resource requires the administration privileges of Nexus.<br>
+ * The HTTP response will be "text/plain".
+ *
+ * @author Vincent Behar
+ */
+@Component(role = PlexusResource.class, hint = "webHookBackfill")
+public class WebHookBackfill extends AbstractPlexusResource {
+
+    @Requirement
+    private WebHookBackfiller webHookBackfiller;
+
+    @Override
+    public String getResourceUri() {
+        return "/webhooks/backfill";
+    }
+
+    @Override
+    public Object get(Context context, Request request, Response response, Variant variant) throws ResourceException {
+        StringBuilder jobs = new StringBuilder();
+        for (Job job : webHookBackfiller.getJobs()) {
+            jobs.append(job).append("\n");
+        }
+        return jobs.toString();
+    }
+
+    @Override
+    public Object post(Context context, Request request, Response response, Object payload) throws ResourceException {
+        Form form = request.getResourceRef().getQueryAsForm();
+        String repositoryId = form.getFirstValue("r");
+        String url = form.getFirstValue("url");
+        if (StringUtils.isBlank(repositoryId) || StringUtils.isBlank(url)) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "The r and url parameters are required");
+        }
+
+        int rate = WebHookBackfiller.DEFAULT_RATE;
+        try {
+            rate = Integer.parseInt(form.getFirstValue("rate", Integer.toString(rate)));
+        } catch (NumberFormatException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid rate : " + e.getMessage(), e);
+        }
+
+        try {
+            return "Backfill started : " + webHookBackfiller.start(repositoryId, url, rate);
+        } catch (NoSuchRepositoryException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, e.getMessage(), e);
+        } catch (IllegalStateException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_CONFLICT, e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void delete(Context context, Request request, Response response) throws ResourceException {
+        Form form = request.getResourceRef().getQueryAsForm();
+        if (webHookBackfiller.cancel(form.getFirstValue("r"), form.getFirstValue("url")) == null) {
+            throw new ResourceException(Status.CLIENT_ERROR_NOT_FOUND, "No such backfill job");
+        }
+    }
+
+    @Override
+    public PathProtectionDescriptor getResourceProtection() {
+        // the whole content of a repository is sent : administrators only
+        return new PathProtectionDescriptor(getResourceUri(), "authcBasic,perms[nexus:settings]");
+    }
+
+    @Override
+    public List<Variant> getVariants() {
+        return Arrays.asList(new Variant(MediaType.TEXT_PLAIN));
+    }
+
+    @Override
+    public Object getPayloadInstance() {
+        return null;
+    }
+
+}
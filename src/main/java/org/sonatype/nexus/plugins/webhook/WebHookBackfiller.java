@@ -0,0 +1,696 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Disposable;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Initializable;
+import org.sonatype.nexus.proxy.IllegalOperationException;
+import org.sonatype.nexus.proxy.ItemNotFoundException;
+import org.sonatype.nexus.proxy.NoSuchRepositoryException;
+import org.sonatype.nexus.proxy.ResourceStoreRequest;
+import org.sonatype.nexus.proxy.StorageException;
+import org.sonatype.nexus.proxy.item.StorageCollectionItem;
+import org.sonatype.nexus.proxy.item.StorageItem;
+import org.sonatype.nexus.proxy.maven.MavenRepository;
+import org.sonatype.nexus.proxy.registry.RepositoryRegistry;
+import org.sonatype.nexus.proxy.repository.Repository;
+
+/**
+ * Replay notifications for the artifacts already stored in a repository, to a single webhook url - use it when a new
+ * listener is registered.<br>
+ * The repository's storage is walked depth-first, with the children of each directory sorted by name : only the
+ * listings of the current path are held in memory, whatever the size of the repository. The notifications are
+ * throttled, and the path of the last artifact whose notification is completed (with all the ones before it) is
+ * regularly saved in a checkpoint file (in sonatype-work/nexus/webhooks/backfill/), so that an interrupted job resumes
+ * where it stopped (see {@link #resumeJobs()}), without skipping the notifications that were still queued.
+ *
+ * @author Vincent Behar
+ */
+@Component(role = WebHookBackfiller.class)
+public class WebHookBackfiller implements Initializable, Disposable {
+
+    /** name of the checkpoints directory, in the plugin's working directory */
+    public static final transient String CHECKPOINTS_DIRNAME = "backfill";
+
+    /** default number of notifications per second */
+    public static final transient int DEFAULT_RATE = 10;
+
+    /** the checkpoint is saved every N notifications */
+    private static final transient int CHECKPOINT_INTERVAL = 100;
+
+    private static final transient String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    /** delay (in milliseconds) between two checks of the pending notifications, at the end of a job */
+    private static final transient long COMPLETION_CHECK_INTERVAL = 1000;
+
+    /** how long (in milliseconds) to wait for the running job, once interrupted */
+    private static final transient long TERMINATION_TIMEOUT = 2000;
+
+    /** the walk order : children sorted by name */
+    private static final transient Comparator<StorageItem> ITEM_NAME_COMPARATOR = new Comparator<StorageItem>() {
+
+        public int compare(StorageItem item1, StorageItem item2) {
+            return item1.getName().compareTo(item2.getName());
+        }
+    };
+
+    @Requirement
+    private WebHookPlugin webHookPlugin;
+
+    @Requirement
+    private WebHookNotifier webHookNotifier;
+
+    @Requirement
+    private RepositoryRegistry repositoryRegistry;
+
+    @Requirement
+    private Logger logger;
+
+    /** jobs are run one at a time */
+    private final ExecutorService executorService;
+
+    /** job ID / job */
+    private final ConcurrentMap<String, Job> jobs;
+
+    /** the job being run, told about the completed deliveries - null if none */
+    private volatile Job runningJob;
+
+    public WebHookBackfiller() {
+        super();
+        executorService = Executors.newSingleThreadExecutor();
+        jobs = new ConcurrentHashMap<String, Job>();
+    }
+
+    /**
+     * Follow the completion of the deliveries, to save the checkpoints of the jobs.
+     */
+    public void initialize() {
+        webHookNotifier.addDeliveryListener(new WebHookNotifier.DeliveryListener() {
+
+            public void completed(WebHookTrace trace) {
+                Job job = runningJob;
+                if (job != null && job.url.equals(trace.getUrl())) {
+                    job.completed(trace.getId());
+                }
+            }
+        });
+    }
+
+    /**
+     * Stop the jobs, when Nexus stops (before the {@link WebHookNotifier}) : the running job is interrupted, and its
+     * checkpoint saved, so that it is resumed at the next startup.
+     */
+    public void stop() {
+        executorService.shutdownNow();
+        try {
+            if (!executorService.awaitTermination(TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.warn("The WebHook backfill is still running after the shutdown");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop the jobs when the component is disposed (the plugin is unloaded), if Nexus didn't stop them before.
+     */
+    public void dispose() {
+        stop();
+    }
+
+    /**
+     * Start (or resume, if a checkpoint exists) a backfill job.
+     *
+     * @param repositoryId ID of the (Maven) repository to walk
+     * @param endpoint name of a declared endpoint, or url of a webhook listener of the configuration : the artifacts
+     *            are never sent to another url
+     * @param rate maximum number of notifications per second
+     * @return the job - won't be null
+     * @throws NoSuchRepositoryException if the repository does not exist
+     * @throws IllegalArgumentException if the repository is not a Maven repository, or the endpoint is not configured
+     * @throws IllegalStateException if the same job is already running, or if the backfills are stopped
+     */
+    public Job start(String repositoryId, String endpoint, int rate) throws NoSuchRepositoryException,
+            IllegalArgumentException, IllegalStateException {
+        if (StringUtils.isBlank(endpoint)) {
+            throw new IllegalArgumentException("A webhook endpoint is required");
+        }
+        String url = webHookPlugin.getRoutes().getConfiguredUrl(endpoint);
+        if (url == null) {
+            throw new IllegalArgumentException(endpoint + " is not a configured webhook endpoint");
+        }
+        Repository repository = repositoryRegistry.getRepository(repositoryId);
+        if (!(repository instanceof MavenRepository)) {
+            throw new IllegalArgumentException("Repository " + repositoryId + " is not a Maven repository");
+        }
+
+        final Job job = new Job((MavenRepository) repository, url, Math.max(1, rate));
+        Job existingJob = jobs.putIfAbsent(job.getId(), job);
+        while (existingJob != null) {
+            if (!existingJob.isDone()) {
+                throw new IllegalStateException("A backfill of " + repositoryId + " to " + url + " is already "
+                                                + existingJob.getState());
+            }
+            // the done job is only replaced if no concurrent start replaced it first
+            existingJob = jobs.replace(job.getId(), existingJob, job) ? null : jobs.putIfAbsent(job.getId(), job);
+        }
+        // read once the job is ours : the checkpoint of the done job has been written before its state
+        readCheckpoint(job);
+
+        try {
+            executorService.execute(new Runnable() {
+
+                public void run() {
+                    runJob(job);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.getId(), job);
+            throw new IllegalStateException("The backfills are stopped");
+        }
+        logger.info("Backfill of " + repositoryId + " to " + url + " started" + (job.lastPath == null ? ""
+                : " (resuming after " + job.lastPath + ")"));
+        return job;
+    }
+
+    /**
+     * Cancel a running (or queued) backfill job. Its checkpoint is kept, so that it can be resumed later.
+     *
+     * @param repositoryId ID of the repository
+     * @param url of the webhook listener, or name of its endpoint
+     * @return the cancelled job, or null if there is no such job
+     */
+    public Job cancel(String repositoryId, String url) {
+        // by the name of its endpoint, or by its url (even if it is no longer configured)
+        String configuredUrl = webHookPlugin.getRoutes().getConfiguredUrl(url);
+        Job job = jobs.get(Job.getId(repositoryId, configuredUrl != null ? configuredUrl : url));
+        if (job != null) {
+            job.cancelled = true;
+        }
+        return job;
+    }
+
+    /**
+     * Resume the jobs that were interrupted (by a Nexus restart) before they finished - except the cancelled ones. In
+     * case of error, we won't throw exceptions but log them.
+     */
+    public void resumeJobs() {
+        File[] checkpoints = getCheckpointsDirectory().listFiles();
+        if (checkpoints == null) {
+            return;
+        }
+        for (File checkpoint : checkpoints) {
+            if (!checkpoint.getName().endsWith(CHECKPOINT_SUFFIX)) {
+                continue;
+            }
+            Properties properties = loadCheckpoint(checkpoint);
+            if (properties == null || Boolean.parseBoolean(properties.getProperty("finished"))
+                || Boolean.parseBoolean(properties.getProperty("cancelled"))) {
+                continue;
+            }
+            String repositoryId = properties.getProperty("repository");
+            try {
+                start(repositoryId,
+                      properties.getProperty("url"),
+                      Integer.parseInt(properties.getProperty("rate", Integer.toString(DEFAULT_RATE))));
+            } catch (NoSuchRepositoryException e) {
+                logger.warn("Can't resume the backfill " + checkpoint.getName() + ", repository " + repositoryId
+                            + " does not exist anymore");
+            } catch (IllegalArgumentException e) {
+                logger.warn("Can't resume the backfill " + checkpoint.getName() + " : " + e.getMessage());
+            } catch (IllegalStateException e) {
+                logger.debug("Backfill " + checkpoint.getName() + " already resumed");
+            }
+        }
+    }
+
+    /**
+     * @return the known jobs (running, queued, or done) - won't be null
+     */
+    public Collection<Job> getJobs() {
+        return Collections.unmodifiableCollection(jobs.values());
+    }
+
+    private void runJob(Job job) {
+        if (job.cancelled) {
+            job.state = State.CANCELLED;
+            return;
+        }
+        job.state = State.RUNNING;
+        job.startTime = System.nanoTime();
+        job.resumeCount = job.count;
+        runningJob = job;
+        State state = null;
+        try {
+            state = walk(job, RepositoryItemPath.ROOT) && awaitCompletion(job) ? State.FINISHED : State.CANCELLED;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            state = State.CANCELLED;
+        } catch (RuntimeException e) {
+            logger.error("Backfill of " + job.repository.getId() + " to " + job.url + " failed", e);
+            state = State.FAILED;
+        } finally {
+            runningJob = null;
+        }
+        // the checkpoint is written before the job is done, so that it can be read by the next start of the job
+        writeCheckpoint(job, state == State.FINISHED);
+        job.state = state;
+        logger.info("Backfill of " + job.repository.getId() + " to " + job.url + " " + job.state + " after "
+                    + job.count + " notifications");
+    }
+
+    /**
+     * Wait until the notifications of the given job are completed (delivered or not) : the job is not finished while
+     * some of them are still queued.
+     * 
+     * @return false if the job has been cancelled
+     */
+    private boolean awaitCompletion(Job job) throws InterruptedException {
+        synchronized (job) {
+            while (!job.notifications.isEmpty()) {
+                if (job.cancelled) {
+                    return false;
+                }
+                job.wait(COMPLETION_CHECK_INTERVAL);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Walk (depth-first) the given directory of the job's repository, and notify the artifacts that are after the job's
+     * checkpoint.
+     *
+     * @return false if the job has been cancelled
+     */
+    private boolean walk(Job job, RepositoryItemPath directory) throws InterruptedException {
+        List<StorageItem> items = null;
+        try {
+            // local only : don't fetch anything from the remote of a proxy repository
+            ResourceStoreRequest request = new ResourceStoreRequest(directory.getPath(), true);
+            items = new ArrayList<StorageItem>(job.repository.list(false, request));
+        } catch (ItemNotFoundException e) {
+            // deleted since the listing of its parent
+            return true;
+        } catch (IllegalOperationException e) {
+            logger.warn("Failed to list " + directory.getPath() + " in " + job.repository.getId(), e);
+            return true;
+        } catch (StorageException e) {
+            logger.warn("Failed to list " + directory.getPath() + " in " + job.repository.getId(), e);
+            return true;
+        }
+        Collections.sort(items, ITEM_NAME_COMPARATOR);
+
+        for (StorageItem item : items) {
+            if (job.cancelled) {
+                return false;
+            }
+            if (Thread.interrupted()) {
+                // stopped with Nexus
+                throw new InterruptedException();
+            }
+            if (item.getName().startsWith(".")) {
+                // nexus internals (.nexus, .index, .meta, ...)
+                continue;
+            }
+
+            RepositoryItemPath path = directory.child(item.getName());
+            int position = job.checkpoint == null ? 1 : path.compareTo(job.checkpoint);
+            if (item instanceof StorageCollectionItem) {
+                // a directory before the checkpoint is entirely done, unless it contains the checkpoint
+                if ((position > 0 || path.isAncestorOf(job.checkpoint)) && !walk(job, path)) {
+                    return false;
+                }
+            } else if (position > 0) {
+                notify(job, path.getPath(), item);
+            }
+        }
+        return true;
+    }
+
+    private void notify(Job job, String path, StorageItem item) throws InterruptedException {
+        ArtifactStoredEvent event = WebHookEventInspector.createEvent(job.repository,
+                                                                      path,
+                                                                      item.getModified(),
+                                                                      "backfill");
+        if (event == null) {
+            return;
+        }
+        if (webHookPlugin.getRoutes().isItemIncluded()) {
+            // each item is only visited once : no need to cache it
+            event.setItem(WebHookItemCache.toItem(item));
+        }
+
+        // throttle : the N-th notification (since the job started) is not sent before N / rate seconds
+        long delay = job.startTime + (job.count - job.resumeCount) * 1000000000L / job.rate - System.nanoTime();
+        if (delay > 0) {
+            Thread.sleep(delay / 1000000, (int) (delay % 1000000));
+        }
+
+        job.notified(path, webHookNotifier.notify(event, Collections.singleton(job.url)));
+        if (job.count % CHECKPOINT_INTERVAL == 0) {
+            writeCheckpoint(job, false);
+        }
+    }
+
+    private File getCheckpointsDirectory() {
+        return new File(webHookPlugin.getDataDirectory(), CHECKPOINTS_DIRNAME);
+    }
+
+    private File getCheckpointFile(Job job) {
+        return new File(getCheckpointsDirectory(), job.repository.getId() + "-" + sha1(job.url) + CHECKPOINT_SUFFIX);
+    }
+
+    private void readCheckpoint(Job job) {
+        File file = getCheckpointFile(job);
+        if (!file.isFile()) {
+            return;
+        }
+        Properties properties = loadCheckpoint(file);
+        if (properties != null && !Boolean.parseBoolean(properties.getProperty("finished"))) {
+            job.lastPath = properties.getProperty("lastPath");
+            job.completedPath = job.lastPath;
+            job.checkpoint = job.lastPath == null ? null : RepositoryItemPath.parse(job.lastPath);
+            job.count = Long.parseLong(properties.getProperty("count", "0"));
+            job.completedCount = job.count;
+        }
+    }
+
+    private Properties loadCheckpoint(File file) {
+        InputStream stream = null;
+        try {
+            stream = FileUtils.openInputStream(file);
+            Properties properties = new Properties();
+            properties.load(stream);
+            return properties;
+        } catch (IOException e) {
+            logger.warn("Failed to read the backfill checkpoint " + file.getAbsolutePath(), e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Save the checkpoint of the given job : the path of its last completed notification - not of the last queued
+     * one, the notifications still queued would be lost by a crash.
+     * 
+     * @param job to save
+     * @param finished true if all the notifications of the job are completed
+     */
+    private void writeCheckpoint(Job job, boolean finished) {
+        Properties properties = new Properties();
+        properties.setProperty("repository", job.repository.getId());
+        properties.setProperty("url", job.url);
+        properties.setProperty("rate", Integer.toString(job.rate));
+        properties.setProperty("finished", Boolean.toString(finished));
+        properties.setProperty("cancelled", Boolean.toString(job.cancelled));
+        synchronized (job) {
+            properties.setProperty("count", Long.toString(job.completedCount));
+            if (job.completedPath != null) {
+                properties.setProperty("lastPath", job.completedPath);
+            }
+        }
+
+        File file = getCheckpointFile(job);
+        OutputStream stream = null;
+        try {
+            stream = FileUtils.openOutputStream(file);
+            properties.store(stream, "Nexus WebHook Plugin - backfill checkpoint");
+        } catch (IOException e) {
+            logger.warn("Failed to write the backfill checkpoint " + file.getAbsolutePath(), e);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    private static String sha1(String value) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(value.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder();
+            for (int i = 0; i < 8; i++) {
+                hex.append(Integer.toHexString((digest[i] & 0xff) | 0x100).substring(1));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static enum State {
+        QUEUED, RUNNING, FINISHED, CANCELLED, FAILED
+    }
+
+    /**
+     * A backfill of a repository to a webhook url.
+     */
+    public static class Job {
+
+        private final MavenRepository repository;
+
+        private final String url;
+
+        private final int rate;
+
+        private volatile State state = State.QUEUED;
+
+        private volatile boolean cancelled;
+
+        /** path of the last notified artifact */
+        private volatile String lastPath;
+
+        /** path of the last artifact notified before the job (re)started, or null */
+        private RepositoryItemPath checkpoint;
+
+        private volatile long count;
+
+        /** path of the last artifact whose notification is completed, with all the ones before it : the checkpoint */
+        private String completedPath;
+
+        private long completedCount;
+
+        /** the notifications not completed yet (or following one that is not), in order */
+        private final LinkedList<Notification> notifications = new LinkedList<Notification>();
+
+        /** delivery ID / notification, for the deliveries not completed yet */
+        private final Map<String, Notification> pendingDeliveries = new HashMap<String, Notification>();
+
+        /** IDs of the deliveries to the url completed since the last notification : maybe before it was tracked */
+        private final Set<String> completedIds = new HashSet<String>();
+
+        private long resumeCount;
+
+        private long startTime;
+
+        private Job(MavenRepository repository, String url, int rate) {
+            super();
+            this.repository = repository;
+            this.url = url;
+            this.rate = rate;
+        }
+
+        private static String getId(String repositoryId, String url) {
+            return repositoryId + " " + url;
+        }
+
+        public String getId() {
+            return getId(repository.getId(), url);
+        }
+
+        public String getRepositoryId() {
+            return repository.getId();
+        }
+
+        public String getUrl() {
+            return url;
+        }
+
+        public int getRate() {
+            return rate;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        public boolean isDone() {
+            return state != State.QUEUED && state != State.RUNNING;
+        }
+
+        public String getLastPath() {
+            return lastPath;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @param path of the notified artifact
+         * @param deliveryIds of the queued deliveries of the notification
+         */
+        private synchronized void notified(String path, List<String> deliveryIds) {
+            Notification notification = new Notification(path);
+            for (String deliveryId : deliveryIds) {
+                if (!completedIds.contains(deliveryId)) {
+                    notification.pendingCount++;
+                    pendingDeliveries.put(deliveryId, notification);
+                }
+            }
+            completedIds.clear();
+            notifications.add(notification);
+            lastPath = path;
+            count++;
+            advance();
+        }
+
+        /**
+         * @param deliveryId of a completed delivery to the url of the job
+         */
+        private synchronized void completed(String deliveryId) {
+            Notification notification = pendingDeliveries.remove(deliveryId);
+            if (notification == null) {
+                completedIds.add(deliveryId);
+            } else if (--notification.pendingCount == 0) {
+                advance();
+            }
+        }
+
+        /**
+         * Move the checkpoint after the completed notifications that are not preceded by a pending one.
+         */
+        private void advance() {
+            while (!notifications.isEmpty() && notifications.getFirst().pendingCount == 0) {
+                completedPath = notifications.removeFirst().path;
+                completedCount++;
+            }
+            if (notifications.isEmpty()) {
+                notifyAll();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Job [repository=" + repository.getId() + ", url=" + url + ", rate=" + rate + ", state=" + state
+                   + ", count=" + count + ", lastPath=" + lastPath + "]";
+        }
+
+    }
+
+    /**
+     * A notification of a job, completed once its deliveries are.
+     */
+    private static class Notification {
+
+        private final String path;
+
+        private int pendingCount;
+
+        private Notification(String path) {
+            super();
+            this.path = path;
+        }
+
+    }
+
+    /**
+     * A path in a repository, split in segments, ordered like the depth-first walk of the repository (children sorted
+     * by name).
+     */
+    static class RepositoryItemPath implements Comparable<RepositoryItemPath> {
+
+        static final transient RepositoryItemPath ROOT = new RepositoryItemPath(new String[0]);
+
+        private final String[] segments;
+
+        private RepositoryItemPath(String[] segments) {
+            super();
+            this.segments = segments;
+        }
+
+        static RepositoryItemPath parse(String path) {
+            return new RepositoryItemPath(StringUtils.split(path, "/"));
+        }
+
+        RepositoryItemPath child(String name) {
+            String[] childSegments = new String[segments.length + 1];
+            System.arraycopy(segments, 0, childSegments, 0, segments.length);
+            childSegments[segments.length] = name;
+            return new RepositoryItemPath(childSegments);
+        }
+
+        String getPath() {
+            return segments.length == 0 ? "/" : "/" + StringUtils.join(segments, "/");
+        }
+
+        boolean isAncestorOf(RepositoryItemPath other) {
+            if (other == null || other.segments.length <= segments.length) {
+                return false;
+            }
+            for (int i = 0; i < segments.length; i++) {
+                if (!segments[i].equals(other.segments[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int compareTo(RepositoryItemPath other) {
+            int length = Math.min(segments.length, other.segments.length);
+            for (int i = 0; i < length; i++) {
+                int comparison = segments[i].compareTo(other.segments[i]);
+                if (comparison != 0) {
+                    return comparison;
+                }
+            }
+            return segments.length - other.segments.length;
+        }
+
+    }
+
+}
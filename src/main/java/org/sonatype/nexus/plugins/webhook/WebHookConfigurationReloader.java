@@ -45,6 +45,9 @@ public class WebHookConfigurationReloader extends AbstractPlexusResource {
     @Requirement
     private WebHookPlugin webHookPlugin;
 
+    @Requirement
+    private WebHookNotifier webHookNotifier;
+
     @Override
     public String getResourceUri() {
         return "/webhooks/configuration/reload";
@@ -54,6 +57,7 @@ public class WebHookConfigurationReloader extends AbstractPlexusResource {
     public Object get(Context context, Request request, Response response, Variant variant) throws ResourceException {
         try {
             webHookPlugin.reloadConfiguration();
+            webHookNotifier.configurationReloaded();
             return "Nexus WebHook Plugin configuration has been successfully reloaded !";
         } catch (IllegalArgumentException e) {
             throw new ResourceException(Status.SERVER_ERROR_INTERNAL,
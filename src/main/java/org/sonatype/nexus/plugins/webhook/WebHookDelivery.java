@@ -0,0 +1,376 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.index.artifact.Gav;
+
+/**
+ * A pending HTTP POST request to a webhook listener : the url, and the payload - either already rendered, or rendered
+ * when it is sent, from the compact {@link WebHookEventRecord} of its event and the {@link WebHookTemplate} of its
+ * url (so that a backlog of deliveries only keeps a small record per event, shared by all its deliveries).<br>
+ * Deliveries are plain data (no reference to the notifier), so that they can be serialized (see {@link #toBytes()},
+ * with the rendered payload) when they don't fit in memory.<br>
+ * Each delivery has a unique ID, sent to the listener as the {@link #ID_HEADER} header, and used to correlate the
+ * {@link WebHookTrace traces} : a random ID of the node (drawn once) and a sequence number, formatted as a UUID.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookDelivery {
+
+    /** estimated heap size of a delivery, without its (non-shared) strings and payload */
+    private static final transient int OVERHEAD = 96;
+
+    /** HTTP header carrying the {@link #getId() ID} of the delivery */
+    public static final transient String ID_HEADER = "X-Nexus-WebHook-Delivery";
+
+    /** identifies this node (until it restarts) in the IDs of its deliveries */
+    private static final transient long NODE_ID = UUID.randomUUID().getMostSignificantBits();
+
+    /** sequence number of the last delivery created by this node */
+    private static final transient AtomicLong SEQUENCE = new AtomicLong();
+
+    /** the ID is a UUID, kept as 2 longs : the node ID, and a sequence number */
+    private final long idHigh;
+
+    private final long idLow;
+
+    /** the ID formatted as a UUID, on first use */
+    private volatile String id;
+
+    /** ID of the repository of the notified artifact - may be null */
+    private final String repository;
+
+    /** "groupId:artifactId:version[:classifier]" of the notified artifact - null if unknown or in the record */
+    private final String gav;
+
+    /** when the event occurred */
+    private final long eventTimestamp;
+
+    /** when the delivery has been queued */
+    private final long queuedTimestamp;
+
+    private final String url;
+
+    private final String contentType;
+
+    /** encoded in UTF-8 - null if rendered when sent */
+    private final byte[] payload;
+
+    /** the event to render, if the payload is rendered when sent */
+    private final WebHookEventRecord record;
+
+    /** the template to render the record with, if the payload is rendered when sent */
+    private final WebHookTemplate template;
+
+    /** the claimed outbox file, if the delivery comes from the {@link WebHookOutbox} - may be null */
+    private final String claim;
+
+    /** deliveries with the same compaction key supersede each other in the {@link WebHookQueue} - may be null */
+    private final String compactionKey;
+
+    /** path of the stored file to attach (see {@link WebHookEndpoint#isAttachContent()}) - may be null */
+    private final String contentPath;
+
+    /**
+     * Create a new delivery, with a new ID, queued now.
+     *
+     * @param gav of the notified artifact - may be null
+     * @param eventTimestamp when the event occurred
+     * @param url of the webhook listener
+     * @param contentType of the payload
+     * @param payload content to POST, encoded in UTF-8
+     */
+    public WebHookDelivery(String gav, long eventTimestamp, String url, String contentType, byte[] payload) {
+        this(null, gav, eventTimestamp, url, contentType, payload);
+    }
+
+    /**
+     * Create a new delivery, with a new ID, queued now.
+     *
+     * @param repository ID of the repository of the notified artifact - may be null
+     * @param gav of the notified artifact - may be null
+     * @param eventTimestamp when the event occurred
+     * @param url of the webhook listener
+     * @param contentType of the payload
+     * @param payload content to POST, encoded in UTF-8
+     */
+    public WebHookDelivery(String repository, String gav, long eventTimestamp, String url, String contentType,
+                           byte[] payload) {
+        this(NODE_ID, SEQUENCE.incrementAndGet(), repository, gav, eventTimestamp, System.currentTimeMillis(), url,
+             contentType, payload, null, null, null, null, null);
+    }
+
+    /**
+     * Create a new delivery, with a new ID, queued now, whose payload is rendered when it is sent.
+     *
+     * @param record of the notified event
+     * @param eventTimestamp when the event occurred
+     * @param url of the webhook listener
+     * @param template to render the payload with
+     */
+    public WebHookDelivery(WebHookEventRecord record, long eventTimestamp, String url, WebHookTemplate template) {
+        this(NODE_ID, SEQUENCE.incrementAndGet(), record.getRepositoryId(), null, eventTimestamp,
+             System.currentTimeMillis(), url, template.getContentType(), null, record, template, null, null, null);
+    }
+
+    private WebHookDelivery(long idHigh, long idLow, String repository, String gav, long eventTimestamp,
+                            long queuedTimestamp, String url, String contentType, byte[] payload,
+                            WebHookEventRecord record, WebHookTemplate template, String claim, String compactionKey,
+                            String contentPath) {
+        super();
+        this.idHigh = idHigh;
+        this.idLow = idLow;
+        this.repository = repository;
+        this.gav = gav;
+        this.eventTimestamp = eventTimestamp;
+        this.queuedTimestamp = queuedTimestamp;
+        this.url = url;
+        this.contentType = contentType;
+        this.payload = payload;
+        this.record = record;
+        this.template = template;
+        this.claim = claim;
+        this.compactionKey = compactionKey;
+        this.contentPath = contentPath;
+    }
+
+    /**
+     * @param newClaim the claimed outbox file
+     * @return a copy of this delivery, claimed from the outbox
+     */
+    public WebHookDelivery withClaim(String newClaim) {
+        return new WebHookDelivery(idHigh, idLow, repository, gav, eventTimestamp, queuedTimestamp, url,
+                                   contentType, payload, record, template, newClaim, compactionKey, contentPath);
+    }
+
+    /**
+     * @param newCompactionKey identifies the deliveries that supersede each other
+     * @return a copy of this delivery, that can be compacted in the {@link WebHookQueue}
+     */
+    public WebHookDelivery withCompactionKey(String newCompactionKey) {
+        return new WebHookDelivery(idHigh, idLow, repository, gav, eventTimestamp, queuedTimestamp, url,
+                                   contentType, payload, record, template, claim, newCompactionKey, contentPath);
+    }
+
+    /**
+     * @param newContentPath path of the stored file, in the repository of the delivery
+     * @return a copy of this delivery, sent with the content of the given file
+     */
+    public WebHookDelivery withContentPath(String newContentPath) {
+        return new WebHookDelivery(idHigh, idLow, repository, gav, eventTimestamp, queuedTimestamp, url,
+                                   contentType, payload, record, template, claim, compactionKey, newContentPath);
+    }
+
+    /**
+     * @param artifact notified
+     * @return the "groupId:artifactId:version[:classifier]" string of the given artifact
+     */
+    public static String toGav(Gav artifact) {
+        StringBuilder gav = new StringBuilder();
+        gav.append(artifact.getGroupId()).append(":").append(artifact.getArtifactId());
+        if (StringUtils.isNotEmpty(artifact.getVersion())) {
+            gav.append(":").append(artifact.getVersion());
+        }
+        if (artifact.getClassifier() != null) {
+            gav.append(":").append(artifact.getClassifier());
+        }
+        return gav.toString();
+    }
+
+    public String getId() {
+        String currentId = id;
+        if (currentId == null) {
+            currentId = new UUID(idHigh, idLow).toString();
+            id = currentId;
+        }
+        return currentId;
+    }
+
+    public String getRepository() {
+        return repository;
+    }
+
+    public String getGav() {
+        return record == null ? gav : record.getGav();
+    }
+
+    public long getEventTimestamp() {
+        return eventTimestamp;
+    }
+
+    public long getQueuedTimestamp() {
+        return queuedTimestamp;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return the payload, rendered now if needed (once per template of the event, see
+     *         {@link WebHookEventRecord#render(WebHookTemplate)}) - encoded in UTF-8
+     * @throws IllegalStateException if the payload can't be rendered
+     */
+    public byte[] getPayload() throws IllegalStateException {
+        return payload != null ? payload : record.render(template);
+    }
+
+    public String getClaim() {
+        return claim;
+    }
+
+    public String getCompactionKey() {
+        return compactionKey;
+    }
+
+    /**
+     * @return the path of the stored file to send with the payload, in the repository of the delivery - may be null
+     */
+    public String getContentPath() {
+        return contentPath;
+    }
+
+    /**
+     * @return the estimated heap size of this delivery, in bytes
+     */
+    public int getSize() {
+        // the url, content type, repository and record are shared with the other deliveries
+        int chars = (gav == null ? 0 : gav.length()) + (claim == null ? 0 : claim.length())
+                    + (compactionKey == null ? 0 : compactionKey.length())
+                    + (contentPath == null ? 0 : contentPath.length());
+        return OVERHEAD + (payload == null ? record.getSize() : payload.length) + 2 * chars;
+    }
+
+    /**
+     * @return the serialized delivery (see {@link #fromBytes(byte[])})
+     */
+    public byte[] toBytes() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(getSize() + 2 * url.length());
+        DataOutputStream stream = new DataOutputStream(bytes);
+        try {
+            writeTo(stream);
+            stream.flush();
+        } catch (IOException e) {
+            // can't happen with a ByteArrayOutputStream
+            throw new RuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param bytes serialized with {@link #toBytes()}
+     * @return the delivery - won't be null
+     * @throws IOException if the bytes are not a valid delivery
+     */
+    public static WebHookDelivery fromBytes(byte[] bytes) throws IOException {
+        return readFrom(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+
+    /**
+     * Write this delivery (with its rendered payload) to the given stream.
+     *
+     * @param stream to write to
+     * @throws IOException in case of error when writing
+     */
+    public void writeTo(DataOutputStream stream) throws IOException {
+        String currentGav = getGav();
+        byte[] currentPayload = getPayload();
+        stream.writeUTF(getId());
+        stream.writeBoolean(repository != null);
+        if (repository != null) {
+            stream.writeUTF(repository);
+        }
+        stream.writeBoolean(currentGav != null);
+        if (currentGav != null) {
+            stream.writeUTF(currentGav);
+        }
+        stream.writeLong(eventTimestamp);
+        stream.writeLong(queuedTimestamp);
+        stream.writeUTF(url);
+        stream.writeUTF(contentType);
+        stream.writeBoolean(claim != null);
+        if (claim != null) {
+            stream.writeUTF(claim);
+        }
+        stream.writeBoolean(compactionKey != null);
+        if (compactionKey != null) {
+            stream.writeUTF(compactionKey);
+        }
+        stream.writeBoolean(contentPath != null);
+        if (contentPath != null) {
+            stream.writeUTF(contentPath);
+        }
+        stream.writeInt(currentPayload.length);
+        stream.write(currentPayload);
+    }
+
+    /**
+     * Read a delivery written with {@link #writeTo(DataOutputStream)} - its identifiers are shared through the
+     * {@link WebHookDictionary}.
+     *
+     * @param stream to read from
+     * @return the delivery - won't be null
+     * @throws IOException in case of error when reading, or if the content is corrupted
+     */
+    public static WebHookDelivery readFrom(DataInputStream stream) throws IOException {
+        UUID id = null;
+        String idValue = stream.readUTF();
+        try {
+            id = UUID.fromString(idValue);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Corrupted delivery : invalid ID " + idValue);
+        }
+        String repository = stream.readBoolean() ? WebHookDictionary.intern(stream.readUTF()) : null;
+        String gav = stream.readBoolean() ? stream.readUTF() : null;
+        long eventTimestamp = stream.readLong();
+        long queuedTimestamp = stream.readLong();
+        String url = WebHookDictionary.intern(stream.readUTF());
+        String contentType = WebHookDictionary.intern(stream.readUTF());
+        String claim = stream.readBoolean() ? stream.readUTF() : null;
+        String compactionKey = stream.readBoolean() ? stream.readUTF() : null;
+        String contentPath = stream.readBoolean() ? stream.readUTF() : null;
+        int length = stream.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupted delivery : invalid payload length " + length);
+        }
+        byte[] payload = new byte[length];
+        stream.readFully(payload);
+        return new WebHookDelivery(id.getMostSignificantBits(), id.getLeastSignificantBits(), repository, gav,
+                                   eventTimestamp, queuedTimestamp, url, contentType, payload, null, null, claim,
+                                   compactionKey, contentPath);
+    }
+
+    @Override
+    public String toString() {
+        return "WebHookDelivery [id=" + getId() + ", repository=" + repository + ", url=" + url + ", contentType="
+               + contentType + ", payload=" + (payload == null ? "rendered when sent" : payload.length + " bytes")
+               + (claim == null ? "" : ", claim=" + claim) + (contentPath == null ? "" : ", content=" + contentPath)
+               + "]";
+    }
+
+}
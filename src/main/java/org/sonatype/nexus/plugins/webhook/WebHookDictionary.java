@@ -0,0 +1,68 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Dictionary of the identifiers repeated in the pending notifications (repository IDs, groupIds, artifactIds, urls,
+ * content types) : a backlog only has a few hundred distinct values, each one is kept once, and shared by all the
+ * {@link WebHookEventRecord}s and {@link WebHookDelivery deliveries} that use it. The high-cardinality values
+ * (versions, file names) are not interned : they would only churn the dictionary.<br>
+ * Unlike {@link String#intern()}, the dictionary is bounded : once full, it is cleared (the values already shared
+ * stay shared).
+ *
+ * @author Vincent Behar
+ */
+public final class WebHookDictionary {
+
+    /** maximum number of distinct values */
+    private static final transient int CAPACITY = 16384;
+
+    private static final ConcurrentMap<String, String> VALUES = new ConcurrentHashMap<String, String>();
+
+    private WebHookDictionary() {
+        super();
+    }
+
+    /**
+     * @param value to share - may be null
+     * @return the shared instance equal to the given value, or null if the value is null
+     */
+    public static String intern(String value) {
+        if (value == null) {
+            return null;
+        }
+        String shared = VALUES.get(value);
+        if (shared != null) {
+            return shared;
+        }
+        if (VALUES.size() >= CAPACITY) {
+            VALUES.clear();
+        }
+        shared = VALUES.putIfAbsent(value, value);
+        return shared == null ? value : shared;
+    }
+
+    /**
+     * @return the number of values in the dictionary
+     */
+    public static int getSize() {
+        return VALUES.size();
+    }
+
+}
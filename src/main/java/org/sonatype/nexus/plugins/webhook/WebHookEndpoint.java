@@ -0,0 +1,249 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.util.Map;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A named webhook listener, declared once ("webhooks.endpoint.NAME.url") and referenced by its name in the routes,
+ * with its own delivery profile :
+ * <ul>
+ * <li><strong>poolShare</strong> : maximum share (0 to 1) of the worker pool used by this endpoint (default to 1)</li>
+ * <li><strong>maxInFlight</strong> : maximum number of concurrent requests (default to no limit, besides the
+ * adaptive one)</li>
+ * <li><strong>connectTimeout</strong> / <strong>readTimeout</strong> : in milliseconds (default to 0 : none)</li>
+ * <li><strong>batchSize</strong> : maximum number of queued JSON notifications sent in a single request, as a JSON
+ * array (default to 1 : no batching)</li>
+ * <li><strong>compression</strong> : "gzip" to compress the requests bodies (default to "none")</li>
+ * <li><strong>pipelineDepth</strong> : maximum number of requests written back-to-back on a connection, before
+ * reading their responses, for the listeners that support HTTP/1.1 pipelining (default to 1 : no pipelining) - see
+ * {@link WebHookPipeline}</li>
+ * <li><strong>attachContent</strong> : "true" to send each notification as a multipart request, with the event and
+ * the content of the stored file (see {@link WebHookFileBody}) - the notifications are then neither batched nor
+ * pipelined (default to "false")</li>
+ * <li><strong>maxContentSize</strong> : maximum size (in bytes) of an attached file - the larger files are not
+ * attached, only their event is sent (default to 64 MB)</li>
+ * <li><strong>format</strong> : name of the template used to render the payloads (default to the JSON representation
+ * of the events)</li>
+ * </ul>
+ * The urls that are not declared as endpoints use the {@link #DEFAULT} profile.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookEndpoint {
+
+    /** the profile of the urls that are not declared as endpoints */
+    public static final transient WebHookEndpoint DEFAULT = new WebHookEndpoint(null, null, 1.0, Integer.MAX_VALUE, 0,
+                                                                                0, 1, false, 1, false,
+                                                                                64 * 1024 * 1024, null);
+
+    private final String name;
+
+    private final String url;
+
+    private final double poolShare;
+
+    private final int maxInFlight;
+
+    private final int connectTimeout;
+
+    private final int readTimeout;
+
+    private final int batchSize;
+
+    private final boolean compressed;
+
+    private final int pipelineDepth;
+
+    private final boolean attachContent;
+
+    private final int maxContentSize;
+
+    private final String format;
+
+    private WebHookEndpoint(String name, String url, double poolShare, int maxInFlight, int connectTimeout,
+                            int readTimeout, int batchSize, boolean compressed, int pipelineDepth,
+                            boolean attachContent, int maxContentSize, String format) {
+        super();
+        this.name = name;
+        this.url = url;
+        this.poolShare = poolShare;
+        this.maxInFlight = maxInFlight;
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.batchSize = batchSize;
+        this.compressed = compressed;
+        this.pipelineDepth = pipelineDepth;
+        this.attachContent = attachContent;
+        this.maxContentSize = maxContentSize;
+        this.format = format;
+    }
+
+    /**
+     * Parse the declaration of the given endpoint.
+     *
+     * @param name of the endpoint
+     * @param properties of the endpoint : property name (without the "webhooks.endpoint.NAME." prefix) / value
+     * @return the endpoint - won't be null
+     * @throws IllegalArgumentException if the url is missing or a property is invalid
+     */
+    public static WebHookEndpoint parse(String name, Map<String, String> properties) throws IllegalArgumentException {
+        String url = StringUtils.trimToNull(properties.get("url"));
+        if (url == null) {
+            throw new IllegalArgumentException("No url for the endpoint " + name);
+        }
+
+        double poolShare = DEFAULT.poolShare;
+        String value = StringUtils.trimToNull(properties.get("poolShare"));
+        if (value != null) {
+            try {
+                poolShare = Double.parseDouble(value);
+            } catch (NumberFormatException e) {
+                poolShare = -1;
+            }
+            if (poolShare <= 0 || poolShare > 1) {
+                throw new IllegalArgumentException("Invalid poolShare for the endpoint " + name + " : " + value);
+            }
+        }
+
+        String compression = StringUtils.defaultString(StringUtils.trimToNull(properties.get("compression")), "none");
+        if (!"gzip".equals(compression) && !"none".equals(compression)) {
+            throw new IllegalArgumentException("Invalid compression for the endpoint " + name + " : " + compression);
+        }
+
+        String attachContent = StringUtils.defaultString(StringUtils.trimToNull(properties.get("attachContent")),
+                                                         "false");
+        if (!"true".equals(attachContent) && !"false".equals(attachContent)) {
+            throw new IllegalArgumentException("Invalid attachContent for the endpoint " + name + " : "
+                                               + attachContent);
+        }
+
+        return new WebHookEndpoint(name,
+                                   url,
+                                   poolShare,
+                                   parseInt(name, properties, "maxInFlight", DEFAULT.maxInFlight, 1),
+                                   parseInt(name, properties, "connectTimeout", DEFAULT.connectTimeout, 0),
+                                   parseInt(name, properties, "readTimeout", DEFAULT.readTimeout, 0),
+                                   parseInt(name, properties, "batchSize", DEFAULT.batchSize, 1),
+                                   "gzip".equals(compression),
+                                   parseInt(name, properties, "pipelineDepth", DEFAULT.pipelineDepth, 1),
+                                   "true".equals(attachContent),
+                                   parseInt(name, properties, "maxContentSize", DEFAULT.maxContentSize, 1),
+                                   StringUtils.trimToNull(properties.get("format")));
+    }
+
+    private static int parseInt(String name, Map<String, String> properties, String property, int defaultValue,
+                                int minValue) throws IllegalArgumentException {
+        String value = StringUtils.trimToNull(properties.get(property));
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            int intValue = Integer.parseInt(value);
+            if (intValue >= minValue) {
+                return intValue;
+            }
+        } catch (NumberFormatException e) {
+            // invalid, see below
+        }
+        throw new IllegalArgumentException("Invalid " + property + " for the endpoint " + name + " : " + value);
+    }
+
+    /**
+     * @param poolSize number of workers
+     * @return the maximum number of concurrent requests to this endpoint, based on its pool share and its max
+     *         in-flight
+     */
+    public int getMaxConcurrency(int poolSize) {
+        return Math.max(1, Math.min(maxInFlight, (int) Math.ceil(poolShare * poolSize)));
+    }
+
+    /**
+     * @return the name of the endpoint, or null for the {@link #DEFAULT} profile
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the url of the endpoint, or null for the {@link #DEFAULT} profile
+     */
+    public String getUrl() {
+        return url;
+    }
+
+    public double getPoolShare() {
+        return poolShare;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public boolean isCompressed() {
+        return compressed;
+    }
+
+    /**
+     * @return the maximum number of pipelined requests - 1 if the requests are not pipelined
+     */
+    public int getPipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * @return true if the content of the stored files is sent with their events, in multipart requests
+     */
+    public boolean isAttachContent() {
+        return attachContent;
+    }
+
+    /**
+     * @return the maximum size (in bytes) of an attached file
+     */
+    public int getMaxContentSize() {
+        return maxContentSize;
+    }
+
+    /**
+     * @return the name of the template used to render the payloads, or null for the default one
+     */
+    public String getFormat() {
+        return format;
+    }
+
+    @Override
+    public String toString() {
+        return "WebHookEndpoint [name=" + name + ", url=" + url + ", poolShare=" + poolShare + ", maxInFlight="
+               + maxInFlight + ", connectTimeout=" + connectTimeout + ", readTimeout=" + readTimeout + ", batchSize="
+               + batchSize + ", compressed=" + compressed + ", pipelineDepth=" + pipelineDepth + ", attachContent="
+               + attachContent + ", maxContentSize=" + maxContentSize + ", format=" + format + "]";
+    }
+
+}
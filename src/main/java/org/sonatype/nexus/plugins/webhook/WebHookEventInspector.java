@@ -15,19 +15,45 @@
  */
 package org.sonatype.nexus.plugins.webhook;
 
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
 import org.apache.maven.index.artifact.Gav;
 import org.codehaus.plexus.component.annotations.Component;
 import org.codehaus.plexus.component.annotations.Requirement;
+import org.codehaus.plexus.logging.Logger;
+import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Item;
 import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Repository;
 import org.sonatype.nexus.proxy.events.EventInspector;
 import org.sonatype.nexus.proxy.events.NexusStartedEvent;
+import org.sonatype.nexus.proxy.events.NexusStoppedEvent;
+import org.sonatype.nexus.proxy.events.RepositoryItemEvent;
+import org.sonatype.nexus.proxy.events.RepositoryItemEventCache;
+import org.sonatype.nexus.proxy.events.RepositoryItemEventDelete;
 import org.sonatype.nexus.proxy.events.RepositoryItemEventStore;
+import org.sonatype.nexus.proxy.item.StorageFileItem;
+import org.sonatype.nexus.proxy.item.StorageItem;
 import org.sonatype.nexus.proxy.maven.MavenRepository;
 import org.sonatype.plexus.appevents.Event;
 
 /**
  * Nexus {@link EventInspector} implementation that loads the {@link WebHookPlugin} configuration at startup, and notify
- * the registered webHook listeners when a new (Maven) artifact is stored in Nexus.
+ * the registered webHook listeners when a new (Maven) artifact is stored in Nexus (or deleted, cached, or its metadata
+ * updated - see {@link WebHookEventType}).<br>
+ * The Nexus thread only publishes the raw event (repository, path, timestamp, user) to a {@link WebHookEventRing} :
+ * the GAV calculation, the routing, the rendering of the payloads and the queueing are done by the plugin's own
+ * "pipeline" thread, so that storing an artifact in Nexus is not slowed down by the plugin.<br>
+ * The size and checksums of the notified files are taken from the attributes of the items, through a
+ * {@link WebHookItemCache}.<br>
+ * When Nexus stops, the ring is closed to the new events, the pipeline hands the events still in the ring to the
+ * {@link WebHookNotifier}, and the notifier is stopped.
  * 
  * @author Vincent Behar
  */
@@ -40,6 +66,43 @@ public class WebHookEventInspector implements EventInspector {
     @Requirement
     private WebHookNotifier webHookNotifier;
 
+    @Requirement
+    private WebHookBackfiller webHookBackfiller;
+
+    @Requirement
+    private Logger logger;
+
+    private static final transient String METADATA_FILENAME = "/maven-metadata.xml";
+
+    /** number of events that can be published before the pipeline handles them */
+    private static final transient int RING_CAPACITY = 4096;
+
+    /** maximum number of events handled in a batch, before checking for an interruption */
+    private static final transient int BATCH_SIZE = 256;
+
+    /** how long (in milliseconds) a Nexus thread waits for a free slot in the ring, before dropping its event */
+    private static final transient long PUBLISH_TIMEOUT = 100;
+
+    /** how long (in milliseconds) to wait for the pipeline thread, when Nexus stops */
+    private static final transient long PIPELINE_TIMEOUT = 1000;
+
+    /** number of items whose size and checksums are kept */
+    private static final transient int ITEM_CACHE_CAPACITY = 10000;
+
+    private final WebHookEventRing ring = new WebHookEventRing(RING_CAPACITY);
+
+    private final WebHookItemCache itemCache = new WebHookItemCache(ITEM_CACHE_CAPACITY);
+
+    private final AtomicBoolean pipelineStarted = new AtomicBoolean();
+
+    private ExecutorService pipeline;
+
+    /** consumes the events of the ring - null until the pipeline is started */
+    private volatile WebHookEventRing.Handler handler;
+
+    /** true once Nexus stops : the events are no longer published */
+    private volatile boolean stopped;
+
     public boolean accepts(Event<?> evt) {
         return true;
     }
@@ -47,23 +110,277 @@ public class WebHookEventInspector implements EventInspector {
     public void inspect(Event<?> evt) {
         if (evt instanceof NexusStartedEvent) {
             webHookPlugin.reloadConfigurationQuietly();
+            webHookNotifier.configurationReloaded();
+            webHookBackfiller.resumeJobs();
+            webHookNotifier.start();
+        }
+
+        if (evt instanceof NexusStoppedEvent) {
+            stopped = true;
+            stopPipeline();
+            // before the notifier : the backfill doesn't go through the pipeline
+            webHookBackfiller.stop();
+            webHookNotifier.stop();
+        }
+
+        // most of the item events are retrievals : they are ignored before anything is computed
+        if ((evt instanceof RepositoryItemEventStore || evt instanceof RepositoryItemEventCache
+             || evt instanceof RepositoryItemEventDelete) && !stopped) {
+            RepositoryItemEvent e = (RepositoryItemEvent) evt;
+            String path = e.getItemUid().getPath();
+            WebHookEventType type = getType(e, path);
+            // pre-filter : don't even publish the events that nobody subscribed to
+            if (type != null && e.getRepository() instanceof MavenRepository
+                && webHookPlugin.getRoutes().isSubscribed(type)) {
+                if (!pipelineStarted.get()) {
+                    startPipeline();
+                }
+                if (!ring.publish(type,
+                                  (MavenRepository) e.getRepository(),
+                                  path,
+                                  e.getItem(),
+                                  e.getEventDate().getTime(),
+                                  e.getItemContext().get("request.user"),
+                                  PUBLISH_TIMEOUT) && !ring.isClosed()) {
+                    logger.error("Dropped the " + type + " event of " + path + " in " + e.getRepository().getId()
+                                 + " : the WebHook pipeline is " + ring.getBacklog() + " events behind ("
+                                 + ring.getDroppedCount() + " events dropped so far)");
+                }
+            }
+        }
+    }
+
+    /**
+     * @param e the Nexus event (a store, cache or delete event)
+     * @param path of the item
+     * @return the type of the event, or null if it is not notified (deleted metadata, ...)
+     */
+    private static WebHookEventType getType(RepositoryItemEvent e, String path) {
+        boolean metadata = path.endsWith(METADATA_FILENAME);
+        if (e instanceof RepositoryItemEventStore) {
+            return metadata ? WebHookEventType.METADATA : WebHookEventType.STORED;
+        }
+        if (e instanceof RepositoryItemEventCache) {
+            return metadata ? WebHookEventType.METADATA : WebHookEventType.CACHED;
+        }
+        if (e instanceof RepositoryItemEventDelete) {
+            return metadata ? null : WebHookEventType.DELETED;
+        }
+        return null;
+    }
+
+    /**
+     * Start the pipeline thread, that consumes the events published to the {@link WebHookEventRing}.
+     */
+    private synchronized void startPipeline() {
+        if (!pipelineStarted.compareAndSet(false, true)) {
+            return;
+        }
+
+        handler = new WebHookEventRing.Handler() {
+
+            public void onEvent(WebHookEventType type, MavenRepository repository, String path, StorageItem item,
+                                long timestamp, Object user) {
+                try {
+                    ArtifactStoredEvent event = createEvent(type, repository, path, item, timestamp,
+                                                            String.valueOf(user));
+                    if (event != null) {
+                        if (webHookPlugin.getRoutes().isItemIncluded()) {
+                            event.setItem(getItem(type, repository, path, item));
+                        }
+                        webHookNotifier.notify(event);
+                    }
+                } catch (RuntimeException e) {
+                    // don't let the exception kill the pipeline
+                    logger.error("Failed to handle the event for " + path + " in " + repository.getId(), e);
+                }
+            }
+        };
+        pipeline = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                // doesn't keep the JVM alive, if Nexus exits without stopping the plugin
+                Thread thread = new Thread(runnable, "webhook-pipeline");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        pipeline.execute(new Runnable() {
+
+            public void run() {
+                try {
+                    while (!Thread.currentThread().isInterrupted()) {
+                        if (ring.drain(handler, BATCH_SIZE) == 0) {
+                            // woken by the next event
+                            ring.await();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        });
+    }
+
+    /**
+     * @param type of the event
+     * @param repository in which the item is
+     * @param path of the item
+     * @param item the item - may be null
+     * @return the size and checksums of the item - may be null
+     */
+    private Item getItem(WebHookEventType type, MavenRepository repository, String path, StorageItem item) {
+        if (type == WebHookEventType.DELETED) {
+            // the attributes of a deleted item may already be gone : the last known values are preferred
+            Item cached = itemCache.remove(repository.getId(), path);
+            return cached != null || item == null ? cached : WebHookItemCache.toItem(item);
+        }
+        return item == null ? null : itemCache.get(repository.getId(), item);
+    }
+
+    /**
+     * Close the {@link WebHookEventRing}, stop the pipeline thread (if started), and hand the events still in the ring
+     * to the {@link WebHookNotifier}, so that they are delivered (or kept for the next startup) with the other
+     * notifications.
+     */
+    private synchronized void stopPipeline() {
+        // the events published from now on are rejected : the last one can be drained
+        ring.close();
+        if (pipeline == null) {
+            return;
+        }
+        pipeline.shutdownNow();
+        try {
+            if (!pipeline.awaitTermination(PIPELINE_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                logger.warn("The WebHook pipeline is still running after the shutdown");
+                return;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        // the pipeline thread is gone : this thread is the only consumer of the ring
+        long deadline = System.currentTimeMillis() + PIPELINE_TIMEOUT;
+        while (!ring.isDrained() && System.currentTimeMillis() < deadline) {
+            if (ring.drain(handler, BATCH_SIZE) == 0) {
+                // a Nexus thread is still publishing its event
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * @return the {@link WebHookEventRing} between the Nexus threads and the pipeline - won't be null
+     */
+    public WebHookEventRing getRing() {
+        return ring;
+    }
+
+    /**
+     * @return the {@link WebHookItemCache} of the size and checksums of the notified files - won't be null
+     */
+    public WebHookItemCache getItemCache() {
+        return itemCache;
+    }
+
+    /**
+     * Create an {@link ArtifactStoredEvent} for the item stored at the given path, if it is a (Maven) artifact.
+     * 
+     * @param repo in which the item is stored
+     * @param path of the item in the repository
+     * @param timestamp of the event
+     * @param user responsible for storing the item
+     * @return the event, or null if the item is not an artifact (metadata, signature, hash, ...)
+     */
+    public static ArtifactStoredEvent createEvent(MavenRepository repo, String path, long timestamp, String user) {
+        return createEvent(WebHookEventType.STORED, repo, path, null, timestamp, user);
+    }
+
+    /**
+     * Create an {@link ArtifactStoredEvent} of the given type for the item at the given path, if it is a (Maven)
+     * artifact - or a "maven-metadata.xml" file, for a {@link WebHookEventType#METADATA} event.
+     * 
+     * @param type of the event
+     * @param repo in which the item is
+     * @param path of the item in the repository
+     * @param item the item - may be null
+     * @param timestamp of the event
+     * @param user responsible for the event
+     * @return the event, or null if the item is not an artifact (signature, hash, metadata of a group, ...)
+     */
+    public static ArtifactStoredEvent createEvent(WebHookEventType type, MavenRepository repo, String path,
+                                                  StorageItem item, long timestamp, String user) {
+        Gav gav = type == WebHookEventType.METADATA ? metadataToGav(path, item)
+                : repo.getGavCalculator().pathToGav(path);
+        if (gav == null || gav.isSignature() || gav.isHash()) {
+            return null;
         }
 
-        if (evt instanceof RepositoryItemEventStore) {
-            RepositoryItemEventStore e = (RepositoryItemEventStore) evt;
-            if (e.getRepository() instanceof MavenRepository) {
-                MavenRepository repo = (MavenRepository) e.getRepository();
-                String path = e.getItemUid().getPath();
-                Gav gav = repo.getGavCalculator().pathToGav(path);
-                if (gav != null && !gav.isSignature() && !gav.isHash()) {
-                    ArtifactStoredEvent event = new ArtifactStoredEvent();
-                    event.setRepository(new Repository(repo.getId(), repo.getName()));
-                    event.setArtifact(gav);
-                    event.setTimestamp(e.getEventDate().getTime());
-                    event.setUser(String.valueOf(e.getItemContext().get("request.user")));
-                    webHookNotifier.notify(event);
+        ArtifactStoredEvent event = new ArtifactStoredEvent();
+        event.setType(type);
+        event.setRepository(new Repository(repo.getId(), repo.getName()));
+        event.setArtifact(gav);
+        event.setPath(path);
+        event.setTimestamp(timestamp);
+        event.setUser(user);
+        return event;
+    }
+
+    /**
+     * The {@link org.apache.maven.index.artifact.GavCalculator} doesn't handle the metadata files : the groupId and
+     * artifactId (and the version, for the metadata of a snapshot version) are taken from the path
+     * ("/groupId/as/path/artifactId[/version-SNAPSHOT]/maven-metadata.xml").<br>
+     * The metadata of a group ("/groupId/as/path/maven-metadata.xml", with the prefixes of its plugins) can't be told
+     * from the path : the beginning of its content is read.
+     * 
+     * @param path of a "maven-metadata.xml" file
+     * @param item the "maven-metadata.xml" file - may be null
+     * @return the {@link Gav} of the artifact described by the metadata, or null if the path is not valid or if it is
+     *         the metadata of a group
+     */
+    public static Gav metadataToGav(String path, StorageItem item) {
+        String[] parts = StringUtils.split(path, "/");
+        if (parts == null || parts.length < 3 || isGroupMetadata(item)) {
+            return null;
+        }
+
+        int artifactIndex = parts.length - 2;
+        String version = "";
+        if (parts.length >= 4 && parts[parts.length - 2].endsWith("-SNAPSHOT")) {
+            version = parts[parts.length - 2];
+            artifactIndex--;
+        }
+        String groupId = StringUtils.join(parts, '.', 0, artifactIndex);
+        return new Gav(groupId, parts[artifactIndex], version, null, "xml", null, null, METADATA_FILENAME.substring(1),
+                       false, null, false, null);
+    }
+
+    /**
+     * @param item a "maven-metadata.xml" file - may be null
+     * @return true if it is the metadata of a group (with the prefixes of its plugins, and no versions), false if it
+     *         is the metadata of an artifact (or if it can't be read)
+     */
+    private static boolean isGroupMetadata(StorageItem item) {
+        if (!(item instanceof StorageFileItem)) {
+            return false;
+        }
+        BufferedReader reader = null;
+        try {
+            reader = new BufferedReader(new InputStreamReader(((StorageFileItem) item).getInputStream(), "UTF-8"));
+            // the versions (or the plugins) come right after the groupId and artifactId
+            for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+                if (line.contains("<versioning>") || line.contains("<version>")) {
+                    return false;
+                }
+                if (line.contains("<plugins>")) {
+                    return true;
                 }
             }
+            return false;
+        } catch (IOException e) {
+            return false;
+        } finally {
+            IOUtils.closeQuietly(reader);
         }
     }
 
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.UnsupportedEncodingException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import org.apache.maven.index.artifact.Gav;
+import org.json.JSONException;
+import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Item;
+import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Repository;
+
+/**
+ * Compact and immutable form of an {@link ArtifactStoredEvent}, kept by the pending {@link WebHookDelivery
+ * deliveries} until their payload is rendered : the repository, groupId and artifactId are shared through the
+ * {@link WebHookDictionary}, the timestamps are primitives, and the {@link Gav} (with its dozen fields) is only
+ * materialized by {@link #toEvent()}, when a payload is rendered.<br>
+ * A record is shared by all the deliveries of its event : the event is rendered once per distinct template (see
+ * {@link #render(WebHookTemplate)}), not once per url.
+ *
+ * @author Vincent Behar
+ */
+public final class WebHookEventRecord {
+
+    /** estimated heap size of a record, without its (non-shared) strings */
+    private static final transient int OVERHEAD = 96;
+
+    /** marks a missing timestamp or build number */
+    private static final transient long NONE = Long.MIN_VALUE;
+
+    private final WebHookEventType type;
+
+    private final long timestamp;
+
+    private final String user;
+
+    private final String repositoryId;
+
+    private final String repositoryName;
+
+    private final String groupId;
+
+    private final String artifactId;
+
+    private final String version;
+
+    private final String classifier;
+
+    private final String extension;
+
+    private final String name;
+
+    private final long snapshotBuildNumber;
+
+    private final long snapshotTimeStamp;
+
+    private final boolean hash;
+
+    private final Gav.HashType hashType;
+
+    private final boolean signature;
+
+    private final Gav.SignatureType signatureType;
+
+    /** shared by the events of the same version of a file, see {@link WebHookItemCache} - may be null */
+    private final Item item;
+
+    /**
+     * template / payload rendered with it, shared by the deliveries of the event with the same template - null until
+     * the first rendering
+     */
+    private Map<WebHookTemplate, byte[]> payloads;
+
+    private WebHookEventRecord(ArtifactStoredEvent event) {
+        super();
+        Gav artifact = event.getArtifact();
+        this.type = event.getType();
+        this.timestamp = event.getTimestamp() == null ? NONE : event.getTimestamp();
+        this.user = event.getUser();
+        this.repositoryId = WebHookDictionary.intern(event.getRepository().getId());
+        this.repositoryName = WebHookDictionary.intern(event.getRepository().getName());
+        this.groupId = WebHookDictionary.intern(artifact.getGroupId());
+        this.artifactId = WebHookDictionary.intern(artifact.getArtifactId());
+        this.version = artifact.getVersion();
+        this.classifier = artifact.getClassifier();
+        this.extension = artifact.getExtension();
+        this.name = artifact.getName();
+        this.snapshotBuildNumber = artifact.getSnapshotBuildNumber() == null ? NONE
+                : artifact.getSnapshotBuildNumber();
+        this.snapshotTimeStamp = artifact.getSnapshotTimeStamp() == null ? NONE : artifact.getSnapshotTimeStamp();
+        this.hash = artifact.isHash();
+        this.hashType = artifact.getHashType();
+        this.signature = artifact.isSignature();
+        this.signatureType = artifact.getSignatureType();
+        this.item = event.getItem();
+    }
+
+    /**
+     * @param event with a repository and an artifact
+     * @return the compact form of the given event - won't be null
+     */
+    public static WebHookEventRecord of(ArtifactStoredEvent event) {
+        return new WebHookEventRecord(event);
+    }
+
+    /**
+     * @return a new event, equal to the one this record has been created from - won't be null
+     */
+    public ArtifactStoredEvent toEvent() {
+        ArtifactStoredEvent event = new ArtifactStoredEvent();
+        event.setType(type);
+        event.setTimestamp(timestamp == NONE ? null : timestamp);
+        event.setUser(user);
+        event.setRepository(new Repository(repositoryId, repositoryName));
+        event.setArtifact(new Gav(groupId, artifactId, version, classifier, extension,
+                                  snapshotBuildNumber == NONE ? null : Integer.valueOf((int) snapshotBuildNumber),
+                                  snapshotTimeStamp == NONE ? null : snapshotTimeStamp, name, hash, hashType,
+                                  signature, signatureType));
+        event.setItem(item);
+        return event;
+    }
+
+    /**
+     * Render the payload of the event with the given template, once : the deliveries to the urls sharing a template
+     * share the rendered payload.
+     *
+     * @param template to render the event with
+     * @return the rendered payload, encoded in UTF-8 - won't be null
+     * @throws IllegalStateException if the payload can't be rendered
+     */
+    public synchronized byte[] render(WebHookTemplate template) throws IllegalStateException {
+        if (payloads == null) {
+            // usually a single template (the default one)
+            payloads = new IdentityHashMap<WebHookTemplate, byte[]>(4);
+        }
+        byte[] payload = payloads.get(template);
+        if (payload == null) {
+            try {
+                payload = template.render(toEvent()).getBytes("UTF-8");
+            } catch (JSONException e) {
+                throw new IllegalStateException("Failed to prepare JSON for event " + this, e);
+            } catch (UnsupportedEncodingException e) {
+                throw new IllegalStateException("Failed to encode the payload for event " + this, e);
+            }
+            payloads.put(template, payload);
+        }
+        return payload;
+    }
+
+    /**
+     * @return the "groupId:artifactId:version[:classifier]" string of the artifact (see
+     *         {@link WebHookDelivery#toGav(Gav)})
+     */
+    public String getGav() {
+        StringBuilder gav = new StringBuilder();
+        gav.append(groupId).append(":").append(artifactId);
+        if (version != null && version.length() > 0) {
+            gav.append(":").append(version);
+        }
+        if (classifier != null) {
+            gav.append(":").append(classifier);
+        }
+        return gav.toString();
+    }
+
+    public WebHookEventType getType() {
+        return type;
+    }
+
+    public String getRepositoryId() {
+        return repositoryId;
+    }
+
+    /**
+     * @return the estimated heap size of this record, in bytes
+     */
+    public int getSize() {
+        // the repository, groupId and artifactId are shared with the other records
+        return OVERHEAD + 2 * (length(user) + length(version) + length(classifier) + length(extension) + length(name));
+    }
+
+    private static int length(String value) {
+        return value == null ? 0 : value.length();
+    }
+
+    @Override
+    public String toString() {
+        return "WebHookEventRecord [type=" + type + ", repository=" + repositoryId + ", gav=" + getGav() + ", user="
+               + user + ", timestamp=" + timestamp + "]";
+    }
+
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.sonatype.nexus.proxy.item.StorageItem;
+import org.sonatype.nexus.proxy.maven.MavenRepository;
+
+/**
+ * Lock-free handoff of the raw repository events, from the Nexus threads (many producers) to the plugin's pipeline
+ * (a single consumer).<br>
+ * The slots are preallocated and reused : publishing an event is claiming a sequence number, copying 6 fields in
+ * the slot, and a volatile write - no allocation, no lock. Producers only wait if the consumer is a full ring behind,
+ * and not longer than their timeout : the event is then dropped (and counted), so that a dead consumer doesn't hang
+ * the Nexus threads. The consumer waits for the events without polling : it is woken by the producers.<br>
+ * Once closed, the ring rejects the new events, and the events already published can be drained to the last one.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookEventRing {
+
+    private final Slot[] slots;
+
+    private final int mask;
+
+    /** set in {@link #claimed} once the ring is closed : no sequence can be claimed anymore */
+    private static final transient long CLOSED = 1L << 62;
+
+    /** next sequence to claim by a producer - with the {@link #CLOSED} bit */
+    private final AtomicLong claimed = new AtomicLong();
+
+    /** next sequence to consume - only written by the consumer */
+    private volatile long consumed;
+
+    /** the consumer thread, while it waits for an event - null otherwise */
+    private volatile Thread waitingConsumer;
+
+    /** number of events dropped because the ring was full */
+    private final AtomicLong dropped = new AtomicLong();
+
+    /**
+     * @param capacity number of slots - must be a power of 2
+     */
+    public WebHookEventRing(int capacity) {
+        super();
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("The capacity must be a power of 2 : " + capacity);
+        }
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot(i - capacity);
+        }
+        mask = capacity - 1;
+    }
+
+    /**
+     * Publish a raw event - may be called concurrently by any number of threads.
+     *
+     * @param type of the event
+     * @param repository in which the item is stored
+     * @param path of the item in the repository
+     * @param item the item (may be null)
+     * @param timestamp of the event
+     * @param user responsible for the event (not converted to String yet)
+     * @param timeout how long (in milliseconds) to wait for a free slot, if the ring is full
+     * @return true if the event has been published, false if it has been dropped (the ring is still full after the
+     *         timeout, or it is closed)
+     */
+    public boolean publish(WebHookEventType type, MavenRepository repository, String path, StorageItem item,
+                           long timestamp, Object user, long timeout) {
+        long deadline = 0;
+        boolean waiting = false;
+        long sequence = 0;
+        while (true) {
+            sequence = claimed.get();
+            if ((sequence & CLOSED) != 0) {
+                return false;
+            }
+            if (sequence - slots.length < consumed) {
+                if (claimed.compareAndSet(sequence, sequence + 1)) {
+                    break;
+                }
+            } else if (!waiting) {
+                // a slot is only claimed once the consumer is done with its previous use
+                waiting = true;
+                deadline = System.nanoTime() + timeout * 1000000;
+            } else if (System.nanoTime() - deadline >= 0) {
+                dropped.incrementAndGet();
+                return false;
+            } else {
+                Thread.yield();
+            }
+        }
+
+        Slot slot = slots[(int) sequence & mask];
+        slot.type = type;
+        slot.repository = repository;
+        slot.path = path;
+        slot.item = item;
+        slot.timestamp = timestamp;
+        slot.user = user;
+        // publish the fields above
+        slot.sequence = sequence;
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        return true;
+    }
+
+    /**
+     * Wait until the next event is published, or the ring is closed - must only be called by the consumer thread.
+     *
+     * @throws InterruptedException if the consumer thread is interrupted
+     */
+    public void await() throws InterruptedException {
+        waitingConsumer = Thread.currentThread();
+        try {
+            // checked once the producers can see the waiting consumer : a publication can't be missed
+            while (slots[(int) consumed & mask].sequence != consumed && !isClosed()) {
+                LockSupport.park(this);
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+
+    /**
+     * Close the ring : the new events are rejected (see
+     * {@link #publish(WebHookEventType, MavenRepository, String, StorageItem, long, Object, long)}), the events already
+     * published can still be drained (see {@link #isDrained()}).
+     */
+    public void close() {
+        long sequence = claimed.get();
+        while ((sequence & CLOSED) == 0 && !claimed.compareAndSet(sequence, sequence | CLOSED)) {
+            sequence = claimed.get();
+        }
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+    }
+
+    /**
+     * @return true if the ring is closed
+     */
+    public boolean isClosed() {
+        return (claimed.get() & CLOSED) != 0;
+    }
+
+    /**
+     * @return true if the ring is closed, and all its events have been consumed - a producer may still be publishing
+     *         the last ones, once closed
+     */
+    public boolean isDrained() {
+        long sequence = claimed.get();
+        return (sequence & CLOSED) != 0 && consumed == (sequence & ~CLOSED);
+    }
+
+    /**
+     * Consume (in order) the published events - must only be called by the consumer thread.
+     *
+     * @param handler called for each event
+     * @param max number of events to consume
+     * @return the number of consumed events - 0 if no event is available
+     */
+    public int drain(Handler handler, int max) {
+        long next = consumed;
+        int count = 0;
+        while (count < max) {
+            Slot slot = slots[(int) next & mask];
+            if (slot.sequence != next) {
+                // not published yet
+                break;
+            }
+            WebHookEventType type = slot.type;
+            MavenRepository repository = slot.repository;
+            String path = slot.path;
+            StorageItem item = slot.item;
+            long timestamp = slot.timestamp;
+            Object user = slot.user;
+            slot.repository = null;
+            slot.path = null;
+            slot.item = null;
+            slot.user = null;
+            // give the slot back to the producers before handling the event
+            consumed = ++next;
+            count++;
+            handler.onEvent(type, repository, path, item, timestamp, user);
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of published events not consumed yet (approximate)
+     */
+    public long getBacklog() {
+        return Math.max(0, (claimed.get() & ~CLOSED) - consumed);
+    }
+
+    /**
+     * @return the number of events dropped because the ring was full
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return the number of slots
+     */
+    public int getCapacity() {
+        return slots.length;
+    }
+
+    /**
+     * Called by the consumer for each event.
+     */
+    public static interface Handler {
+
+        void onEvent(WebHookEventType type, MavenRepository repository, String path, StorageItem item, long timestamp,
+                     Object user);
+
+    }
+
+    /**
+     * A preallocated slot : the fields are written by a single producer, then published by the volatile write of the
+     * sequence.
+     */
+    private static class Slot {
+
+        private volatile long sequence;
+
+        private WebHookEventType type;
+
+        private MavenRepository repository;
+
+        private String path;
+
+        private StorageItem item;
+
+        private long timestamp;
+
+        private Object user;
+
+        private Slot(long sequence) {
+            super();
+            this.sequence = sequence;
+        }
+
+    }
+
+}
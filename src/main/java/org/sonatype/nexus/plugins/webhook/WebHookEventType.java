@@ -0,0 +1,70 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+/**
+ * The types of repository events that can be notified to the webhook listeners.<br>
+ * Each type has a bit, so that the types a listener subscribes to are compiled to a mask (see
+ * {@link WebHookRoutes#accepts(String, WebHookEventType)}).
+ *
+ * @author Vincent Behar
+ */
+public enum WebHookEventType {
+
+    /** an artifact has been deployed */
+    STORED("stored"),
+
+    /** an artifact has been deleted */
+    DELETED("deleted"),
+
+    /** a proxy repository has cached an artifact from its remote repository */
+    CACHED("cached"),
+
+    /** a "maven-metadata.xml" file has been updated : a version has been published */
+    METADATA("metadata");
+
+    /** the name used in the configuration and in the JSON representation of the events */
+    private final String name;
+
+    private final int bit;
+
+    private WebHookEventType(String name) {
+        this.name = name;
+        this.bit = 1 << ordinal();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getBit() {
+        return bit;
+    }
+
+    /**
+     * @param name of a type
+     * @return the type with the given name, or null if there is none
+     */
+    public static WebHookEventType fromName(String name) {
+        for (WebHookEventType type : values()) {
+            if (type.name.equals(name)) {
+                return type;
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import org.apache.http.entity.mime.content.AbstractContentBody;
+import org.apache.http.entity.mime.content.ContentBody;
+
+/**
+ * A multipart {@link ContentBody} with the content of a file stored in a repository, streamed from the repository
+ * storage to the request : the file is transferred by its {@link FileChannel} (in chunks, see
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)}), so that a large artifact is never held in the
+ * heap.<br>
+ * The body can be written several times (if the request is retried) : the file is opened each time.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookFileBody extends AbstractContentBody {
+
+    /** maximum number of bytes transferred at once */
+    private static final transient long CHUNK_SIZE = 1024 * 1024;
+
+    private final File file;
+
+    private final String filename;
+
+    /** the size of the file when the body was created : a file modified since is cut, or fails the request */
+    private final long length;
+
+    /**
+     * @param file to stream
+     * @param mimeType of the content
+     * @param filename sent to the listener (the name of the artifact)
+     */
+    public WebHookFileBody(File file, String mimeType, String filename) {
+        super(mimeType);
+        this.file = file;
+        this.filename = filename;
+        this.length = file.length();
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        FileInputStream stream = new FileInputStream(file);
+        try {
+            FileChannel channel = stream.getChannel();
+            WritableByteChannel target = Channels.newChannel(out);
+            long position = 0;
+            while (position < length) {
+                long transferred = channel.transferTo(position, Math.min(CHUNK_SIZE, length - position), target);
+                if (transferred <= 0) {
+                    throw new IOException("File " + file + " truncated at " + position + " bytes (instead of "
+                                          + length + ")");
+                }
+                position += transferred;
+            }
+            out.flush();
+        } finally {
+            stream.close();
+        }
+    }
+
+    public String getFilename() {
+        return filename;
+    }
+
+    public String getCharset() {
+        return null;
+    }
+
+    public String getTransferEncoding() {
+        return "binary";
+    }
+
+    public long getContentLength() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return "WebHookFileBody [file=" + file + ", length=" + length + "]";
+    }
+
+}
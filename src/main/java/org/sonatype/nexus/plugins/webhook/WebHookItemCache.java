@@ -0,0 +1,138 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.lang.StringUtils;
+import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Item;
+import org.sonatype.nexus.proxy.item.StorageFileItem;
+import org.sonatype.nexus.proxy.item.StorageItem;
+
+/**
+ * Cache of the {@link Item} (size and checksums) of the files notified recently, per repository and path.<br>
+ * The values come from the attributes that Nexus already maintains for each stored item (the checksums are computed
+ * by Nexus when the file is stored) : the file is never read nor hashed by the plugin. An {@link Item} is built once
+ * per version of a file (its last modification), and shared by all the events and all the listeners notified for
+ * it. The cache also remembers what a deleted file was, even if Nexus has already removed its attributes.<br>
+ * The least recently used entries are evicted beyond the capacity.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookItemCache {
+
+    /** attribute of a stored item with its SHA-1 checksum (see Nexus' DigestCalculatingInspector) */
+    public static final transient String SHA1_ATTRIBUTE = "digest.sha1";
+
+    /** attribute of a stored item with its MD5 checksum (see Nexus' DigestCalculatingInspector) */
+    public static final transient String MD5_ATTRIBUTE = "digest.md5";
+
+    private final Map<String, Item> items;
+
+    private long hits;
+
+    private long misses;
+
+    /**
+     * @param capacity maximum number of items in the cache
+     */
+    public WebHookItemCache(final int capacity) {
+        super();
+        items = new LinkedHashMap<String, Item>(16, 0.75f, true) {
+
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Item> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param repositoryId ID of the repository in which the item is stored
+     * @param storageItem the stored item
+     * @return the size and checksums of the given item - won't be null
+     */
+    public synchronized Item get(String repositoryId, StorageItem storageItem) {
+        String key = repositoryId + ":" + storageItem.getPath();
+        Item item = items.get(key);
+        if (item != null && item.getLastModified() != null && item.getLastModified() == storageItem.getModified()) {
+            hits++;
+            return item;
+        }
+        misses++;
+        item = toItem(storageItem);
+        items.put(key, item);
+        return item;
+    }
+
+    /**
+     * Forget a deleted item.
+     *
+     * @param repositoryId ID of the repository in which the item was stored
+     * @param path of the item
+     * @return the last known size and checksums of the item, or null if it is not in the cache
+     */
+    public synchronized Item remove(String repositoryId, String path) {
+        return items.remove(repositoryId + ":" + path);
+    }
+
+    /**
+     * @return the number of items in the cache
+     */
+    public synchronized int getSize() {
+        return items.size();
+    }
+
+    /**
+     * @return the number of lookups served by the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of lookups that needed to read the attributes of the item
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * Read the size and checksums of the given item from its attributes.
+     *
+     * @param storageItem a stored item
+     * @return its size and checksums - won't be null, but the values may be
+     */
+    public static Item toItem(StorageItem storageItem) {
+        Long size = null;
+        if (storageItem instanceof StorageFileItem && ((StorageFileItem) storageItem).getLength() >= 0) {
+            size = ((StorageFileItem) storageItem).getLength();
+        }
+        Long lastModified = storageItem.getModified() > 0 ? storageItem.getModified() : null;
+
+        String sha1 = null;
+        String md5 = null;
+        Map<String, String> attributes = storageItem.getAttributes();
+        if (attributes != null) {
+            sha1 = StringUtils.trimToNull(attributes.get(SHA1_ATTRIBUTE));
+            md5 = StringUtils.trimToNull(attributes.get(MD5_ATTRIBUTE));
+        }
+        return new Item(size, sha1, md5, lastModified);
+    }
+
+}
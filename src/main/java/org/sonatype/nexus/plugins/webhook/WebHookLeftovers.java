@@ -0,0 +1,122 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * File of the deliveries left when Nexus stops (not delivered before the deadline of the shutdown), so that they are
+ * sent at the next startup.<br>
+ * The deliveries are serialized one after the other (see {@link WebHookDelivery#writeTo(java.io.DataOutputStream)}),
+ * with their rendered payloads, and the whole file is compressed : the payloads of the notifications of a busy
+ * repository are very similar. The file is written under a temporary name, then renamed, so that a crash while
+ * writing it doesn't leave a truncated file.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookLeftovers {
+
+    private static final transient int MAGIC = 0x5745424C;
+
+    private static final transient int VERSION = 1;
+
+    private WebHookLeftovers() {
+        super();
+    }
+
+    /**
+     * Write the given deliveries to the given file (replacing it). The deliveries whose payload can't be rendered are
+     * skipped : they couldn't be delivered either.
+     *
+     * @param file to write
+     * @param deliveries to write
+     * @return the number of deliveries written
+     * @throws IOException in case of error when writing the file
+     */
+    public static int write(File file, Collection<WebHookDelivery> deliveries) throws IOException {
+        File tmpFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        int written = 0;
+        DataOutputStream stream = null;
+        try {
+            stream = new DataOutputStream(new BufferedOutputStream(
+                    new GZIPOutputStream(FileUtils.openOutputStream(tmpFile))));
+            stream.writeInt(MAGIC);
+            stream.writeInt(VERSION);
+            for (WebHookDelivery delivery : deliveries) {
+                try {
+                    // rendered before writing anything, so that a failure doesn't corrupt the file - only once : the
+                    // rendered payload is kept by the delivery, and written as is by writeTo()
+                    delivery.getPayload();
+                } catch (IllegalStateException e) {
+                    continue;
+                }
+                stream.writeBoolean(true);
+                delivery.writeTo(stream);
+                written++;
+            }
+            stream.writeBoolean(false);
+            stream.close();
+            stream = null;
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+
+        FileUtils.deleteQuietly(file);
+        if (!tmpFile.renameTo(file)) {
+            FileUtils.deleteQuietly(tmpFile);
+            throw new IOException("Failed to rename " + tmpFile + " to " + file);
+        }
+        return written;
+    }
+
+    /**
+     * Read the deliveries written with {@link #write(File, Collection)}.
+     *
+     * @param file to read
+     * @return the deliveries, in the order they were written - won't be null
+     * @throws IOException in case of error when reading the file, or if it is not a valid file
+     */
+    public static List<WebHookDelivery> read(File file) throws IOException {
+        List<WebHookDelivery> deliveries = new ArrayList<WebHookDelivery>();
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new BufferedInputStream(
+                    new GZIPInputStream(FileUtils.openInputStream(file))));
+            if (stream.readInt() != MAGIC || stream.readInt() != VERSION) {
+                throw new IOException("Unknown format of " + file);
+            }
+            while (stream.readBoolean()) {
+                deliveries.add(WebHookDelivery.readFrom(stream));
+            }
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        return deliveries;
+    }
+
+}
@@ -0,0 +1,139 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.restlet.Context;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.Variant;
+import org.sonatype.nexus.proxy.events.EventInspector;
+import org.sonatype.plexus.rest.resource.AbstractPlexusResource;
+import org.sonatype.plexus.rest.resource.PathProtectionDescriptor;
+import org.sonatype.plexus.rest.resource.PlexusResource;
+
+/**
+ * Expose the plugin's runtime metrics when an HTTP GET request is made to
+ * "NEXUS_HOST/service/local/webhooks/metrics".<br>
+ * The response is "text/plain", with one "name value" metric per line.
+ *
+ * @author Vincent Behar
+ */
+@Component(role = PlexusResource.class, hint = "webHookMetrics")
+public class WebHookMetrics extends AbstractPlexusResource {
+
+    @Requirement
+    private WebHookNotifier webHookNotifier;
+
+    @Requirement(role = EventInspector.class, hint = "webhookEventInspector")
+    private WebHookEventInspector webHookEventInspector;
+
+    @Override
+    public String getResourceUri() {
+        return "/webhooks/metrics";
+    }
+
+    @Override
+    public Object get(Context context, Request request, Response response, Variant variant) throws ResourceException {
+        StringBuilder metrics = new StringBuilder();
+
+        appendLimiter(metrics, "webhooks.concurrency.global", webHookNotifier.getGlobalLimiter());
+        Map<String, ConcurrencyLimiter> limiters = new TreeMap<String, ConcurrencyLimiter>();
+        limiters.putAll(webHookNotifier.getEndpointLimiters());
+        for (Map.Entry<String, ConcurrencyLimiter> entry : limiters.entrySet()) {
+            appendLimiter(metrics, "webhooks.concurrency.endpoint[" + entry.getKey() + "]", entry.getValue());
+        }
+
+        WebHookEventRing ring = webHookEventInspector.getRing();
+        metrics.append("webhooks.events.backlog ").append(ring.getBacklog()).append("\n");
+        metrics.append("webhooks.events.capacity ").append(ring.getCapacity()).append("\n");
+
+        WebHookItemCache itemCache = webHookEventInspector.getItemCache();
+        metrics.append("webhooks.items.cached ").append(itemCache.getSize()).append("\n");
+        metrics.append("webhooks.items.hits ").append(itemCache.getHits()).append("\n");
+        metrics.append("webhooks.items.misses ").append(itemCache.getMisses()).append("\n");
+
+        WebHookQueue queue = webHookNotifier.getQueue();
+        metrics.append("webhooks.queue.size ").append(queue.getSize()).append("\n");
+        metrics.append("webhooks.queue.memoryBytes ").append(queue.getMemoryBytes()).append("\n");
+        metrics.append("webhooks.queue.memoryBudget ").append(queue.getMemoryBudget()).append("\n");
+        metrics.append("webhooks.queue.spilled ").append(queue.getSpilledCount()).append("\n");
+        metrics.append("webhooks.queue.spilledBytes ").append(queue.getSpilledBytes()).append("\n");
+        metrics.append("webhooks.queue.compacted ").append(queue.getCompactedCount()).append("\n");
+        Map<String, Integer> repositorySizes = new TreeMap<String, Integer>(queue.getRepositorySizes());
+        for (Map.Entry<String, Integer> entry : repositorySizes.entrySet()) {
+            metrics.append("webhooks.queue.repository[").append(entry.getKey()).append("].size ")
+                   .append(entry.getValue()).append("\n");
+        }
+
+        metrics.append("webhooks.quarantine.size ").append(webHookNotifier.getQuarantine().getSize()).append("\n");
+        Map<String, WebHookProbe.Health> healths = new TreeMap<String, WebHookProbe.Health>();
+        healths.putAll(webHookNotifier.getProbe().getHealths());
+        for (Map.Entry<String, WebHookProbe.Health> entry : healths.entrySet()) {
+            String prefix = "webhooks.probe.endpoint[" + entry.getKey() + "]";
+            metrics.append(prefix).append(".healthy ").append(entry.getValue().isHealthy() ? 1 : 0).append("\n");
+            metrics.append(prefix).append(".durationMillis ").append(entry.getValue().getDuration() / 1000000)
+                   .append("\n");
+        }
+
+        WebHookOutbox outbox = webHookNotifier.getOutbox();
+        if (outbox != null) {
+            metrics.append("webhooks.outbox.pending ").append(outbox.getPendingCount()).append("\n");
+            metrics.append("webhooks.outbox.claimed ").append(outbox.getClaimedCount()).append("\n");
+        }
+
+        return metrics.toString();
+    }
+
+    /**
+     * Append the metrics of the given {@link ConcurrencyLimiter}
+     *
+     * @param metrics to append to
+     * @param prefix of the metrics names
+     * @param limiter to describe
+     */
+    private void appendLimiter(StringBuilder metrics, String prefix, ConcurrencyLimiter limiter) {
+        metrics.append(prefix).append(".limit ").append(limiter.getLimit()).append("\n");
+        metrics.append(prefix).append(".inFlight ").append(limiter.getInFlight()).append("\n");
+        metrics.append(prefix).append(".minRttMillis ").append(limiter.getMinRtt() / 1000000).append("\n");
+        metrics.append(prefix).append(".lastRttMillis ").append(limiter.getLastRtt() / 1000000).append("\n");
+    }
+
+    @Override
+    public PathProtectionDescriptor getResourceProtection() {
+        // should be new PathProtectionDescriptor(getResourceUri(), "anon");
+        // BUT https://issues.sonatype.org/browse/NEXUS-3951
+        return new PathProtectionDescriptor(getResourceUri(), "authcBasic");
+    }
+
+    @Override
+    public List<Variant> getVariants() {
+        return Arrays.asList(new Variant(MediaType.TEXT_PLAIN));
+    }
+
+    @Override
+    public Object getPayloadInstance() {
+        return null;
+    }
+
+}
@@ -15,45 +15,101 @@
  */
 package org.sonatype.nexus.plugins.webhook;
 
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
 import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.UnrecoverableKeyException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.index.artifact.Gav;
 import org.apache.http.HttpHost;
 import org.apache.http.HttpResponse;
+import org.apache.http.StatusLine;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.conn.ClientConnectionManager;
 import org.apache.http.conn.params.ConnRoutePNames;
+import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
 import org.apache.http.conn.ssl.SSLSocketFactory;
 import org.apache.http.conn.ssl.TrustStrategy;
-import org.apache.http.entity.StringEntity;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.mime.HttpMultipartMode;
+import org.apache.http.entity.mime.MultipartEntity;
+import org.apache.http.entity.mime.content.ContentBody;
+import org.apache.http.entity.mime.content.InputStreamBody;
+import org.apache.http.entity.mime.content.StringBody;
 import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpProtocolParams;
-import org.apache.http.util.EntityUtils;
 import org.codehaus.plexus.component.annotations.Component;
 import org.codehaus.plexus.component.annotations.Requirement;
 import org.codehaus.plexus.logging.Logger;
-import org.json.JSONException;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Disposable;
+import org.codehaus.plexus.personality.plexus.lifecycle.phase.Initializable;
 import org.sonatype.nexus.configuration.application.GlobalHttpProxySettings;
+import org.sonatype.nexus.proxy.IllegalOperationException;
+import org.sonatype.nexus.proxy.ItemNotFoundException;
+import org.sonatype.nexus.proxy.NoSuchRepositoryException;
+import org.sonatype.nexus.proxy.ResourceStoreRequest;
+import org.sonatype.nexus.proxy.StorageException;
+import org.sonatype.nexus.proxy.item.ContentLocator;
+import org.sonatype.nexus.proxy.item.FileContentLocator;
+import org.sonatype.nexus.proxy.item.StorageFileItem;
+import org.sonatype.nexus.proxy.item.StorageItem;
+import org.sonatype.nexus.proxy.registry.RepositoryRegistry;
 import org.sonatype.nexus.proxy.repository.UsernamePasswordRemoteAuthenticationSettings;
 
 /**
- * Class responsible for doing the actual work of making the HTTP requests to the registered webhook listeners.
+ * Class responsible for doing the actual work of making the HTTP requests to the registered webhook listeners.<br>
+ * The requests share a pool of (keep-alive) connections, which can be opened ahead of time by a background
+ * {@link WebHookProbe} : the deliveries to the listeners found unreachable by the probe are sent by a single
+ * "quarantine" worker, so that they don't hold the workers of the healthy listeners.<br>
+ * Each listener is delivered according to the profile of its {@link WebHookEndpoint} : share of the workers,
+ * timeouts, batching of the queued JSON notifications in a single request, compression, and pipelining of the
+ * requests on a connection (see {@link WebHookPipeline}), and attachment of the stored files to their events (in
+ * multipart requests, see {@link WebHookFileBody}).<br>
+ * The workers are started on the first delivery (or when Nexus is started), and stopped with Nexus (or with the
+ * plugin) : the pending deliveries are sent until a deadline, and the ones left are written to a file (see
+ * {@link WebHookLeftovers}), to be sent at the next startup.
  * 
  * @author Vincent Behar
  */
 @Component(role = WebHookNotifier.class)
-public class WebHookNotifier {
+public class WebHookNotifier implements Initializable, Disposable {
 
     @Requirement
     private WebHookPlugin webHookPlugin;
@@ -61,14 +117,353 @@ public class WebHookNotifier {
     @Requirement(role = GlobalHttpProxySettings.class, optional = true)
     private GlobalHttpProxySettings proxySettings;
 
+    @Requirement
+    private RepositoryRegistry repositoryRegistry;
+
     @Requirement
     private Logger logger;
 
-    private final ExecutorService executorService;
+    /** maximum number of worker threads - the actual concurrency is adapted by the {@link ConcurrencyLimiter}s */
+    private static final transient int MAX_THREADS = 32;
+
+    /** initial global concurrency, before adapting to the observed latencies and errors */
+    private static final transient int INITIAL_GLOBAL_CONCURRENCY = 3;
+
+    /** initial per-endpoint concurrency, before adapting to the observed latencies and errors */
+    private static final transient int INITIAL_ENDPOINT_CONCURRENCY = 2;
+
+    /** default memory budget (in bytes) of the pending deliveries, see {@link WebHookQueue} */
+    private static final transient long DEFAULT_QUEUE_MEMORY = 16L * 1024 * 1024;
+
+    /** default size (in bytes) of the file used for the pending deliveries beyond the memory budget */
+    private static final transient int DEFAULT_QUEUE_SPILL = 256 * 1024 * 1024;
+
+    private static final transient String QUEUE_SPILL_FILENAME = "queue.spill";
+
+    /** webhooks.queue.weight.REPOSITORY : weight of a repository in the {@link WebHookQueue} */
+    private static final transient String QUEUE_WEIGHT_PREFIX = "webhooks.queue.weight.";
+
+    /** content type of the attached files */
+    private static final transient String CONTENT_TYPE = "application/octet-stream";
+
+    /** default maximum size (in bytes) of the body of a response - a larger body closes its connection */
+    private static final transient long DEFAULT_RESPONSE_MAX_SIZE = 64 * 1024;
+
+    /** default deadline (in seconds) to deliver the pending notifications, when Nexus stops */
+    private static final transient long DEFAULT_SHUTDOWN_DEADLINE = 10;
+
+    /** delay (in milliseconds) between two checks of the pending deliveries, when Nexus stops */
+    private static final transient long DRAIN_INTERVAL = 100;
+
+    /** how long (in milliseconds) to wait for the workers, once their requests are aborted */
+    private static final transient long TERMINATION_TIMEOUT = 2000;
+
+    private static final transient String LEFTOVERS_FILENAME = "queue.leftovers";
+
+    /** number of recent deliveries traced */
+    private static final transient int TRACE_CAPACITY = 1024;
+
+    /** parameter of a request whose attached content is an {@link InputStreamBody}, to close if it is not sent */
+    private static final transient String STREAMED_CONTENT_PARAM = "webhook.streamed-content";
+
+    /** memory budget (in bytes) of the deliveries to the unhealthy listeners */
+    private static final transient long QUARANTINE_MEMORY = 1024 * 1024;
+
+    /** maximum size (in bytes) of the file used for the deliveries to the unhealthy listeners beyond their budget */
+    private static final transient int QUARANTINE_SPILL = 32 * 1024 * 1024;
+
+    private static final transient String QUARANTINE_SPILL_FILENAME = "quarantine.spill";
+
+    /** delay (in seconds) between two evictions of the idle pooled connections */
+    private static final transient long IDLE_CONNECTIONS_INTERVAL = 30;
+
+    /** how long (in seconds) an idle pooled connection is kept */
+    private static final transient long IDLE_CONNECTIONS_TIMEOUT = 60;
+
+    /** default duration (in seconds) of a claim on an outbox notification */
+    private static final transient long DEFAULT_OUTBOX_LEASE = 300;
+
+    /** delay (in milliseconds) between two polls of the outbox */
+    private static final transient long OUTBOX_POLL_INTERVAL = 1000;
+
+    /** the workers : null until the first delivery (or until Nexus is started) */
+    private volatile ExecutorService executorService;
+
+    /** deliveries taken by the workers, and not completed yet */
+    private final Set<WebHookDelivery> inFlight;
+
+    /** notifications received while Nexus stops : not delivered, but written with the leftovers */
+    private final List<WebHookDelivery> deferred;
+
+    /** true once Nexus stops : the new notifications are deferred */
+    private volatile boolean stopping;
+
+    /** true once the deadline of the shutdown is over : the workers stop, and the new notifications are dropped */
+    private volatile boolean stopped;
+
+    /** deadline (in seconds) to deliver the pending notifications, when Nexus stops */
+    private volatile long shutdownDeadline = DEFAULT_SHUTDOWN_DEADLINE;
+
+    /** the deliveries left when Nexus stops, in the plugin's working directory - null until configured */
+    private volatile File leftoversFile;
+
+    private final WebHookQueue queue;
+
+    /** deliveries to the listeners found unhealthy by the {@link WebHookProbe}, sent by a single worker */
+    private final WebHookQueue quarantine;
+
+    /** shared by all the deliveries, for its pool of connections */
+    private volatile DefaultHttpClient httpClient;
+
+    private volatile WebHookProbe probe;
+
+    /** sends the pipelined requests, on the connections of the {@link #httpClient} */
+    private volatile WebHookPipeline pipeline;
+
+    /** probes and evicts the idle connections */
+    private volatile ScheduledExecutorService prober;
+
+    private ScheduledFuture<?> probeTask;
+
+    private final ConcurrencyLimiter globalLimiter;
+
+    /** maximum size (in bytes) of the body of a response read by the workers, see {@link WebHookResponseBody} */
+    private volatile long maxResponseSize = DEFAULT_RESPONSE_MAX_SIZE;
+
+    private final WebHookTraceRing traces;
+
+    private final ConcurrentMap<String, ConcurrencyLimiter> endpointLimiters;
+
+    /** shared outbox, or null if the notifications are sent directly by this node */
+    private volatile WebHookOutbox outbox;
+
+    private volatile ScheduledExecutorService outboxPoller;
+
+    private final Runnable outboxPollTask;
+
+    /** number of notifications claimed from the outbox and not yet delivered */
+    private final AtomicInteger outboxInProgress;
+
+    /** when the claims of the in-flight deliveries have last been renewed - only used by the {@link #outboxPoller} */
+    private long claimsRenewedTimestamp;
+
+    /** lets the workers take the deliveries whose endpoints allow one more request, see {@link #work(WebHookQueue)} */
+    private final WebHookQueue.Gate endpointGate;
+
+    private final List<DeliveryListener> deliveryListeners;
 
     public WebHookNotifier() {
         super();
-        executorService = Executors.newFixedThreadPool(3);
+        queue = new WebHookQueue(DEFAULT_QUEUE_MEMORY);
+        quarantine = new WebHookQueue(QUARANTINE_MEMORY);
+        traces = new WebHookTraceRing(TRACE_CAPACITY);
+        globalLimiter = new ConcurrencyLimiter(INITIAL_GLOBAL_CONCURRENCY, 1, MAX_THREADS);
+        endpointLimiters = new ConcurrentHashMap<String, ConcurrencyLimiter>();
+        outboxInProgress = new AtomicInteger();
+        inFlight = Collections.newSetFromMap(new ConcurrentHashMap<WebHookDelivery, Boolean>());
+        deferred = new ArrayList<WebHookDelivery>();
+        deliveryListeners = new CopyOnWriteArrayList<DeliveryListener>();
+        outboxPollTask = new Runnable() {
+
+            public void run() {
+                pollOutbox();
+            }
+        };
+        endpointGate = new WebHookQueue.Gate() {
+
+            public boolean tryEnter(String url) {
+                return getEndpointLimiter(url).tryAcquire();
+            }
+        };
+        WebHookQueue.SupersededListener supersededListener = new WebHookQueue.SupersededListener() {
+
+            public void superseded(WebHookDelivery delivery, String supersedingId) {
+                complete(delivery, "Superseded by " + supersedingId);
+            }
+        };
+        queue.setSupersededListener(supersededListener);
+        quarantine.setSupersededListener(supersededListener);
+    }
+
+    /**
+     * Start the workers, if they are not started yet : on the first delivery, or when Nexus is started.
+     * 
+     * @return true if the workers are started, false if the notifier is stopped
+     */
+    public synchronized boolean start() {
+        if (stopping) {
+            return false;
+        }
+        if (executorService != null) {
+            return true;
+        }
+
+        executorService = Executors.newFixedThreadPool(MAX_THREADS + 1);
+        for (int i = 0; i < MAX_THREADS; i++) {
+            executorService.execute(new Runnable() {
+
+                public void run() {
+                    work(queue);
+                }
+            });
+        }
+        executorService.execute(new Runnable() {
+
+            public void run() {
+                work(quarantine);
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Stop the notifier, when Nexus stops : the new notifications are no longer delivered, and the pending ones (queued
+     * or in progress) are delivered until the deadline ("webhooks.shutdown.deadline", in seconds). Then the workers are
+     * stopped (their requests aborted), and the deliveries left - with the notifications received in the meantime - are
+     * written to a file in the plugin's working directory, to be sent at the next startup.<br>
+     * The notifications claimed from the {@link WebHookOutbox} are not written : their claims expire, and they are
+     * delivered by another node (or by this one, once restarted).
+     */
+    public void stop() {
+        synchronized (this) {
+            if (stopping) {
+                return;
+            }
+            stopping = true;
+        }
+        if (prober != null) {
+            prober.shutdownNow();
+        }
+        if (outboxPoller != null) {
+            outboxPoller.shutdownNow();
+        }
+
+        ExecutorService workers = executorService;
+        if (workers != null) {
+            long deadline = System.currentTimeMillis() + shutdownDeadline * 1000;
+            try {
+                while (!isDrained() && System.currentTimeMillis() < deadline) {
+                    Thread.sleep(DRAIN_INTERVAL);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        synchronized (deferred) {
+            stopped = true;
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+        }
+        if (httpClient != null) {
+            // aborts the requests in progress
+            httpClient.getConnectionManager().shutdown();
+        }
+        if (workers != null) {
+            try {
+                if (!workers.awaitTermination(TERMINATION_TIMEOUT, TimeUnit.MILLISECONDS)) {
+                    logger.warn("Some WebHook workers are still running after the shutdown");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<WebHookDelivery> leftovers = new ArrayList<WebHookDelivery>(inFlight);
+        for (WebHookDelivery delivery = queue.poll(); delivery != null; delivery = queue.poll()) {
+            leftovers.add(delivery);
+        }
+        for (WebHookDelivery delivery = quarantine.poll(); delivery != null; delivery = quarantine.poll()) {
+            leftovers.add(delivery);
+        }
+        leftovers.addAll(deferred);
+        for (Iterator<WebHookDelivery> it = leftovers.iterator(); it.hasNext();) {
+            if (it.next().getClaim() != null) {
+                it.remove();
+            }
+        }
+        saveLeftovers(leftovers);
+    }
+
+    /**
+     * Give the queues their default spill files, so that the deliveries over the memory budget are spilled (instead of
+     * dropped) before the configuration is loaded.
+     */
+    public void initialize() {
+        queue.configure(DEFAULT_QUEUE_MEMORY, new File(webHookPlugin.getDataDirectory(), QUEUE_SPILL_FILENAME),
+                        DEFAULT_QUEUE_SPILL);
+        quarantine.configure(QUARANTINE_MEMORY,
+                             new File(webHookPlugin.getDataDirectory(), QUARANTINE_SPILL_FILENAME),
+                             QUARANTINE_SPILL);
+    }
+
+    /**
+     * Stop the notifier when the component is disposed (the plugin is unloaded), if Nexus didn't stop it before.
+     */
+    public void dispose() {
+        stop();
+    }
+
+    /**
+     * @return true if there is no pending delivery, neither queued nor in progress
+     */
+    private boolean isDrained() {
+        return inFlight.isEmpty() && queue.getSize() == 0 && quarantine.getSize() == 0;
+    }
+
+    /**
+     * Write the deliveries left when Nexus stops, to send them at the next startup (see
+     * {@link #restoreLeftovers(File)}).
+     * 
+     * @param leftovers deliveries not delivered before the deadline
+     */
+    private void saveLeftovers(List<WebHookDelivery> leftovers) {
+        if (leftovers.isEmpty()) {
+            return;
+        }
+        File file = leftoversFile;
+        if (file == null) {
+            logger.warn("Dropped " + leftovers.size() + " pending notifications : the plugin is not configured");
+            return;
+        }
+        try {
+            int written = WebHookLeftovers.write(file, leftovers);
+            logger.info("Wrote " + written + " pending notifications to " + file.getAbsolutePath()
+                        + ", they will be sent at the next startup");
+        } catch (IOException e) {
+            logger.error("Failed to write " + leftovers.size() + " pending notifications to " + file.getAbsolutePath()
+                         + ", they are lost", e);
+        }
+    }
+
+    /**
+     * Queue the deliveries left when Nexus stopped (see {@link #stop()}), if any.
+     * 
+     * @param file of the leftovers
+     */
+    private void restoreLeftovers(File file) {
+        if (!file.isFile()) {
+            return;
+        }
+        List<WebHookDelivery> leftovers = null;
+        try {
+            leftovers = WebHookLeftovers.read(file);
+        } catch (IOException e) {
+            logger.error("Failed to read the pending notifications from " + file.getAbsolutePath() + ", they are lost",
+                         e);
+            FileUtils.deleteQuietly(file);
+            return;
+        }
+
+        int queued = 0;
+        for (WebHookDelivery delivery : leftovers) {
+            if (enqueue(delivery, 0)) {
+                queued++;
+            }
+        }
+        FileUtils.deleteQuietly(file);
+        logger.info("Queued " + queued + " notifications pending since the last shutdown");
     }
 
     /**
@@ -78,85 +473,1096 @@ public class WebHookNotifier {
      * @param event
      */
     public void notify(ArtifactStoredEvent event) {
-        Collection<String> urls = webHookPlugin.getWebHooks(event.getRepository().getId(),
-                                                            event.getArtifact().getGroupId(),
-                                                            event.getArtifact().getArtifactId());
+        WebHookRoutes routes = webHookPlugin.getRoutes();
+        Collection<String> urls = routes.getWebHooks(event.getRepository().getId(),
+                                                     event.getArtifact().getGroupId(),
+                                                     event.getArtifact().getArtifactId());
+        for (Iterator<String> it = urls.iterator(); it.hasNext();) {
+            if (!routes.accepts(it.next(), event.getType())) {
+                it.remove();
+            }
+        }
+        notify(event, urls, System.currentTimeMillis());
+    }
+
+    /**
+     * Notify the given webhook listeners (instead of the registered ones) that the given event has occurred.<br>
+     * The notifications are sent asynchronously : the deliveries share a compact {@link WebHookEventRecord} of the
+     * event, and their payloads are rendered when they are sent (or written to the outbox).
+     * 
+     * @param event
+     * @param urls of the webhook listeners to notify
+     * @return the IDs of the deliveries queued by this node (and not added to the outbox), to follow their completion
+     *         with a {@link DeliveryListener} - won't be null
+     */
+    public List<String> notify(ArtifactStoredEvent event, Collection<String> urls) {
+        return notify(event, urls, System.currentTimeMillis());
+    }
+
+    /**
+     * @param event
+     * @param urls of the webhook listeners to notify
+     * @param routedTimestamp when the listeners have been found, for the {@link WebHookTrace traces}
+     * @return the IDs of the deliveries queued by this node - won't be null
+     */
+    private List<String> notify(ArtifactStoredEvent event, Collection<String> urls, long routedTimestamp) {
+        WebHookRoutes routes = webHookPlugin.getRoutes();
+
+        WebHookEventRecord record = WebHookEventRecord.of(event);
+        String compactionKey = getCompactionKey(event);
+        String contentPath = getContentPath(event);
+        long timestamp = event.getTimestamp() != null ? event.getTimestamp() : System.currentTimeMillis();
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending WebHook notification (" + record + ") to " + urls);
+        }
+
+        List<String> queuedIds = new ArrayList<String>(urls.size());
+        WebHookOutbox currentOutbox = outbox;
+        for (String url : urls) {
+            WebHookDelivery delivery = new WebHookDelivery(record, timestamp, url, routes.getTemplate(url));
+            if (compactionKey != null && routes.isCompacted(url)) {
+                delivery = delivery.withCompactionKey(url + " " + compactionKey);
+            }
+            if (contentPath != null && routes.getEndpoint(url).isAttachContent()) {
+                delivery = delivery.withContentPath(contentPath);
+            }
+            if (currentOutbox != null) {
+                try {
+                    currentOutbox.add(delivery);
+                    continue;
+                } catch (IOException e) {
+                    logger.error("Failed to add notification for " + url + " to the outbox "
+                                 + currentOutbox.getDirectory() + ", sending it from this node", e);
+                } catch (IllegalStateException e) {
+                    // the payload can't be rendered : it won't be delivered from this node either
+                    logger.error("Failed to add notification for " + url + " to the outbox", e);
+                    continue;
+                }
+            }
+            if (enqueue(delivery, routedTimestamp)) {
+                queuedIds.add(delivery.getId());
+            }
+        }
+
+        if (currentOutbox != null && !urls.isEmpty() && !stopping) {
+            // don't wait for the next poll to deliver the new notifications
+            outboxPoller.execute(outboxPollTask);
+        }
+        return queuedIds;
+    }
+
+    /**
+     * @param event to notify
+     * @return the path of the stored file in its repository (as given by the {@link WebHookEventInspector}), or null
+     *         if the event has no content (deleted file, metadata) or no path
+     */
+    private static String getContentPath(ArtifactStoredEvent event) {
+        if (event.getType() != WebHookEventType.STORED && event.getType() != WebHookEventType.CACHED) {
+            return null;
+        }
+        return event.getPath();
+    }
+
+    /**
+     * @param event to notify
+     * @return "repository:groupId:artifactId:baseVersion:classifier:extension" if the event is about a snapshot
+     *         (whose successive builds supersede each other), null otherwise
+     */
+    private static String getCompactionKey(ArtifactStoredEvent event) {
+        Gav artifact = event.getArtifact();
+        if (!artifact.isSnapshot()) {
+            return null;
+        }
+        return event.getRepository().getId() + ":" + artifact.getGroupId() + ":" + artifact.getArtifactId() + ":"
+               + artifact.getBaseVersion() + ":" + StringUtils.defaultString(artifact.getClassifier()) + ":"
+               + StringUtils.defaultString(artifact.getExtension());
+    }
+
+    /**
+     * Apply the notifier's configuration, once the plugin's configuration has been (re)loaded : the memory budget of
+     * the {@link WebHookQueue} ("webhooks.queue.memory"), the size of its spill file ("webhooks.queue.spill") and the
+     * weights of the repositories ("webhooks.queue.weight.REPOSITORY"), the maximum size of the responses bodies
+     * ("webhooks.response.maxSize"), the deadline of the shutdown ("webhooks.shutdown.deadline"), the maximum
+     * concurrency of the {@link WebHookEndpoint}s, and the interval of the {@link WebHookProbe}
+     * ("webhooks.probe.interval"). If the "webhooks.outbox.directory" property is set, the notifications are written
+     * to a {@link WebHookOutbox} shared by all the Nexus instances, and delivered by any of them.<br>
+     * The first time, the deliveries left when Nexus stopped are queued again.
+     */
+    public synchronized void configurationReloaded() {
+        Properties configuration = webHookPlugin.getConfiguration();
+
+        long queueMemory = DEFAULT_QUEUE_MEMORY;
+        try {
+            queueMemory = Long.parseLong(configuration.getProperty("webhooks.queue.memory",
+                                                                   Long.toString(queueMemory)));
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid webhooks.queue.memory, using the default (" + queueMemory + " bytes)");
+        }
+        int queueSpill = DEFAULT_QUEUE_SPILL;
+        try {
+            queueSpill = Integer.parseInt(configuration.getProperty("webhooks.queue.spill",
+                                                                    Integer.toString(queueSpill)));
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid webhooks.queue.spill, using the default (" + queueSpill + " bytes)");
+        }
+        queue.configure(queueMemory, new File(webHookPlugin.getDataDirectory(), QUEUE_SPILL_FILENAME), queueSpill);
+        // its own file : the spilled deliveries of the healthy listeners don't wait behind the unhealthy ones
+        quarantine.configure(QUARANTINE_MEMORY,
+                             new File(webHookPlugin.getDataDirectory(), QUARANTINE_SPILL_FILENAME),
+                             Math.min(queueSpill, QUARANTINE_SPILL));
+        queue.setWeights(parseWeights(configuration));
+
+        long responseMaxSize = DEFAULT_RESPONSE_MAX_SIZE;
+        try {
+            responseMaxSize = Long.parseLong(configuration.getProperty("webhooks.response.maxSize",
+                                                                       Long.toString(responseMaxSize)));
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid webhooks.response.maxSize, using the default (" + responseMaxSize + " bytes)");
+        }
+        if (responseMaxSize < 0) {
+            responseMaxSize = DEFAULT_RESPONSE_MAX_SIZE;
+            logger.warn("Invalid webhooks.response.maxSize, using the default (" + responseMaxSize + " bytes)");
+        }
+        maxResponseSize = responseMaxSize;
+
+        long deadline = DEFAULT_SHUTDOWN_DEADLINE;
+        try {
+            deadline = Long.parseLong(configuration.getProperty("webhooks.shutdown.deadline", Long.toString(deadline)));
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid webhooks.shutdown.deadline, using the default (" + deadline + " seconds)");
+        }
+        shutdownDeadline = deadline;
+
+        if (leftoversFile == null) {
+            leftoversFile = new File(webHookPlugin.getDataDirectory(), LEFTOVERS_FILENAME);
+            restoreLeftovers(leftoversFile);
+        }
+
+        WebHookRoutes routes = webHookPlugin.getRoutes();
+        for (Map.Entry<String, ConcurrencyLimiter> entry : endpointLimiters.entrySet()) {
+            entry.getValue().setMaxLimit(routes.getEndpoint(entry.getKey()).getMaxConcurrency(MAX_THREADS));
+        }
+
+        long probeInterval = 0;
+        try {
+            probeInterval = Long.parseLong(configuration.getProperty("webhooks.probe.interval", "0"));
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid webhooks.probe.interval, the listeners won't be probed");
+        }
+        configureProbe(probeInterval);
+
+        String directory = StringUtils.trimToNull(configuration.getProperty("webhooks.outbox.directory"));
+        if (directory == null) {
+            outbox = null;
+            return;
+        }
+
+        String nodeId = StringUtils.trimToNull(configuration.getProperty("webhooks.outbox.node"));
+        if (nodeId == null) {
+            nodeId = ManagementFactory.getRuntimeMXBean().getName();
+        }
+        long lease = DEFAULT_OUTBOX_LEASE;
+        try {
+            lease = Long.parseLong(configuration.getProperty("webhooks.outbox.lease", Long.toString(lease)));
+        } catch (NumberFormatException e) {
+            logger.warn("Invalid webhooks.outbox.lease, using the default (" + lease + " seconds)");
+        }
 
-        String jsonTmp = null;
+        WebHookOutbox newOutbox = null;
         try {
-            jsonTmp = event.toJson();
-        } catch (JSONException e) {
-            logger.error("Failed to prepare JSON for event " + event, e);
+            newOutbox = new WebHookOutbox(new File(directory), nodeId, lease * 1000);
+        } catch (IOException e) {
+            logger.error("Failed to initialize the outbox " + directory + ", notifications will be sent locally", e);
+            outbox = null;
             return;
         }
-        final String json = jsonTmp;
 
-        if (logger.isDebugEnabled()) {
-            logger.debug("Sending WebHook JSON notification (" + json + ") to " + urls);
+        if (outboxPoller == null) {
+            outboxPoller = Executors.newSingleThreadScheduledExecutor();
+            outboxPoller.scheduleWithFixedDelay(outboxPollTask,
+                                                OUTBOX_POLL_INTERVAL,
+                                                OUTBOX_POLL_INTERVAL,
+                                                TimeUnit.MILLISECONDS);
         }
+        outbox = newOutbox;
+        logger.info("Nexus WebHook Plugin notifications will be delivered through the outbox " + directory + " (node "
+                    + newOutbox.getNodeId() + ")");
+    }
 
-        for (final String url : urls) {
-            executorService.execute(new Runnable() {
+    /**
+     * @param configuration of the plugin
+     * @return repository ID / weight in the {@link WebHookQueue}, from the "webhooks.queue.weight.REPOSITORY"
+     *         properties
+     */
+    private Map<String, Integer> parseWeights(Properties configuration) {
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        for (String key : configuration.stringPropertyNames()) {
+            if (!key.startsWith(QUEUE_WEIGHT_PREFIX)) {
+                continue;
+            }
+            String value = configuration.getProperty(key).trim();
+            try {
+                int weight = Integer.parseInt(value);
+                if (weight >= 1) {
+                    weights.put(key.substring(QUEUE_WEIGHT_PREFIX.length()), weight);
+                    continue;
+                }
+            } catch (NumberFormatException e) {
+                // invalid, see below
+            }
+            logger.warn("Invalid " + key + " (" + value + "), using the default weight (1)");
+        }
+        return weights;
+    }
+
+    /**
+     * Schedule the {@link WebHookProbe} of all the configured urls : now (so that the connections are ready when the
+     * first notifications are sent), then periodically.
+     *
+     * @param interval between two probes, in seconds - 0 to disable the probes
+     */
+    private void configureProbe(long interval) {
+        getHttpClient();
+        if (prober == null) {
+            prober = Executors.newSingleThreadScheduledExecutor();
+            prober.scheduleWithFixedDelay(new Runnable() {
 
                 public void run() {
-                    if (logger.isDebugEnabled()) {
-                        logger.debug("Sending WebHook HTTP POST request to " + url);
+                    ClientConnectionManager connectionManager = getHttpClient().getConnectionManager();
+                    connectionManager.closeExpiredConnections();
+                    connectionManager.closeIdleConnections(IDLE_CONNECTIONS_TIMEOUT, TimeUnit.SECONDS);
+                }
+            }, IDLE_CONNECTIONS_INTERVAL, IDLE_CONNECTIONS_INTERVAL, TimeUnit.SECONDS);
+        }
+
+        if (probeTask != null) {
+            probeTask.cancel(false);
+            probeTask = null;
+        }
+        if (interval <= 0) {
+            // every listener is healthy again
+            probe.clear();
+            return;
+        }
+        probeTask = prober.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                probeAll();
+            }
+        }, 0, interval, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Probe all the configured urls, and forget the removed ones.
+     */
+    private void probeAll() {
+        try {
+            Collection<String> urls = webHookPlugin.getRoutes().getAllUrls();
+            probe.retain(urls);
+            HttpHost proxy = getProxy();
+            for (String url : urls) {
+                boolean wasHealthy = probe.isHealthy(url);
+                ConcurrencyLimiter limiter = getEndpointLimiter(url);
+                // warm the connections that the deliveries will need, not the ones they already use
+                int connections = Math.max(1, limiter.getLimit() - limiter.getInFlight());
+                WebHookProbe.Health health = probe.probe(url, proxy, connections);
+                if (wasHealthy && !health.isHealthy()) {
+                    logger.warn("WebHook listener " + url + " is unreachable (" + health.getError()
+                                + "), its notifications are quarantined");
+                    for (WebHookDelivery delivery : queue.removeAll(url)) {
+                        quarantine(delivery);
                     }
+                } else if (!wasHealthy && health.isHealthy()) {
+                    logger.info("WebHook listener " + url + " is reachable again");
+                }
+            }
+        } catch (RuntimeException e) {
+            // don't let the exception cancel the next probes
+            logger.error("Failed to probe the WebHook listeners", e);
+        }
+    }
 
-                    HttpClient httpClient = instantiateHttpClient();
-
-                    try {
-                        HttpPost post = new HttpPost(url);
-                        try {
-                            post.setEntity(new StringEntity(json));
-                        } catch (UnsupportedEncodingException e) {
-                            logger.error("Failed to prepare POST request to " + url, e);
-                            return;
-                        }
-
-                        HttpResponse response = null;
-                        try {
-                            response = httpClient.execute(post);
-                        } catch (IOException e) {
-                            logger.error("Failed to POST request to " + url, e);
-                            return;
-                        }
-
-                        if (response.getStatusLine().getStatusCode() >= 400
-                            && response.getStatusLine().getStatusCode() < 600) {
-                            // either a 4xx or 5xx response from the server, not good
-                            logger.warn("Got a bad HTTP response '" + response.getStatusLine() + "' for " + url);
-                        } else {
-                            if (logger.isDebugEnabled()) {
-                                logger.debug("Response from " + url + " is : " + response.getStatusLine());
-                            }
-                        }
-
-                        try {
-                            EntityUtils.consume(response.getEntity());
-                        } catch (IOException e) {
-                            logger.warn("Failed to consume entity (release connection)", e);
-                        }
-                    } finally {
-                        httpClient.getConnectionManager().shutdown();
+    /**
+     * Renew the claims of the deliveries in flight, recover the expired claims of the {@link WebHookOutbox}, and claim
+     * as many pending notifications as this node can currently deliver.
+     */
+    private void pollOutbox() {
+        final WebHookOutbox currentOutbox = outbox;
+        if (currentOutbox == null) {
+            return;
+        }
+
+        try {
+            // a request may last longer than the lease (slow listener, no read timeout) : its claim is renewed well
+            // before it expires, so that the notification is not recovered (and sent again) by another node
+            long now = System.currentTimeMillis();
+            if (now - claimsRenewedTimestamp >= currentOutbox.getLeaseDuration() / 4) {
+                claimsRenewedTimestamp = now;
+                for (WebHookDelivery delivery : inFlight) {
+                    if (delivery.getClaim() != null) {
+                        WebHookOutbox.renew(delivery.getClaim());
                     }
                 }
-            });
+            }
+
+            int recovered = currentOutbox.recoverExpiredClaims();
+            if (recovered > 0) {
+                logger.warn("Recovered " + recovered + " expired notifications in the outbox "
+                            + currentOutbox.getDirectory());
+            }
+
+            // don't claim more than we can deliver soon, so that other nodes get their share
+            int max = 2 * globalLimiter.getLimit() - outboxInProgress.get();
+            for (WebHookOutbox.Entry entry : currentOutbox.claim(max)) {
+                outboxInProgress.incrementAndGet();
+                if (!enqueue(entry.getDelivery(), 0)) {
+                    // let another node (or a later poll) deliver it
+                    currentOutbox.release(entry);
+                    outboxInProgress.decrementAndGet();
+                }
+            }
+        } catch (RuntimeException e) {
+            // don't let the exception cancel the next polls
+            logger.error("Failed to poll the outbox " + currentOutbox.getDirectory(), e);
         }
     }
 
     /**
-     * Instantiate a new {@link HttpClient} instance, configured to accept all SSL certificates, and use proxy settings
-     * from Nexus.
+     * Add the given delivery to the {@link WebHookQueue}, for the workers - or to the quarantine, if its listener has
+     * been found unhealthy by the {@link WebHookProbe} - starting the workers if needed. While Nexus stops, the
+     * delivery is kept for the leftovers instead (see {@link #stop()}).
      * 
-     * @return an {@link HttpClient} instance - won't be null
+     * @param delivery to add
+     * @param routedTimestamp when the listener of the delivery has been found - 0 if unknown
+     * @return true if the delivery has been queued, false if it has been dropped
      */
-    private HttpClient instantiateHttpClient() {
-        DefaultHttpClient httpClient = new DefaultHttpClient();
+    private boolean enqueue(WebHookDelivery delivery, long routedTimestamp) {
+        String error = null;
+        if (stopping) {
+            synchronized (deferred) {
+                if (!stopped) {
+                    // written with the leftovers, and sent at the next startup
+                    deferred.add(delivery);
+                    return true;
+                }
+            }
+            error = "Dropped : Nexus is stopped";
+            logger.error(error + " - " + delivery);
+        } else {
+            if (executorService == null) {
+                start();
+            }
+            WebHookProbe currentProbe = probe;
+            WebHookQueue target = currentProbe == null || currentProbe.isHealthy(delivery.getUrl()) ? queue
+                    : quarantine;
+            // recorded before a worker can take the delivery : the queued deliveries are traced too
+            WebHookTrace trace = trace(delivery);
+            if (routedTimestamp > 0) {
+                trace.setRoutedTimestamp(routedTimestamp);
+            }
+            try {
+                if (target.offer(delivery)) {
+                    return true;
+                }
+                error = "Dropped : the " + (target == queue ? "queue" : "quarantine") + " is full ("
+                        + target.getSize() + " pending notifications)";
+                logger.error(error + " - " + delivery);
+            } catch (IOException e) {
+                error = "Dropped : failed to spill the queue to disk (" + e.getMessage() + ")";
+                logger.error("Failed to spill the queue to disk, dropping " + delivery, e);
+            }
+        }
 
-        // configure user-agent
-        HttpProtocolParams.setUserAgent(httpClient.getParams(), "Nexus WebHook Plugin");
+        WebHookTrace trace = trace(delivery);
+        trace.setError(error);
+        trace.setCompletedTimestamp(System.currentTimeMillis());
+        completed(trace);
+        return false;
+    }
+
+    /**
+     * Move the given delivery, taken from the {@link WebHookQueue}, to the quarantine : its listener has been found
+     * unhealthy since it was queued.
+     * 
+     * @param delivery to move
+     */
+    private void quarantine(WebHookDelivery delivery) {
+        String error = null;
+        try {
+            if (quarantine.offer(delivery)) {
+                return;
+            }
+            error = "Dropped : the quarantine is full (" + quarantine.getSize() + " pending notifications)";
+            logger.error(error + " - " + delivery);
+        } catch (IOException e) {
+            error = "Dropped : failed to spill the quarantine to disk (" + e.getMessage() + ")";
+            logger.error("Failed to spill the quarantine to disk, dropping " + delivery, e);
+        }
+        WebHookTrace trace = trace(delivery);
+        trace.setError(error);
+        trace.setCompletedTimestamp(System.currentTimeMillis());
+        completed(trace);
+    }
+
+    /**
+     * Main loop of the worker threads : take the deliveries from the given {@link WebHookQueue} (with the other queued
+     * deliveries to the same listener, if its {@link WebHookEndpoint} batches or pipelines them), and deliver them.<br>
+     * A delivery is only taken once the {@link ConcurrencyLimiter} of its endpoint allows one more request (the slot
+     * is held until its requests are completed) : the workers skip the endpoints at their limit instead of waiting for
+     * them, so that a slow listener doesn't delay the notifications of the other ones.
+     * 
+     * @param source of the deliveries
+     */
+    private void work(WebHookQueue source) {
+        while (!Thread.currentThread().isInterrupted()) {
+            WebHookDelivery delivery = null;
+            try {
+                delivery = source.take(endpointGate);
+            } catch (InterruptedException e) {
+                return;
+            }
+            ConcurrencyLimiter endpointLimiter = getEndpointLimiter(delivery.getUrl());
+            WebHookProbe currentProbe = probe;
+            if (source == queue && currentProbe != null && !currentProbe.isHealthy(delivery.getUrl())) {
+                // queued (or spilled) before its listener has been found unhealthy
+                releaseEndpoint(endpointLimiter);
+                quarantine(delivery);
+                continue;
+            }
+
+            WebHookEndpoint endpoint = webHookPlugin.getRoutes().getEndpoint(delivery.getUrl());
+            // the attached files are streamed in their own requests
+            int batchSize = 1;
+            int requests = 1;
+            if (!endpoint.isAttachContent()) {
+                batchSize = endpoint.getBatchSize() > 1 && isJson(delivery.getContentType()) ? endpoint.getBatchSize()
+                        : 1;
+                requests = endpoint.getPipelineDepth();
+            }
+            List<WebHookDelivery> polled = new ArrayList<WebHookDelivery>(1);
+            polled.add(delivery);
+            if (batchSize * requests > 1) {
+                polled.addAll(source.pollBatch(delivery, batchSize * requests - 1));
+            }
+            for (Iterator<WebHookDelivery> it = polled.iterator(); it.hasNext();) {
+                WebHookDelivery batched = it.next();
+                if (batched.getClaim() != null && !WebHookOutbox.renew(batched.getClaim())) {
+                    // its lease expired while it was queued : it is delivered by the node that recovered it
+                    it.remove();
+                    complete(batched, "Claim expired");
+                }
+            }
+            if (polled.isEmpty()) {
+                releaseEndpoint(endpointLimiter);
+                continue;
+            }
+
+            inFlight.addAll(polled);
+
+            List<WebHookTrace> polledTraces = new ArrayList<WebHookTrace>(polled.size());
+            long dequeued = System.currentTimeMillis();
+            for (WebHookDelivery batched : polled) {
+                WebHookTrace trace = trace(batched);
+                trace.setDequeuedTimestamp(dequeued);
+                polledTraces.add(trace);
+            }
+            // one request per batch
+            List<List<WebHookDelivery>> batches = new ArrayList<List<WebHookDelivery>>();
+            List<List<WebHookTrace>> batchesTraces = new ArrayList<List<WebHookTrace>>();
+            for (int i = 0; i < polled.size(); i += batchSize) {
+                int end = Math.min(polled.size(), i + batchSize);
+                batches.add(polled.subList(i, end));
+                batchesTraces.add(polledTraces.subList(i, end));
+            }
+            try {
+                if (batches.size() > 1) {
+                    deliverPipelined(batches, batchesTraces, endpoint);
+                } else {
+                    deliver(polled, polledTraces, endpoint);
+                }
+            } catch (RuntimeException e) {
+                // don't let the exception kill the worker
+                logger.error("Failed to deliver " + polled, e);
+                setError(polledTraces, e.toString());
+            } finally {
+                // the results of the requests have been sampled
+                releaseEndpoint(endpointLimiter);
+                long completed = System.currentTimeMillis();
+                for (WebHookTrace trace : polledTraces) {
+                    trace.setCompletedTimestamp(completed);
+                    completed(trace);
+                }
+                boolean currentlyStopped = stopped;
+                for (int i = 0; i < polled.size(); i++) {
+                    WebHookDelivery batched = polled.get(i);
+                    // once stopped, the requests may have been aborted : the deliveries that were not delivered are
+                    // kept for the leftovers (or for another node, once their claims expire)
+                    if (currentlyStopped && !isDelivered(polledTraces.get(i))) {
+                        continue;
+                    }
+                    inFlight.remove(batched);
+                    if (batched.getClaim() != null) {
+                        WebHookOutbox.complete(batched.getClaim());
+                        outboxInProgress.decrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Release a slot of the given endpoint's limiter, and wake up the workers waiting for its gate (see
+     * {@link #endpointGate}) : the deliveries to this endpoint can be taken again.
+     * 
+     * @param endpointLimiter to release
+     */
+    private void releaseEndpoint(ConcurrencyLimiter endpointLimiter) {
+        endpointLimiter.release();
+        queue.signal();
+        quarantine.signal();
+    }
+
+    /**
+     * @param trace of a completed delivery
+     * @return true if the listener accepted the delivery (2xx or 3xx response)
+     */
+    private static boolean isDelivered(WebHookTrace trace) {
+        return trace.getError() == null && trace.getStatusCode() >= 200 && trace.getStatusCode() < 400;
+    }
+
+    /**
+     * Complete the given delivery without sending it (superseded by a more recent one, or claimed by another node) :
+     * its claim in the outbox is completed, and its trace is recorded.
+     * 
+     * @param delivery that won't be sent
+     * @param reason why it won't be sent
+     */
+    private void complete(WebHookDelivery delivery, String reason) {
+        if (delivery.getClaim() != null) {
+            WebHookOutbox.complete(delivery.getClaim());
+            outboxInProgress.decrementAndGet();
+        }
+        WebHookTrace trace = trace(delivery);
+        trace.setError(reason);
+        trace.setCompletedTimestamp(System.currentTimeMillis());
+        completed(trace);
+    }
+
+    /**
+     * @param delivery to trace
+     * @return the trace of the given delivery, recorded when it has been queued - or now, if it is no longer in the
+     *         {@link WebHookTraceRing} - won't be null
+     */
+    private WebHookTrace trace(WebHookDelivery delivery) {
+        WebHookTrace trace = traces.get(delivery.getId());
+        if (trace == null) {
+            trace = new WebHookTrace(delivery);
+            traces.record(trace);
+        }
+        return trace;
+    }
+
+    /**
+     * Tell the {@link DeliveryListener}s about a completed delivery (delivered or not).
+     * 
+     * @param trace of the completed delivery
+     */
+    private void completed(WebHookTrace trace) {
+        for (DeliveryListener listener : deliveryListeners) {
+            try {
+                listener.completed(trace);
+            } catch (RuntimeException e) {
+                logger.error("Failed to tell " + listener + " about the completed delivery " + trace.getId(), e);
+            }
+        }
+    }
+
+    /**
+     * @return true if the given content type is JSON, so that several payloads can be sent as a JSON array
+     */
+    private static boolean isJson(String contentType) {
+        return "application/json".equals(contentType) || contentType.endsWith("+json");
+    }
+
+    private static void setError(List<WebHookTrace> traces, String error) {
+        for (WebHookTrace trace : traces) {
+            trace.setError(error);
+        }
+    }
+
+    /**
+     * Send the given payloads to their url in a single request, within the limits of the global and per-endpoint
+     * {@link ConcurrencyLimiter}s - the slot of the endpoint is held by the worker, this method blocks until the global
+     * limiter allows the request.
+     * 
+     * @param batch deliveries to the same url, to send
+     * @param batchTraces of the deliveries, to fill
+     * @param endpoint profile of the url
+     */
+    private void deliver(List<WebHookDelivery> batch, List<WebHookTrace> batchTraces, WebHookEndpoint endpoint) {
+        String url = batch.get(0).getUrl();
+        if (!acquire(url, batchTraces)) {
+            return;
+        }
+
+        HttpPost post = null;
+        try {
+            post = newPost(batch, batchTraces, endpoint);
+        } catch (RuntimeException e) {
+            // not sent : nothing to sample
+            globalLimiter.release();
+            throw e;
+        }
+        long sent = System.currentTimeMillis();
+        for (WebHookTrace trace : batchTraces) {
+            trace.setSentTimestamp(sent);
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        try {
+            success = post(post, url, batchTraces);
+        } finally {
+            long rtt = System.nanoTime() - start;
+            // the round-trip times of the endpoints can't be compared : the global limit follows their congestion
+            globalLimiter.release(getEndpointLimiter(url).sample(rtt, success));
+            if (success && probe != null) {
+                probe.delivered(url);
+            }
+        }
+    }
+
+    /**
+     * Send the given batches to their url, pipelined on a single connection (as a single request for the
+     * {@link ConcurrencyLimiter}s). The requests that are not acknowledged by the listener (connection reset or closed
+     * before their response) are then sent again, one by one, as regular requests.<br>
+     * The requests through a proxy are not pipelined.
+     * 
+     * @param batches to the same url, to send
+     * @param batchesTraces of the deliveries of each batch, to fill
+     * @param endpoint profile of the url
+     */
+    private void deliverPipelined(List<List<WebHookDelivery>> batches, List<List<WebHookTrace>> batchesTraces,
+                                  WebHookEndpoint endpoint) {
+        String url = batches.get(0).get(0).getUrl();
+        if (getProxy() != null) {
+            for (int i = 0; i < batches.size(); i++) {
+                deliver(batches.get(i), batchesTraces.get(i), endpoint);
+            }
+            return;
+        }
+
+        List<HttpPost> posts = new ArrayList<HttpPost>(batches.size());
+        for (int i = 0; i < batches.size(); i++) {
+            posts.add(newPost(batches.get(i), batchesTraces.get(i), endpoint));
+        }
+        if (!acquire(url, batchesTraces.get(0))) {
+            for (List<WebHookTrace> batchTraces : batchesTraces) {
+                setError(batchTraces, "Interrupted");
+            }
+            return;
+        }
+
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending " + posts.size() + " pipelined WebHook HTTP POST requests to " + url);
+        }
+        long sent = System.currentTimeMillis();
+        for (List<WebHookTrace> batchTraces : batchesTraces) {
+            for (WebHookTrace trace : batchTraces) {
+                trace.setSentTimestamp(sent);
+            }
+        }
+        long start = System.nanoTime();
+        boolean success = false;
+        WebHookPipeline.Result result = null;
+        try {
+            getHttpClient();
+            result = pipeline.execute(posts, maxResponseSize);
+            success = result.getError() == null;
+            for (int i = 0; i < result.getStatuses().size(); i++) {
+                success &= handleStatus(url, result.getStatuses().get(i), result.getExcerpts().get(i),
+                                        batchesTraces.get(i));
+            }
+        } finally {
+            long rtt = System.nanoTime() - start;
+            globalLimiter.release(getEndpointLimiter(url).sample(rtt, success));
+            if (success && probe != null) {
+                probe.delivered(url);
+            }
+        }
+
+        int acknowledged = result.getStatuses().size();
+        if (acknowledged < batches.size()) {
+            logger.warn("Pipelined requests to " + url + " interrupted (" + result.getError() + "), sending the "
+                        + (batches.size() - acknowledged) + " unacknowledged requests again");
+            for (int i = acknowledged; i < batches.size(); i++) {
+                deliver(batches.get(i), batchesTraces.get(i), endpoint);
+            }
+        }
+    }
+
+    /**
+     * Acquire a slot in the global {@link ConcurrencyLimiter} (the slot in the limiter of the endpoint is already held
+     * by the worker, see {@link #work(WebHookQueue)}) - this method blocks until the request is allowed.
+     * 
+     * @param url of the request
+     * @param batchTraces to fill in case of interruption
+     * @return true if the request is allowed (release the global slot once done), false if interrupted
+     */
+    private boolean acquire(String url, List<WebHookTrace> batchTraces) {
+        try {
+            globalLimiter.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            logger.warn("Interrupted while waiting to POST request to " + url);
+            setError(batchTraces, "Interrupted");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Make the actual HTTP POST request (see {@link #newPost(List, List, WebHookEndpoint)}).
+     * 
+     * @param post the request to send
+     * @param url of the request
+     * @param batchTraces of the deliveries sent in the request, to fill with the response
+     * @return true if the listener handled the request, false in case of error or server-side failure
+     */
+    private boolean post(HttpPost post, String url, List<WebHookTrace> batchTraces) {
+        if (logger.isDebugEnabled()) {
+            logger.debug("Sending WebHook HTTP POST request to " + url + " (" + batchTraces.size() + " notifications)");
+        }
+
+        HttpHost proxy = getProxy();
+        if (proxy != null) {
+            post.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
+        }
+
+        HttpResponse response = null;
+        try {
+            response = getHttpClient().execute(post);
+        } catch (IOException e) {
+            // don't give a broken connection back to the pool
+            post.abort();
+            if (stopped) {
+                // aborted by the shutdown : the delivery is kept for the leftovers
+                logger.info("Aborted request to " + url + " (Nexus is stopped)");
+            } else {
+                logger.error("Failed to POST request to " + url, e);
+            }
+            setError(batchTraces, e.toString());
+            return false;
+        } finally {
+            // the streamed content is closed once written : not if the request failed before
+            InputStreamBody content = (InputStreamBody) post.getParams().getParameter(STREAMED_CONTENT_PARAM);
+            if (content != null) {
+                IOUtils.closeQuietly(content.getInputStream());
+            }
+        }
+
+        WebHookResponseBody body = null;
+        try {
+            // once read to its end, the connection is released to the pool
+            body = WebHookResponseBody.read(response.getEntity(), maxResponseSize);
+            if (!body.isComplete()) {
+                // don't read (nor wait for) the rest of a large body : close the connection instead
+                post.abort();
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Response from " + url + " larger than " + maxResponseSize
+                                 + " bytes, connection closed");
+                }
+            }
+        } catch (IOException e) {
+            post.abort();
+            logger.warn("Failed to read the response from " + url + " (connection closed)", e);
+        }
+
+        return handleStatus(url, response.getStatusLine(), body == null ? null : body.getExcerpt(), batchTraces);
+    }
+
+    /**
+     * @param url of the request
+     * @param statusLine of the response
+     * @param excerpt of the body of the response - may be null
+     * @param batchTraces of the deliveries sent in the request, to fill with the status (and the excerpt of a failed
+     *            response)
+     * @return true if the listener handled the request, false in case of server-side failure
+     */
+    private boolean handleStatus(String url, StatusLine statusLine, String excerpt, List<WebHookTrace> batchTraces) {
+        int statusCode = statusLine.getStatusCode();
+        for (WebHookTrace trace : batchTraces) {
+            trace.setStatusCode(statusCode);
+        }
+        if (statusCode >= 400 && statusCode < 600) {
+            // either a 4xx or 5xx response from the server, not good
+            for (WebHookTrace trace : batchTraces) {
+                trace.setResponse(excerpt);
+            }
+            logger.warn("Got a bad HTTP response '" + statusLine + "' for " + url
+                        + (excerpt == null ? "" : " : " + excerpt));
+        } else {
+            if (logger.isDebugEnabled()) {
+                logger.debug("Response from " + url + " is : " + statusLine);
+            }
+        }
+
+        // a 4xx response is a (fast) answer from the server, only server-side failures are a sign of overload
+        return statusCode < 500 && statusCode != 429;
+    }
+
+    /**
+     * Prepare the HTTP POST request of the given batch : the payload of a single delivery, or the payloads of a batch
+     * as a JSON array (with the IDs of all the deliveries in the {@link WebHookDelivery#ID_HEADER} headers).
+     * 
+     * @param batch deliveries to the same url, to send in a single request
+     * @param batchTraces of the deliveries, to fill with the time of the rendering
+     * @param endpoint profile of the url
+     * @return the HTTP POST request, with its body, headers and timeouts - without proxy - won't be null
+     */
+    private HttpPost newPost(List<WebHookDelivery> batch, List<WebHookTrace> batchTraces, WebHookEndpoint endpoint) {
+        String url = batch.get(0).getUrl();
+        HttpPost post = new HttpPost(url);
+        for (WebHookDelivery delivery : batch) {
+            post.addHeader(WebHookDelivery.ID_HEADER, delivery.getId());
+        }
+        if (batch.size() == 1 && endpoint.isAttachContent() && batch.get(0).getContentPath() != null) {
+            post.setEntity(newMultipart(post, batch.get(0), endpoint));
+        } else {
+            ByteArrayEntity entity = null;
+            try {
+                entity = new ByteArrayEntity(toBody(batch, endpoint.isCompressed()));
+            } catch (IOException e) {
+                // can't happen, everything is in memory
+                throw new IllegalStateException("Failed to prepare the request to " + url, e);
+            }
+            entity.setContentType(batch.get(0).getContentType() + "; charset=UTF-8");
+            if (endpoint.isCompressed()) {
+                entity.setContentEncoding("gzip");
+            }
+            post.setEntity(entity);
+        }
+        if (endpoint.getConnectTimeout() > 0) {
+            HttpConnectionParams.setConnectionTimeout(post.getParams(), endpoint.getConnectTimeout());
+        }
+        if (endpoint.getReadTimeout() > 0) {
+            HttpConnectionParams.setSoTimeout(post.getParams(), endpoint.getReadTimeout());
+        }
+        long rendered = System.currentTimeMillis();
+        for (WebHookTrace trace : batchTraces) {
+            trace.setRenderedTimestamp(rendered);
+        }
+        return post;
+    }
+
+    /**
+     * @param post the request of the body - a streamed content is registered in its parameters (see
+     *            {@link #STREAMED_CONTENT_PARAM})
+     * @param delivery with a content path
+     * @param endpoint profile of the url
+     * @return a multipart body (never compressed), with the payload of the delivery ("event" part) and the content of
+     *         the stored file ("content" part) - or only the payload if the file is gone or too large
+     */
+    private MultipartEntity newMultipart(HttpPost post, WebHookDelivery delivery, WebHookEndpoint endpoint) {
+        MultipartEntity entity = new MultipartEntity(HttpMultipartMode.STRICT);
+        try {
+            entity.addPart("event", new StringBody(new String(delivery.getPayload(), "UTF-8"),
+                                                   delivery.getContentType(),
+                                                   Charset.forName("UTF-8")));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("Failed to prepare the request to " + delivery.getUrl(), e);
+        }
+        ContentBody content = getContent(delivery, endpoint);
+        if (content != null) {
+            entity.addPart("content", content);
+            if (content instanceof InputStreamBody) {
+                post.getParams().setParameter(STREAMED_CONTENT_PARAM, content);
+            }
+        }
+        return entity;
+    }
+
+    /**
+     * @param delivery with a content path
+     * @param endpoint profile of the url
+     * @return the content of the stored file, streamed from the repository storage - or null if the file is gone or
+     *         larger than the {@link WebHookEndpoint#getMaxContentSize()}
+     */
+    private ContentBody getContent(WebHookDelivery delivery, WebHookEndpoint endpoint) {
+        String path = delivery.getContentPath();
+        String filename = path.substring(path.lastIndexOf('/') + 1);
+        try {
+            // local only : the file has been stored or cached, it doesn't have to be fetched again
+            StorageItem item = repositoryRegistry.getRepository(delivery.getRepository())
+                                                 .retrieveItem(false, new ResourceStoreRequest(path, true));
+            if (!(item instanceof StorageFileItem)) {
+                return null;
+            }
+            StorageFileItem file = (StorageFileItem) item;
+            if (file.getLength() > endpoint.getMaxContentSize()) {
+                if (logger.isDebugEnabled()) {
+                    logger.debug("Content of " + path + " not sent to " + delivery.getUrl() + " : " + file.getLength()
+                                 + " bytes, larger than the limit (" + endpoint.getMaxContentSize() + " bytes)");
+                }
+                return null;
+            }
+            ContentLocator locator = file.getContentLocator();
+            if (locator instanceof FileContentLocator) {
+                return new WebHookFileBody(((FileContentLocator) locator).getFile(), CONTENT_TYPE, filename);
+            }
+            // not on the file system : streamed, without a length
+            return new InputStreamBody(file.getInputStream(), CONTENT_TYPE, filename);
+        } catch (NoSuchRepositoryException e) {
+            logger.warn("Repository " + delivery.getRepository() + " not found, the content of " + path
+                        + " won't be sent");
+        } catch (ItemNotFoundException e) {
+            // deleted since the event
+            logger.warn("File " + path + " not found in " + delivery.getRepository() + ", its content won't be sent");
+        } catch (IllegalOperationException e) {
+            logger.warn("Failed to retrieve " + path + " in " + delivery.getRepository(), e);
+        } catch (StorageException e) {
+            logger.warn("Failed to retrieve " + path + " in " + delivery.getRepository(), e);
+        } catch (IOException e) {
+            logger.warn("Failed to read " + path + " in " + delivery.getRepository(), e);
+        }
+        return null;
+    }
+
+    /**
+     * @param batch deliveries to send in a single request
+     * @param compressed true to gzip the body
+     * @return the body of the request : the payload of a single delivery, or a JSON array of the payloads
+     * @throws IOException in case of error when compressing
+     */
+    private static byte[] toBody(List<WebHookDelivery> batch, boolean compressed) throws IOException {
+        if (batch.size() == 1 && !compressed) {
+            return batch.get(0).getPayload();
+        }
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        OutputStream stream = compressed ? new GZIPOutputStream(body) : body;
+        if (batch.size() == 1) {
+            stream.write(batch.get(0).getPayload());
+        } else {
+            stream.write('[');
+            for (int i = 0; i < batch.size(); i++) {
+                if (i > 0) {
+                    stream.write(',');
+                }
+                stream.write(batch.get(i).getPayload());
+            }
+            stream.write(']');
+        }
+        stream.close();
+        return body.toByteArray();
+    }
+
+    /**
+     * @param listener to tell about the completed deliveries
+     */
+    public void addDeliveryListener(DeliveryListener listener) {
+        deliveryListeners.add(listener);
+    }
 
+    /**
+     * @return the global {@link ConcurrencyLimiter}, shared by all endpoints - won't be null
+     */
+    public ConcurrencyLimiter getGlobalLimiter() {
+        return globalLimiter;
+    }
+
+    /**
+     * @return the {@link ConcurrencyLimiter} of each endpoint (url) notified so far - won't be null
+     */
+    public Map<String, ConcurrencyLimiter> getEndpointLimiters() {
+        return Collections.unmodifiableMap(endpointLimiters);
+    }
+
+    /**
+     * @return the {@link WebHookQueue} of the deliveries to the listeners found unhealthy - won't be null
+     */
+    public WebHookQueue getQuarantine() {
+        return quarantine;
+    }
+
+    /**
+     * @return the {@link WebHookProbe} of the listeners - won't be null
+     */
+    public WebHookProbe getProbe() {
+        getHttpClient();
+        return probe;
+    }
+
+    /**
+     * @return the traces of the most recent deliveries - won't be null
+     */
+    public WebHookTraceRing getTraces() {
+        return traces;
+    }
+
+    /**
+     * @return the {@link WebHookQueue} of the pending deliveries - won't be null
+     */
+    public WebHookQueue getQueue() {
+        return queue;
+    }
+
+    /**
+     * @return the shared {@link WebHookOutbox}, or null if the notifications are sent directly by this node
+     */
+    public WebHookOutbox getOutbox() {
+        return outbox;
+    }
+
+    /**
+     * @param url of the webhook listener
+     * @return the {@link ConcurrencyLimiter} for the given url - won't be null
+     */
+    private ConcurrencyLimiter getEndpointLimiter(String url) {
+        ConcurrencyLimiter limiter = endpointLimiters.get(url);
+        if (limiter == null) {
+            int maxConcurrency = webHookPlugin.getRoutes().getEndpoint(url).getMaxConcurrency(MAX_THREADS);
+            endpointLimiters.putIfAbsent(url, new ConcurrencyLimiter(INITIAL_ENDPOINT_CONCURRENCY, 1, maxConcurrency));
+            limiter = endpointLimiters.get(url);
+        }
+        return limiter;
+    }
+
+    /**
+     * @return the {@link HttpClient} shared by all the deliveries (created on first use) - won't be null
+     */
+    private DefaultHttpClient getHttpClient() {
+        DefaultHttpClient client = httpClient;
+        if (client == null) {
+            synchronized (this) {
+                if (httpClient == null) {
+                    httpClient = instantiateHttpClient();
+                    probe = new WebHookProbe(httpClient.getConnectionManager());
+                    pipeline = new WebHookPipeline(httpClient.getConnectionManager(), httpClient.getParams());
+                }
+                client = httpClient;
+            }
+        }
+        return client;
+    }
+
+    /**
+     * @return the HTTP proxy configured in Nexus, or null if there is none
+     */
+    private HttpHost getProxy() {
+        if (proxySettings == null || !proxySettings.isEnabled()) {
+            return null;
+        }
+        return new HttpHost(proxySettings.getHostname(), proxySettings.getPort());
+    }
+
+    /**
+     * Instantiate a new {@link HttpClient} instance, with a pool of connections for all the workers, configured to
+     * accept all SSL certificates. The proxy settings from Nexus are applied on each request (see {@link #getProxy()}),
+     * and the credentials of the proxy are registered once, here.
+     * 
+     * @return an {@link HttpClient} instance - won't be null
+     */
+    private DefaultHttpClient instantiateHttpClient() {
         // configure SSL
         SSLSocketFactory socketFactory = null;
         try {
@@ -175,21 +1581,44 @@ public class WebHookNotifier {
         } catch (KeyStoreException e) {
             throw new RuntimeException(e);
         }
-        httpClient.getConnectionManager().getSchemeRegistry().register(new Scheme("https", 443, socketFactory));
+        SchemeRegistry schemeRegistry = new SchemeRegistry();
+        schemeRegistry.register(new Scheme("http", 80, PlainSocketFactory.getSocketFactory()));
+        schemeRegistry.register(new Scheme("https", 443, socketFactory));
 
-        // configure proxy
-        if (proxySettings != null && proxySettings.isEnabled()) {
-            HttpHost proxy = new HttpHost(proxySettings.getHostname(), proxySettings.getPort());
-            if (UsernamePasswordRemoteAuthenticationSettings.class.isInstance(proxySettings.getProxyAuthentication())) {
-                UsernamePasswordRemoteAuthenticationSettings proxyAuthentication = (UsernamePasswordRemoteAuthenticationSettings) proxySettings.getProxyAuthentication();
-                httpClient.getCredentialsProvider()
-                          .setCredentials(new AuthScope(proxySettings.getHostname(), proxySettings.getPort()),
-                                          new UsernamePasswordCredentials(proxyAuthentication.getUsername(),
-                                                                          proxyAuthentication.getPassword()));
-            }
-            httpClient.getParams().setParameter(ConnRoutePNames.DEFAULT_PROXY, proxy);
+        // configure the pool : all the workers may deliver to the same listener, plus the probes
+        ThreadSafeClientConnManager connectionManager = new ThreadSafeClientConnManager(schemeRegistry);
+        connectionManager.setMaxTotal(2 * MAX_THREADS);
+        connectionManager.setDefaultMaxPerRoute(MAX_THREADS);
+
+        DefaultHttpClient httpClient = new DefaultHttpClient(connectionManager);
+
+        // configure user-agent
+        HttpProtocolParams.setUserAgent(httpClient.getParams(), "Nexus WebHook Plugin");
+
+        // configure the proxy credentials
+        if (proxySettings != null && proxySettings.isEnabled()
+            && UsernamePasswordRemoteAuthenticationSettings.class.isInstance(proxySettings.getProxyAuthentication())) {
+            UsernamePasswordRemoteAuthenticationSettings proxyAuthentication = (UsernamePasswordRemoteAuthenticationSettings) proxySettings.getProxyAuthentication();
+            httpClient.getCredentialsProvider()
+                      .setCredentials(new AuthScope(proxySettings.getHostname(), proxySettings.getPort()),
+                                      new UsernamePasswordCredentials(proxyAuthentication.getUsername(),
+                                                                      proxyAuthentication.getPassword()));
         }
 
         return httpClient;
     }
+
+    /**
+     * Told about the deliveries completed by the notifier : delivered, failed, dropped, or superseded. Called by the
+     * workers : it must not block.
+     */
+    public static interface DeliveryListener {
+
+        /**
+         * @param trace of the completed delivery
+         */
+        void completed(WebHookTrace trace);
+
+    }
+
 }
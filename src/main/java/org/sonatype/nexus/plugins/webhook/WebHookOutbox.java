@@ -0,0 +1,393 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * A file-based outbox of pending notifications, that can be shared (through a shared filesystem) by several Nexus
+ * instances.<br>
+ * Each notification is stored as a file in the "pending" directory, in a sub-directory per period of time (a bucket),
+ * so that the oldest notifications are found without listing all the pending ones. A node claims a notification by
+ * atomically renaming its file to the "claimed" directory : only one node can win the rename, and the file's
+ * last-modified time is the start of its lease (renewed before and during the delivery, see {@link #renew(String)}).
+ * Once delivered, the file is deleted. If a node dies while holding claims, the leases expire and any other node moves
+ * the files back to the "pending" directory, so no notification is lost.<br>
+ * Each claim has its own file name (the notification's ID, the node's ID, and a claim number) : a notification
+ * claimed again (once its previous claim has expired) can't be renewed nor completed through its previous claim.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookOutbox {
+
+    private static final transient String PENDING_DIRNAME = "pending";
+
+    private static final transient String CLAIMED_DIRNAME = "claimed";
+
+    /** separator between the notification's ID, the node's ID and the claim number, in the name of a claimed file */
+    private static final transient String CLAIM_SEPARATOR = "@";
+
+    private static final transient String TMP_PREFIX = ".";
+
+    /** length of the prefix of the IDs (their timestamp, to 100 seconds) that is the name of their bucket */
+    private static final transient int BUCKET_LENGTH = 8;
+
+    private final File pendingDirectory;
+
+    private final File claimedDirectory;
+
+    private final String nodeId;
+
+    private final long leaseDuration;
+
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** number of the last claim of this node */
+    private final AtomicLong claims = new AtomicLong();
+
+    /**
+     * @param directory the (shared) root directory of the outbox
+     * @param nodeId unique ID of this node
+     * @param leaseDuration maximum duration (in milliseconds) of a claim, after which the notification may be claimed by
+     *            another node
+     * @throws IOException if the outbox directories can't be created
+     */
+    public WebHookOutbox(File directory, String nodeId, long leaseDuration) throws IOException {
+        super();
+        this.pendingDirectory = new File(directory, PENDING_DIRNAME);
+        this.claimedDirectory = new File(directory, CLAIMED_DIRNAME);
+        this.nodeId = StringUtils.replace(nodeId, CLAIM_SEPARATOR, "_");
+        this.leaseDuration = leaseDuration;
+        FileUtils.forceMkdir(pendingDirectory);
+        FileUtils.forceMkdir(claimedDirectory);
+    }
+
+    /**
+     * Add a new pending notification to the outbox. The file is written under a temporary name, then renamed, so that
+     * other nodes never see a partial notification.
+     *
+     * @param delivery to add
+     * @throws IOException in case of error when writing the notification
+     */
+    public void add(WebHookDelivery delivery) throws IOException {
+        String id = getId(sequence.incrementAndGet());
+        File pendingFile = getPendingFile(id);
+        File tmpFile = new File(pendingFile.getParentFile(), TMP_PREFIX + id);
+
+        DataOutputStream stream = null;
+        try {
+            stream = new DataOutputStream(FileUtils.openOutputStream(tmpFile));
+            delivery.writeTo(stream);
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+
+        if (!tmpFile.renameTo(pendingFile)) {
+            FileUtils.deleteQuietly(tmpFile);
+            throw new IOException("Failed to add " + id + " to the outbox " + pendingDirectory.getParent());
+        }
+    }
+
+    /**
+     * @param number of the notification on this node
+     * @return the ID of a new notification : IDs sort in (roughly) chronological order, so that the oldest
+     *         notifications are claimed first
+     */
+    private String getId(long number) {
+        return StringUtils.leftPad(Long.toString(System.currentTimeMillis()), 13, '0') + "-" + nodeId + "-" + number;
+    }
+
+    /**
+     * Claim (up to) the given number of pending notifications, starting with the oldest ones : only the oldest buckets
+     * are listed, and the empty ones are removed.
+     *
+     * @param max number of notifications to claim
+     * @return the claimed notifications - may be empty, won't be null
+     */
+    public List<Entry> claim(int max) {
+        List<Entry> entries = new ArrayList<Entry>();
+        if (max <= 0) {
+            return entries;
+        }
+
+        String[] buckets = pendingDirectory.list();
+        if (buckets == null) {
+            return entries;
+        }
+        Arrays.sort(buckets);
+        String currentBucket = getId(0).substring(0, BUCKET_LENGTH);
+
+        for (String bucket : buckets) {
+            if (entries.size() >= max) {
+                break;
+            }
+            File bucketDirectory = new File(pendingDirectory, bucket);
+            String[] ids = bucketDirectory.list();
+            if (ids == null) {
+                continue;
+            }
+            if (ids.length == 0) {
+                if (bucket.compareTo(currentBucket) < 0) {
+                    // no new notification in a past bucket : only fails if one is recovered or released meanwhile
+                    bucketDirectory.delete();
+                }
+                continue;
+            }
+            Arrays.sort(ids);
+            claim(bucketDirectory, ids, max, entries);
+        }
+
+        return entries;
+    }
+
+    /**
+     * Claim the given pending notifications, until there are enough entries.
+     *
+     * @param bucketDirectory of the notifications
+     * @param ids of the notifications, in order
+     * @param max number of entries
+     * @param entries to add the claimed notifications to
+     */
+    private void claim(File bucketDirectory, String[] ids, int max, List<Entry> entries) {
+        for (String id : ids) {
+            if (entries.size() >= max) {
+                break;
+            }
+            if (id.startsWith(TMP_PREFIX)) {
+                continue;
+            }
+
+            // start the lease before the rename, so that the claimed file is never seen as expired
+            File pendingFile = new File(bucketDirectory, id);
+            pendingFile.setLastModified(System.currentTimeMillis());
+            File claimedFile = new File(claimedDirectory, id + CLAIM_SEPARATOR + nodeId + CLAIM_SEPARATOR
+                                                          + claims.incrementAndGet());
+            if (!pendingFile.renameTo(claimedFile)) {
+                // already claimed by another node
+                continue;
+            }
+            claimedFile.setLastModified(System.currentTimeMillis());
+
+            DataInputStream stream = null;
+            try {
+                stream = new DataInputStream(FileUtils.openInputStream(claimedFile));
+                entries.add(new Entry(claimedFile, WebHookDelivery.readFrom(stream)));
+            } catch (IOException e) {
+                // corrupted notification, there is nothing we can do about it
+                FileUtils.deleteQuietly(claimedFile);
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+        }
+    }
+
+    /**
+     * Renew the lease of the given (claimed) notification, before delivering it (a notification that waited for a
+     * while in the queue of this node is not recovered by another node during its delivery), and while it is being
+     * delivered (the request may last longer than the lease).
+     *
+     * @param claim of the notification, see {@link Entry#getClaim()}
+     * @return false if the claim has been lost : the lease has expired, and the notification has been recovered
+     */
+    public static boolean renew(String claim) {
+        return new File(claim).setLastModified(System.currentTimeMillis());
+    }
+
+    /**
+     * Remove the given (claimed) notification from the outbox, once it has been delivered.
+     *
+     * @param entry claimed with {@link #claim(int)}
+     */
+    public void complete(Entry entry) {
+        complete(entry.getClaim());
+    }
+
+    /**
+     * Remove the given (claimed) notification from the outbox, once it has been delivered - this doesn't require the
+     * outbox instance, so that a notification can be completed even if the outbox has been reconfigured meanwhile.
+     *
+     * @param claim of the notification, see {@link Entry#getClaim()}
+     */
+    public static void complete(String claim) {
+        FileUtils.deleteQuietly(new File(claim));
+    }
+
+    /**
+     * Give the given (claimed) notification back to the outbox, so that it can be claimed again by any node.
+     *
+     * @param entry claimed with {@link #claim(int)}
+     * @return true if the notification is pending again
+     */
+    public boolean release(Entry entry) {
+        return moveToPending(entry.file);
+    }
+
+    /**
+     * Move the notifications whose lease has expired (claimed by a dead node) back to the pending directory.<br>
+     * The lease may be renewed between its check and the move : an expired claim is first renamed (so that it can't
+     * be renewed anymore), its lease is checked again, and the claim is given back to its node if it has been renewed
+     * meanwhile.
+     *
+     * @return the number of recovered notifications
+     */
+    public int recoverExpiredClaims() {
+        File[] files = claimedDirectory.listFiles();
+        if (files == null) {
+            return 0;
+        }
+
+        int recovered = 0;
+        long expiration = System.currentTimeMillis() - leaseDuration;
+        for (File file : files) {
+            long lastModified = file.lastModified();
+            // 0 means that the file has just been completed (deleted) by its owner
+            if (lastModified == 0 || lastModified >= expiration) {
+                continue;
+            }
+            if (file.getName().startsWith(TMP_PREFIX)) {
+                // left by a node that died while recovering it
+                if (moveToPending(file)) {
+                    recovered++;
+                }
+                continue;
+            }
+            File recoveringFile = new File(claimedDirectory, TMP_PREFIX + file.getName());
+            if (!file.renameTo(recoveringFile)) {
+                // completed by its owner, or recovered by another node
+                continue;
+            }
+            if (recoveringFile.lastModified() >= expiration) {
+                // renewed just before the rename
+                recoveringFile.renameTo(file);
+            } else if (moveToPending(recoveringFile)) {
+                recovered++;
+            }
+        }
+        return recovered;
+    }
+
+    /**
+     * @param claimedFile to move back to its bucket in the pending directory
+     * @return true if the notification is pending again
+     */
+    private boolean moveToPending(File claimedFile) {
+        String id = StringUtils.substringBefore(StringUtils.removeStart(claimedFile.getName(), TMP_PREFIX),
+                                                CLAIM_SEPARATOR);
+        File pendingFile = getPendingFile(id);
+        pendingFile.getParentFile().mkdirs();
+        return claimedFile.renameTo(pendingFile);
+    }
+
+    /**
+     * @param id of a notification
+     * @return its file in the pending directory
+     */
+    private File getPendingFile(String id) {
+        return new File(new File(pendingDirectory, id.substring(0, BUCKET_LENGTH)), id);
+    }
+
+    /**
+     * @return the number of pending (not claimed) notifications
+     */
+    public int getPendingCount() {
+        File[] buckets = pendingDirectory.listFiles();
+        if (buckets == null) {
+            return 0;
+        }
+        int count = 0;
+        for (File bucket : buckets) {
+            String[] ids = bucket.list();
+            count += ids == null ? 0 : ids.length;
+        }
+        return count;
+    }
+
+    /**
+     * @return the number of claimed (being delivered) notifications, by all nodes
+     */
+    public int getClaimedCount() {
+        String[] ids = claimedDirectory.list();
+        return ids == null ? 0 : ids.length;
+    }
+
+    /**
+     * @return the root directory of the outbox
+     */
+    public File getDirectory() {
+        return pendingDirectory.getParentFile();
+    }
+
+    /**
+     * @return the maximum duration (in milliseconds) of a claim
+     */
+    public long getLeaseDuration() {
+        return leaseDuration;
+    }
+
+    /**
+     * @return the ID of this node
+     */
+    public String getNodeId() {
+        return nodeId;
+    }
+
+    /**
+     * A notification claimed by this node.
+     */
+    public static class Entry {
+
+        private final File file;
+
+        private final WebHookDelivery delivery;
+
+        private Entry(File file, WebHookDelivery delivery) {
+            super();
+            this.file = file;
+            this.delivery = delivery.withClaim(file.getPath());
+        }
+
+        /**
+         * @return the claimed delivery, with its {@link WebHookDelivery#getClaim() claim}
+         */
+        public WebHookDelivery getDelivery() {
+            return delivery;
+        }
+
+        /**
+         * @return the path of the claimed file, that identifies the claim
+         */
+        public String getClaim() {
+            return file.getPath();
+        }
+
+        @Override
+        public String toString() {
+            return "Entry [file=" + file.getName() + ", url=" + delivery.getUrl() + "]";
+        }
+
+    }
+
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.ConnectionReuseStrategy;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.DefaultConnectionReuseStrategy;
+import org.apache.http.message.BasicHttpEntityEnclosingRequest;
+import org.apache.http.params.DefaultedHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpProcessor;
+import org.apache.http.protocol.ImmutableHttpProcessor;
+import org.apache.http.protocol.RequestConnControl;
+import org.apache.http.protocol.RequestContent;
+import org.apache.http.protocol.RequestTargetHost;
+import org.apache.http.protocol.RequestUserAgent;
+
+/**
+ * HTTP/1.1 pipelining of the requests to a webhook listener : several POST requests are written back-to-back on a
+ * single pooled connection (from the {@link ClientConnectionManager} used for the other deliveries), then their
+ * responses are read in the same order.<br>
+ * For a listener with a high latency, the throughput is no longer bound by one round-trip per request and
+ * connection.<br>
+ * A request is acknowledged once its response has been read : if the connection fails (or is closed by the listener)
+ * before that, the remaining requests are not acknowledged, and should be sent again - see {@link Result}. The
+ * requests bodies are expected to be small (in memory), since they are all written before reading any response.<br>
+ * The bodies of the responses are read up to a maximum size (see {@link WebHookResponseBody}) : a larger body closes
+ * the connection, and the next requests are not acknowledged.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookPipeline {
+
+    /** how long (in milliseconds) to wait for a free connection in the pool */
+    private static final transient long POOL_TIMEOUT = 10000;
+
+    /** how long (in seconds) an idle connection is kept in the pool */
+    private static final transient long KEEP_ALIVE = 60;
+
+    private final ClientConnectionManager connectionManager;
+
+    /** defaults of the requests (user-agent, protocol version, ...) */
+    private final HttpParams defaults;
+
+    private final HttpProcessor processor = new ImmutableHttpProcessor(new RequestContent(),
+                                                                       new RequestTargetHost(),
+                                                                       new RequestConnControl(),
+                                                                       new RequestUserAgent());
+
+    private final ConnectionReuseStrategy reuseStrategy = new DefaultConnectionReuseStrategy();
+
+    /**
+     * @param connectionManager in which the connections are taken
+     * @param defaults parameters of the requests
+     */
+    public WebHookPipeline(ClientConnectionManager connectionManager, HttpParams defaults) {
+        super();
+        this.connectionManager = connectionManager;
+        this.defaults = defaults;
+    }
+
+    /**
+     * Send the given requests on a single connection, without waiting for the responses between them. The requests
+     * are sent directly (not through a proxy), and their parameters (timeouts) are the ones of the first request.
+     *
+     * @param requests to the same url
+     * @param maxResponseSize maximum size (in bytes) of the body of a response
+     * @return the status of the acknowledged requests - won't be null
+     */
+    public Result execute(List<HttpPost> requests, long maxResponseSize) {
+        List<StatusLine> statuses = new ArrayList<StatusLine>(requests.size());
+        List<String> excerpts = new ArrayList<String>(requests.size());
+        ManagedClientConnection connection = null;
+        boolean reusable = false;
+        try {
+            HttpHost target = URIUtils.extractHost(requests.get(0).getURI());
+            if (target == null) {
+                throw new IOException("No host in " + requests.get(0).getURI());
+            }
+            HttpParams params = new DefaultedHttpParams(requests.get(0).getParams(), defaults);
+            HttpRoute route = new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+            connection = connectionManager.requestConnection(route, null).getConnection(POOL_TIMEOUT,
+                                                                                        TimeUnit.MILLISECONDS);
+            HttpContext context = new BasicHttpContext();
+            if (connection.isOpen() && connection.isStale()) {
+                connection.close();
+            }
+            if (!connection.isOpen()) {
+                connection.open(route, context, params);
+            }
+            connection.setSocketTimeout(HttpConnectionParams.getSoTimeout(params));
+            context.setAttribute(ExecutionContext.HTTP_CONNECTION, connection);
+            context.setAttribute(ExecutionContext.HTTP_TARGET_HOST, target);
+
+            int sent = 0;
+            IOException sendFailure = null;
+            try {
+                for (HttpPost post : requests) {
+                    // direct connection : the request line has the path, not the absolute url
+                    String uri = URIUtils.rewriteURI(post.getURI(), null).toString();
+                    BasicHttpEntityEnclosingRequest request = new BasicHttpEntityEnclosingRequest(post.getMethod(),
+                                                                                                  uri);
+                    request.setHeaders(post.getAllHeaders());
+                    request.setEntity(post.getEntity());
+                    request.setParams(params);
+                    processor.process(request, context);
+                    connection.sendRequestHeader(request);
+                    connection.sendRequestEntity(request);
+                    sent++;
+                }
+                connection.flush();
+            } catch (IOException e) {
+                // the listener may have closed the connection after answering the first requests : they may still be
+                // read
+                sendFailure = e;
+            }
+
+            for (int i = 0; i < requests.size(); i++) {
+                if (sendFailure != null && i >= sent) {
+                    throw sendFailure;
+                }
+                HttpResponse response = connection.receiveResponseHeader();
+                // skip the informational responses (100-continue)
+                while (response.getStatusLine().getStatusCode() < HttpStatus.SC_OK) {
+                    response = connection.receiveResponseHeader();
+                }
+                WebHookResponseBody body = null;
+                if (canHaveBody(response.getStatusLine().getStatusCode())) {
+                    connection.receiveResponseEntity(response);
+                    body = WebHookResponseBody.read(response.getEntity(), maxResponseSize);
+                }
+                statuses.add(response.getStatusLine());
+                excerpts.add(body == null ? null : body.getExcerpt());
+                if (body != null && !body.isComplete()) {
+                    // the rest of the body is not read : the connection can't be used for the next responses
+                    return new Result(statuses, excerpts, "Response body larger than " + maxResponseSize + " bytes");
+                }
+                if (!reuseStrategy.keepAlive(response, context)) {
+                    // the listener closes the connection : it won't answer the next requests
+                    break;
+                }
+            }
+            reusable = statuses.size() == requests.size();
+        } catch (Exception e) {
+            return new Result(statuses, excerpts, e.toString());
+        } finally {
+            if (connection != null) {
+                if (reusable) {
+                    connection.markReusable();
+                } else {
+                    connection.unmarkReusable();
+                }
+                // back to the pool, or closed if not reusable
+                connectionManager.releaseConnection(connection, KEEP_ALIVE, TimeUnit.SECONDS);
+            }
+        }
+        return new Result(statuses, excerpts, statuses.size() == requests.size() ? null
+                : "Connection closed by the listener");
+    }
+
+    private static boolean canHaveBody(int statusCode) {
+        return statusCode != HttpStatus.SC_NO_CONTENT && statusCode != HttpStatus.SC_NOT_MODIFIED
+               && statusCode != HttpStatus.SC_RESET_CONTENT;
+    }
+
+    /**
+     * Result of a pipeline : the status of the acknowledged requests (the first ones), and the error that prevented the
+     * other ones to be acknowledged.
+     */
+    public static class Result {
+
+        private final List<StatusLine> statuses;
+
+        private final List<String> excerpts;
+
+        private final String error;
+
+        private Result(List<StatusLine> statuses, List<String> excerpts, String error) {
+            super();
+            this.statuses = Collections.unmodifiableList(statuses);
+            this.excerpts = Collections.unmodifiableList(excerpts);
+            this.error = error;
+        }
+
+        /**
+         * @return the status of the responses, in the order of the requests - may be fewer than the requests
+         */
+        public List<StatusLine> getStatuses() {
+            return statuses;
+        }
+
+        /**
+         * @return the excerpts of the bodies of the responses (see {@link WebHookResponseBody#getExcerpt()}), in the
+         *         order of the requests
+         */
+        public List<String> getExcerpts() {
+            return excerpts;
+        }
+
+        /**
+         * @return the error, or null if all the requests have been acknowledged
+         */
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Result [statuses=" + statuses + ", error=" + error + "]";
+        }
+
+    }
+
+}
@@ -15,17 +15,21 @@
  */
 package org.sonatype.nexus.plugins.webhook;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang.StringUtils;
 import org.codehaus.plexus.component.annotations.Component;
 import org.codehaus.plexus.component.annotations.Requirement;
 import org.codehaus.plexus.logging.Logger;
@@ -42,7 +46,30 @@ public class WebHookPlugin {
     /** full path : sonatype-work/nexus/conf/webhooks.properties */
     public static final transient String CONFIG_FILENAME = "webhooks.properties";
 
-    private final Properties configuration;
+    /** name of the plugin's working directory : sonatype-work/nexus/webhooks */
+    public static final transient String DATA_DIRNAME = "webhooks";
+
+    /** full path : sonatype-work/nexus/webhooks/webhooks.properties.cache */
+    public static final transient String CACHE_FILENAME = CONFIG_FILENAME + ".cache";
+
+    private static final transient int CACHE_MAGIC = 0x5745424B;
+
+    private static final transient int CACHE_VERSION = 1;
+
+    /** read-only snapshot of the configuration, replaced on each reload */
+    private volatile Properties configuration;
+
+    /** index of the configuration, replaced on each reload */
+    private volatile WebHookRoutes routes;
+
+    /** length of the configuration's file currently loaded */
+    private long loadedLength = -1;
+
+    /** last-modified time of the configuration's file currently loaded */
+    private long loadedModified = -1;
+
+    /** SHA-1 digest of the configuration's file currently loaded */
+    private byte[] loadedDigest;
 
     @Requirement
     private Logger logger;
@@ -53,6 +80,7 @@ public class WebHookPlugin {
     public WebHookPlugin() {
         super();
         this.configuration = new Properties();
+        this.routes = WebHookRoutes.empty();
     }
 
     /**
@@ -62,7 +90,7 @@ public class WebHookPlugin {
      */
     public void reloadConfigurationQuietly() {
         try {
-            reloadConfiguration();
+            reloadConfiguration(false);
             logger.info("Nexus WebHook Plugin successfully configured from " + getConfigurationFile().getAbsolutePath());
         } catch (IllegalArgumentException e) {
             logger.error("Failed to configure the Nexus WebHook Plugin from "
@@ -75,22 +103,95 @@ public class WebHookPlugin {
 
     /**
      * Reload the plugin's configuration, based on the content of the configuration's file (see
-     * {@link #getConfigurationFile()}).
+     * {@link #getConfigurationFile()}) : an explicit reload, so the file is always read (its length and last-modified
+     * time may not change when it is edited quickly), and is parsed again if its SHA-1 digest changed.<br>
+     * The deliveries already in progress are not affected by a reload.
      * 
      * @throws IOException in case of error when reading the configuration's file content
      * @throws IllegalArgumentException if the configuration's file content contains a malformed Unicode escape
      *             sequence.
      */
     public void reloadConfiguration() throws IOException, IllegalArgumentException {
-        configuration.clear();
+        reloadConfiguration(true);
+    }
 
-        InputStream stream = null;
-        try {
-            stream = FileUtils.openInputStream(getConfigurationFile());
-            configuration.load(stream);
-        } finally {
-            IOUtils.closeQuietly(stream);
+    /**
+     * Reload the plugin's configuration, based on the content of the configuration's file (see
+     * {@link #getConfigurationFile()}).<br>
+     * The parsed configuration is cached in a binary file (see {@link #getCacheFile()}) : at startup, the cache is used
+     * as long as the configuration's file did not change (same length and last-modified time, or same SHA-1 digest).
+     * Otherwise, the file is parsed, and only the properties whose value changed are indexed again.
+     * 
+     * @param explicit true to compare the SHA-1 digest of the file even if its length and last-modified time did not
+     *            change
+     * @throws IOException in case of error when reading the configuration's file content
+     * @throws IllegalArgumentException if the configuration's file content contains a malformed Unicode escape
+     *             sequence.
+     */
+    private synchronized void reloadConfiguration(boolean explicit) throws IOException, IllegalArgumentException {
+        File file = getConfigurationFile();
+        long length = file.length();
+        long modified = file.lastModified();
+        if (!explicit && length == loadedLength && modified == loadedModified) {
+            logger.debug("Configuration file " + file.getAbsolutePath() + " did not change since the last reload");
+            return;
+        }
+
+        // at startup, try the cache before reading the configuration's file
+        if (!explicit && loadedDigest == null) {
+            WebHookRoutes cachedRoutes = readCache(length, modified, null);
+            if (cachedRoutes != null) {
+                apply(cachedRoutes, cachedRoutes.toProperties(), length, modified);
+                return;
+            }
+        }
+
+        byte[] content = FileUtils.readFileToByteArray(file);
+        byte[] digest = digest(content);
+        if (Arrays.equals(digest, loadedDigest)) {
+            // only touched
+            apply(routes, configuration, length, modified);
+            writeCache();
+            return;
         }
+        if (loadedDigest == null) {
+            WebHookRoutes cachedRoutes = readCache(length, modified, digest);
+            if (cachedRoutes != null) {
+                apply(cachedRoutes, cachedRoutes.toProperties(), length, modified);
+                writeCache();
+                return;
+            }
+        }
+
+        Properties newConfiguration = new Properties();
+        newConfiguration.load(new ByteArrayInputStream(content));
+        WebHookRoutes newRoutes = routes.update(newConfiguration);
+        if (logger.isDebugEnabled()) {
+            logger.debug("Reloaded " + newRoutes.size() + " properties from " + file.getAbsolutePath() + ", "
+                         + newRoutes.countChanges(routes) + " changed");
+        }
+
+        loadedDigest = digest;
+        apply(newRoutes, newConfiguration, length, modified);
+        writeCache();
+    }
+
+    /**
+     * Replace the plugin's configuration with the given one (without reading the configuration's file). Only the
+     * properties whose value changed are indexed again.
+     * 
+     * @param newConfiguration the new configuration - won't be modified
+     */
+    public synchronized void configure(Properties newConfiguration) {
+        Properties snapshot = new Properties();
+        snapshot.putAll(newConfiguration);
+        routes = routes.update(snapshot);
+        configuration = snapshot;
+
+        // the next reload should read the configuration's file again
+        loadedLength = -1;
+        loadedModified = -1;
+        loadedDigest = null;
     }
 
     /**
@@ -102,33 +203,122 @@ public class WebHookPlugin {
      * @return a {@link List} of urls (as String) - may be empty, won't be null
      */
     public Collection<String> getWebHooks(String repository, String groupId, String artifactId) {
-        boolean inherited = Boolean.parseBoolean(configuration.getProperty("webhooks.inherited"));
-        String[] defaultUrls = StringUtils.split(configuration.getProperty("webhooks.default", ""), ",");
-        String[] repositoryUrls = StringUtils.split(configuration.getProperty(repository, ""), ",");
-        String[] groupIdUrls = StringUtils.split(configuration.getProperty(repository + "." + groupId, ""), ",");
-        String[] artifactIdUrls = StringUtils.split(configuration.getProperty(repository + "." + groupId + "."
-                                                                              + artifactId, ""), ",");
-
-        Collection<String> urls = new HashSet<String>();
-        urls.addAll(Arrays.asList(artifactIdUrls));
-        if (urls.isEmpty() || inherited) {
-            urls.addAll(Arrays.asList(groupIdUrls));
+        return routes.getWebHooks(repository, groupId, artifactId);
+    }
+
+    /**
+     * @return the indexed configuration - won't be null
+     */
+    public WebHookRoutes getRoutes() {
+        return routes;
+    }
+
+    /**
+     * @return a read-only snapshot of the plugin's configuration - won't be null
+     */
+    public Properties getConfiguration() {
+        return configuration;
+    }
+
+    private void apply(WebHookRoutes newRoutes, Properties newConfiguration, long length, long modified) {
+        routes = newRoutes;
+        configuration = newConfiguration;
+        loadedLength = length;
+        loadedModified = modified;
+    }
+
+    /**
+     * Read the cached configuration, if it matches the configuration's file.
+     * 
+     * @param length of the configuration's file
+     * @param modified last-modified time of the configuration's file
+     * @param digest SHA-1 digest of the configuration's file, or null if not yet computed
+     * @return the cached configuration, or null if there is no valid cache
+     */
+    private WebHookRoutes readCache(long length, long modified, byte[] digest) {
+        File cacheFile = getCacheFile();
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new BufferedInputStream(FileUtils.openInputStream(cacheFile)));
+            if (stream.readInt() != CACHE_MAGIC || stream.readInt() != CACHE_VERSION) {
+                return null;
+            }
+            long cachedLength = stream.readLong();
+            long cachedModified = stream.readLong();
+            byte[] cachedDigest = new byte[stream.readInt()];
+            stream.readFully(cachedDigest);
+            if (cachedLength != length || (cachedModified != modified && !Arrays.equals(cachedDigest, digest))) {
+                return null;
+            }
+
+            WebHookRoutes cachedRoutes = WebHookRoutes.readFrom(stream);
+            loadedDigest = cachedDigest;
+            logger.debug("Loaded " + cachedRoutes.size() + " properties from the cache " + cacheFile.getAbsolutePath());
+            return cachedRoutes;
+        } catch (IOException e) {
+            logger.warn("Ignoring the invalid cache " + cacheFile.getAbsolutePath(), e);
+            return null;
+        } finally {
+            IOUtils.closeQuietly(stream);
         }
-        if (urls.isEmpty() || inherited) {
-            urls.addAll(Arrays.asList(repositoryUrls));
+    }
+
+    /**
+     * Write the current configuration to the cache. In case of error, we won't throw exceptions but log them : the
+     * cache is only an optimization.
+     */
+    private void writeCache() {
+        File cacheFile = getCacheFile();
+        File tmpFile = new File(cacheFile.getParentFile(), cacheFile.getName() + ".tmp");
+
+        DataOutputStream stream = null;
+        try {
+            stream = new DataOutputStream(new BufferedOutputStream(FileUtils.openOutputStream(tmpFile)));
+            stream.writeInt(CACHE_MAGIC);
+            stream.writeInt(CACHE_VERSION);
+            stream.writeLong(loadedLength);
+            stream.writeLong(loadedModified);
+            stream.writeInt(loadedDigest.length);
+            stream.write(loadedDigest);
+            routes.writeTo(stream);
+            stream.close();
+            stream = null;
+
+            FileUtils.deleteQuietly(cacheFile);
+            if (!tmpFile.renameTo(cacheFile)) {
+                logger.warn("Failed to write the cache " + cacheFile.getAbsolutePath());
+            }
+        } catch (IOException e) {
+            logger.warn("Failed to write the cache " + cacheFile.getAbsolutePath(), e);
+        } finally {
+            IOUtils.closeQuietly(stream);
         }
-        if (urls.isEmpty() || inherited) {
-            urls.addAll(Arrays.asList(defaultUrls));
+    }
+
+    private static byte[] digest(byte[] content) {
+        try {
+            return MessageDigest.getInstance("SHA-1").digest(content);
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
         }
+    }
 
-        return urls;
+    /**
+     * @return the plugin's working directory, for the files managed by the plugin itself
+     */
+    public File getDataDirectory() {
+        return nexus.getNexusConfiguration().getWorkingDirectory(DATA_DIRNAME);
     }
 
     /**
-     * @return the plugin's configuration - won't be null
+     * @return the binary cache of the plugin's configuration
      */
-    public Properties getConfiguration() {
-        return configuration;
+    public File getCacheFile() {
+        return new File(getDataDirectory(), CACHE_FILENAME);
     }
 
     /**
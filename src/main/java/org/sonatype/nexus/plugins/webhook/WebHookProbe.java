@@ -0,0 +1,224 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import org.apache.http.HttpHost;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.apache.http.conn.ManagedClientConnection;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.BasicHttpContext;
+
+/**
+ * Background health probe of the webhook listeners : for each url, resolve its host and open (TCP + TLS) pooled
+ * connections ahead of time, in the {@link ClientConnectionManager} used for the actual deliveries.<br>
+ * The first deliveries after a (re)start don't pay for the connections setup, and the unreachable listeners are known
+ * before a real notification fails : see {@link #isHealthy(String)}.<br>
+ * Nothing is sent to the listeners : a probe only opens connections.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookProbe {
+
+    /** connect timeout (in milliseconds) of a probe */
+    private static final transient int CONNECT_TIMEOUT = 10000;
+
+    /** how long (in milliseconds) to wait for a free connection in the pool */
+    private static final transient long POOL_TIMEOUT = 1000;
+
+    /** how long (in seconds) an idle warmed connection is kept in the pool */
+    private static final transient long KEEP_ALIVE = 60;
+
+    private final ClientConnectionManager connectionManager;
+
+    /** url / result of its last probe */
+    private final ConcurrentMap<String, Health> healths = new ConcurrentHashMap<String, Health>();
+
+    /**
+     * @param connectionManager in which the connections are opened
+     */
+    public WebHookProbe(ClientConnectionManager connectionManager) {
+        super();
+        this.connectionManager = connectionManager;
+    }
+
+    /**
+     * Probe the given url, and record the result.
+     *
+     * @param url of a webhook listener
+     * @param proxy to connect through, or null for a direct connection
+     * @param connections number of connections to open (at least 1)
+     * @return the result of the probe - won't be null
+     */
+    public Health probe(String url, HttpHost proxy, int connections) {
+        long start = System.nanoTime();
+        Health health = null;
+        List<ManagedClientConnection> opened = new ArrayList<ManagedClientConnection>();
+        try {
+            HttpHost target = URIUtils.extractHost(new URI(url));
+            if (target == null) {
+                throw new IllegalArgumentException("No host in " + url);
+            }
+            // fail fast, with a meaningful error, if the host can't be resolved
+            InetAddress.getAllByName(target.getHostName());
+
+            boolean secure = "https".equalsIgnoreCase(target.getSchemeName());
+            HttpRoute route = proxy == null ? new HttpRoute(target, null, secure)
+                    : new HttpRoute(target, null, proxy, secure);
+            HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setConnectionTimeout(params, CONNECT_TIMEOUT);
+            HttpConnectionParams.setSoTimeout(params, CONNECT_TIMEOUT);
+
+            // hold them all, so that the pool gives distinct connections
+            for (int i = 0; i < Math.max(1, connections); i++) {
+                ManagedClientConnection connection = connectionManager.requestConnection(route, null)
+                                                                      .getConnection(POOL_TIMEOUT,
+                                                                                     TimeUnit.MILLISECONDS);
+                opened.add(connection);
+                if (connection.isOpen() && connection.isStale()) {
+                    connection.close();
+                }
+                if (!connection.isOpen()) {
+                    connection.open(route, new BasicHttpContext(), params);
+                }
+                // a tunnel (https through a proxy) is only established by an actual request
+                if (!route.isTunnelled()) {
+                    connection.markReusable();
+                }
+            }
+            health = new Health(true, System.currentTimeMillis(), System.nanoTime() - start, null);
+        } catch (ConnectionPoolTimeoutException e) {
+            // all the connections are used by the deliveries : nothing to warm, and their results are better than ours
+            Health previous = healths.get(url);
+            return previous != null ? previous : new Health(true, System.currentTimeMillis(), 0, null);
+        } catch (Exception e) {
+            health = new Health(false, System.currentTimeMillis(), System.nanoTime() - start, e.toString());
+        } finally {
+            for (ManagedClientConnection connection : opened) {
+                // back to the pool (or closed, if not reusable)
+                connectionManager.releaseConnection(connection, KEEP_ALIVE, TimeUnit.SECONDS);
+            }
+        }
+        healths.put(url, health);
+        return health;
+    }
+
+    /**
+     * @param url of a webhook listener
+     * @return false if the last probe of the given url failed, true otherwise (even if it has never been probed)
+     */
+    public boolean isHealthy(String url) {
+        Health health = healths.get(url);
+        return health == null || health.healthy;
+    }
+
+    /**
+     * Record that an actual delivery to the given url succeeded : no need to wait for the next probe to know that an
+     * unhealthy listener is back.
+     *
+     * @param url of a webhook listener
+     */
+    public void delivered(String url) {
+        Health health = healths.get(url);
+        if (health != null && !health.healthy) {
+            healths.replace(url, health, new Health(true, System.currentTimeMillis(), 0, null));
+        }
+    }
+
+    /**
+     * Forget the urls that are not in the given ones (removed from the configuration).
+     *
+     * @param urls the configured urls
+     */
+    public void retain(Collection<String> urls) {
+        healths.keySet().retainAll(urls);
+    }
+
+    /**
+     * Forget all the results : every url is considered healthy.
+     */
+    public void clear() {
+        healths.clear();
+    }
+
+    /**
+     * @return url / result of its last probe - won't be null
+     */
+    public Map<String, Health> getHealths() {
+        return Collections.unmodifiableMap(healths);
+    }
+
+    /**
+     * Result of a probe.
+     */
+    public static class Health {
+
+        private final boolean healthy;
+
+        private final long timestamp;
+
+        /** duration of the probe, in nanoseconds */
+        private final long duration;
+
+        private final String error;
+
+        private Health(boolean healthy, long timestamp, long duration, String error) {
+            super();
+            this.healthy = healthy;
+            this.timestamp = timestamp;
+            this.duration = duration;
+            this.error = error;
+        }
+
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getDuration() {
+            return duration;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        @Override
+        public String toString() {
+            return "Health [healthy=" + healthy + ", timestamp=" + timestamp + ", duration=" + duration + ", error="
+                   + error + "]";
+        }
+
+    }
+
+}
@@ -0,0 +1,878 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Queue of the pending {@link WebHookDelivery deliveries}, bounded by a memory budget (in bytes) instead of a number
+ * of elements.<br>
+ * The deliveries are queued per repository, and the repositories are served by a deficit round-robin : in each round,
+ * a repository can send up to its weight (see {@link #setWeights(Map)}) times {@link #QUANTUM} bytes of payloads, so
+ * that a busy repository (a CI snapshots repository, ...) doesn't delay the notifications of the other ones. The
+ * deliveries of a repository are kept in FIFO order.<br>
+ * As long as the deliveries fit in the budget, they are kept in the heap. Beyond, they are serialized to a
+ * memory-mapped file (the "spill" file), so that a burst of notifications (or a slow listener) doesn't fill the heap :
+ * the spilled deliveries live in the OS page cache, and are paged back in the heap as the workers catch up. The spill
+ * file is split in chunks, and each repository has its own FIFO of chunks (its segment) : the repositories are paged
+ * back in round-robin, so that a quiet repository doesn't wait behind the spilled backlog of a busy one. Once
+ * something has been spilled for a repository, its new deliveries are spilled too (until they are paged back in), so
+ * that its FIFO order is kept - the other repositories still use the memory left.<br>
+ * Deliveries with a {@link WebHookDelivery#getCompactionKey() compaction key} are "last write wins" : a new delivery
+ * replaces the queued one with the same key (in place if it is in memory, otherwise the spilled one is skipped when
+ * paged back in), so that only the most recent one is sent.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookQueue {
+
+    /** bytes of payloads sent per round by a repository of weight 1 */
+    public static final transient int QUANTUM = 4096;
+
+    /** key of the deliveries without repository */
+    private static final transient String NO_REPOSITORY = "";
+
+    /** repository ID / its deliveries in memory */
+    private final Map<String, RepositoryQueue> repositories = new HashMap<String, RepositoryQueue>();
+
+    /** the repositories with deliveries in memory, in round-robin order */
+    private final LinkedList<RepositoryQueue> rounds = new LinkedList<RepositoryQueue>();
+
+    /** repository ID / its spilled deliveries */
+    private final Map<String, Segment> segments = new HashMap<String, Segment>();
+
+    /** the repositories with spilled deliveries, in the round-robin order of the page-ins */
+    private final LinkedList<Segment> spillRounds = new LinkedList<Segment>();
+
+    /** repository ID / weight, for the repositories that don't have the default weight (1) */
+    private Map<String, Integer> weights = Collections.emptyMap();
+
+    /** number of non-empty slots in memory */
+    private int memoryCount;
+
+    /** estimated heap size of the deliveries in memory */
+    private long memoryBytes;
+
+    private long memoryBudget;
+
+    /** compaction key / slot of the queued delivery with this key, if it is in memory */
+    private final Map<String, Slot> memoryKeys = new HashMap<String, Slot>();
+
+    /** compaction key / ID of the most recent delivery with this key, if it is spilled */
+    private final Map<String, String> spilledKeys = new HashMap<String, String>();
+
+    /** number of spilled deliveries that have been superseded, and will be skipped */
+    private int spilledSuperseded;
+
+    /** order of the slots, across the urls of a repository */
+    private long sequence;
+
+    /** number of deliveries superseded so far */
+    private long compactedCount;
+
+    private File spillFile;
+
+    private int spillCapacity;
+
+    /** lazily mapped on the first spill - null if nothing is spilled */
+    private SpillFile spill;
+
+    /** told about the superseded deliveries, or null */
+    private SupersededListener supersededListener;
+
+    /**
+     * @param memoryBudget maximum heap size (in bytes) of the deliveries kept in memory
+     */
+    public WebHookQueue(long memoryBudget) {
+        super();
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * Change the memory budget and the spill file. A new spill file is only used once the current one is drained :
+     * the current one is then closed.
+     *
+     * @param memoryBudget maximum heap size (in bytes) of the deliveries kept in memory
+     * @param spillFile file used for the deliveries that don't fit in memory - null to disable spilling
+     * @param spillCapacity size (in bytes) of the spill file
+     */
+    public synchronized void configure(long memoryBudget, File spillFile, int spillCapacity) {
+        this.memoryBudget = memoryBudget;
+        this.spillFile = spillFile;
+        this.spillCapacity = spillCapacity;
+        closeDrainedSpill();
+    }
+
+    /**
+     * Change the weights of the repositories : a repository with a weight of 2 sends twice as many notifications as
+     * a repository with the default weight (1), when both have pending deliveries.
+     *
+     * @param weights repository ID / weight (at least 1)
+     */
+    public synchronized void setWeights(Map<String, Integer> weights) {
+        this.weights = new HashMap<String, Integer>(weights);
+    }
+
+    /**
+     * @param supersededListener told about the deliveries superseded by a more recent one - null to ignore them
+     */
+    public synchronized void setSupersededListener(SupersededListener supersededListener) {
+        this.supersededListener = supersededListener;
+    }
+
+    /**
+     * Add the given delivery at the end of the queue - or in place of the queued delivery with the same compaction
+     * key.
+     *
+     * @param delivery to add
+     * @return true if the delivery has been queued, false if both the memory budget and the spill file are full
+     * @throws IOException if the spill file can't be mapped
+     */
+    public boolean offer(WebHookDelivery delivery) throws IOException {
+        // the serialization (which renders the payload) is done outside of the lock, only when the delivery has to be
+        // spilled : only the copy into the spill file is done under the lock
+        byte[] bytes = null;
+        while (true) {
+            synchronized (this) {
+                Boolean queued = offer(delivery, bytes);
+                if (queued != null) {
+                    return queued;
+                }
+            }
+            bytes = delivery.toBytes();
+        }
+    }
+
+    /**
+     * @param delivery to add
+     * @param bytes of the serialized delivery - null if not serialized yet
+     * @return true if the delivery has been queued, false if both the memory budget and the spill file are full, null
+     *         if the delivery has to be spilled but is not serialized yet
+     * @throws IOException if the spill file can't be mapped
+     */
+    private Boolean offer(WebHookDelivery delivery, byte[] bytes) throws IOException {
+        String key = delivery.getCompactionKey();
+        int size = delivery.getSize();
+        String repository = getRepository(delivery);
+        Slot superseded = key == null ? null : memoryKeys.get(key);
+
+        if (superseded != null) {
+            // last write wins, and keeps the place of the superseded delivery (a delivery with the same key - so the
+            // same repository - can't be spilled, as the spilled ones are behind the ones in memory)
+            WebHookDelivery previous = superseded.delivery;
+            memoryBytes += size - previous.getSize();
+            superseded.delivery = delivery;
+            compactedCount++;
+            if (supersededListener != null) {
+                supersededListener.superseded(previous, delivery.getId());
+            }
+            return true;
+        }
+
+        if (!segments.containsKey(repository) && memoryBytes + size <= memoryBudget) {
+            Slot slot = new Slot(delivery, sequence++);
+            getRepositoryQueue(repository).add(slot);
+            memoryCount++;
+            memoryBytes += size;
+            if (key != null) {
+                memoryKeys.put(key, slot);
+            }
+            notify();
+            return true;
+        }
+
+        if (spill == null && (spillFile == null || spillCapacity <= 0)) {
+            return false;
+        }
+        if (bytes == null) {
+            return null;
+        }
+        if (spill == null) {
+            spill = new SpillFile(spillFile, spillCapacity);
+        }
+        Segment segment = segments.get(repository);
+        if (segment == null) {
+            segment = new Segment(repository);
+        }
+        if (!spill.write(segment, bytes)) {
+            return false;
+        }
+        if (segment.count == 1) {
+            segments.put(repository, segment);
+            spillRounds.add(segment);
+        }
+        if (key != null && spilledKeys.put(key, delivery.getId()) != null) {
+            // the spilled one will be skipped (and told to the listener) when paged in
+            spilledSuperseded++;
+            compactedCount++;
+        }
+        notify();
+        return true;
+    }
+
+    /**
+     * Retrieve and remove the head of the queue, waiting if necessary until a delivery is available.
+     *
+     * @return the head of the queue - won't be null
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized WebHookDelivery take() throws InterruptedException {
+        return take(null);
+    }
+
+    /**
+     * Retrieve and remove the head of the queue, skipping the deliveries that the given gate doesn't let through,
+     * waiting if necessary until a delivery is available.
+     *
+     * @param gate to enter for the delivery to take - null to take the head of the queue
+     * @return the head of the queue - won't be null
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public synchronized WebHookDelivery take(Gate gate) throws InterruptedException {
+        WebHookDelivery delivery = poll(gate);
+        while (delivery == null) {
+            wait();
+            delivery = poll(gate);
+        }
+        return delivery;
+    }
+
+    /**
+     * Wake up the takers waiting for a gate (see {@link #take(Gate)}) : a gate may open without any new delivery.
+     */
+    public synchronized void signal() {
+        notifyAll();
+    }
+
+    /**
+     * Retrieve and remove the head of the queue, without waiting : the oldest delivery of the next repository allowed
+     * to send.
+     *
+     * @return the head of the queue, or null if the queue is empty
+     */
+    public synchronized WebHookDelivery poll() {
+        return poll(null);
+    }
+
+    /**
+     * Retrieve and remove the head of the queue, without waiting : the oldest delivery of the next repository allowed
+     * to send, whose url is let through by the given gate. The repositories whose urls are all closed keep their turn
+     * (and their credit) for the next polls.
+     *
+     * @param gate to enter for the delivery to take - null to take the head of the queue
+     * @return the head of the queue, or null if the queue is empty or if the gate is closed for all its urls
+     */
+    public synchronized WebHookDelivery poll(Gate gate) {
+        pageIn();
+        Set<String> closedUrls = Collections.emptySet();
+        // number of repositories skipped in a row, as all their urls are closed
+        int gated = 0;
+        while (gated < rounds.size()) {
+            RepositoryQueue repositoryQueue = rounds.getFirst();
+            Slot slot = repositoryQueue.peek(closedUrls);
+            if (slot == null) {
+                if (repositoryQueue.peek() == null) {
+                    // nothing left : out of the rounds, and its deficit is reset
+                    rounds.removeFirst();
+                    repositories.remove(repositoryQueue.repository);
+                } else {
+                    gated++;
+                    rounds.addLast(rounds.removeFirst());
+                }
+                continue;
+            }
+            if (!repositoryQueue.credited) {
+                repositoryQueue.deficit += getWeight(repositoryQueue.repository) * QUANTUM;
+                repositoryQueue.credited = true;
+            }
+            int size = slot.delivery.getSize();
+            if (size > repositoryQueue.deficit) {
+                // wait for the next round
+                repositoryQueue.credited = false;
+                rounds.addLast(rounds.removeFirst());
+                gated = 0;
+                continue;
+            }
+            if (gate != null && !gate.tryEnter(slot.delivery.getUrl())) {
+                if (closedUrls.isEmpty()) {
+                    closedUrls = new HashSet<String>();
+                }
+                closedUrls.add(slot.delivery.getUrl());
+                continue;
+            }
+
+            // its place in the FIFO of the repository is skipped once it reaches the head
+            repositoryQueue.deficit -= size;
+            WebHookDelivery delivery = slot.delivery;
+            clear(slot);
+            repositoryQueue.prune(slot.url);
+            return delivery;
+        }
+        return null;
+    }
+
+    /**
+     * Retrieve and remove the oldest deliveries to the same url (and with the same content type) as the given one,
+     * without waiting : only the deliveries in memory are considered, the spilled ones will be batched once paged
+     * back in.
+     *
+     * @param head a delivery previously taken from this queue
+     * @param max maximum number of deliveries to retrieve
+     * @return the deliveries, in the queue order - may be empty, won't be null
+     */
+    public synchronized List<WebHookDelivery> pollBatch(WebHookDelivery head, int max) {
+        List<WebHookDelivery> batch = new ArrayList<WebHookDelivery>();
+        RepositoryQueue repositoryQueue = repositories.get(getRepository(head));
+        LinkedList<Slot> urlSlots = repositoryQueue == null ? null : repositoryQueue.urls.get(head.getUrl());
+        if (urlSlots == null) {
+            return batch;
+        }
+        for (Iterator<Slot> it = urlSlots.iterator(); it.hasNext() && batch.size() < max;) {
+            Slot slot = it.next();
+            if (slot.delivery == null) {
+                it.remove();
+            } else if (slot.delivery.getUrl().equals(head.getUrl())
+                       && slot.delivery.getContentType().equals(head.getContentType())) {
+                batch.add(slot.delivery);
+                // a batch is not a way around the fair share of the repository (its slot in the FIFO of the
+                // repository is skipped once it reaches the head)
+                repositoryQueue.deficit -= slot.delivery.getSize();
+                clear(slot);
+                it.remove();
+            }
+        }
+        if (urlSlots.isEmpty()) {
+            repositoryQueue.urls.remove(head.getUrl());
+        }
+        return batch;
+    }
+
+    /**
+     * Retrieve and remove all the deliveries to the given url, without waiting : only the deliveries in memory are
+     * considered, the spilled ones will be taken once paged back in.
+     *
+     * @param url of the deliveries
+     * @return the deliveries, in the order of each repository - may be empty, won't be null
+     */
+    public synchronized List<WebHookDelivery> removeAll(String url) {
+        List<WebHookDelivery> removed = new ArrayList<WebHookDelivery>();
+        for (RepositoryQueue repositoryQueue : repositories.values()) {
+            for (Slot slot : repositoryQueue.slots) {
+                if (slot.delivery != null && slot.delivery.getUrl().equals(url)) {
+                    removed.add(slot.delivery);
+                    clear(slot);
+                }
+            }
+            repositoryQueue.prune(url);
+        }
+        return removed;
+    }
+
+    /**
+     * Empty the given slot, so that it is skipped when it reaches the head of the queue.
+     */
+    private void clear(Slot slot) {
+        String key = slot.delivery.getCompactionKey();
+        if (key != null && memoryKeys.get(key) == slot) {
+            memoryKeys.remove(key);
+        }
+        memoryBytes -= slot.delivery.getSize();
+        memoryCount--;
+        slot.repositoryQueue.count--;
+        slot.delivery = null;
+    }
+
+    /**
+     * Move the oldest spilled deliveries back in memory, one repository after the other, up to half the memory budget
+     * (so that the next ones are still spilled, instead of bouncing between the heap and the spill file).
+     */
+    private void pageIn() {
+        while (!spillRounds.isEmpty() && (memoryCount == 0 || memoryBytes < memoryBudget / 2)) {
+            Segment segment = spillRounds.removeFirst();
+            byte[] bytes = spill.read(segment);
+            if (segment.count > 0) {
+                spillRounds.addLast(segment);
+            } else {
+                // its next deliveries can use the memory again
+                segments.remove(segment.repository);
+            }
+            WebHookDelivery delivery = null;
+            try {
+                delivery = WebHookDelivery.fromBytes(bytes);
+            } catch (IOException e) {
+                // can't happen, we wrote these bytes ourselves
+                throw new IllegalStateException("Corrupted spill file " + spill.file, e);
+            }
+
+            String key = delivery.getCompactionKey();
+            Slot slot = new Slot(delivery, sequence++);
+            if (key != null) {
+                String latest = spilledKeys.get(key);
+                if (!delivery.getId().equals(latest)) {
+                    // superseded by a more recent delivery
+                    spilledSuperseded--;
+                    if (supersededListener != null) {
+                        supersededListener.superseded(delivery, latest);
+                    }
+                    continue;
+                }
+                spilledKeys.remove(key);
+                memoryKeys.put(key, slot);
+            }
+            getRepositoryQueue(segment.repository).add(slot);
+            memoryCount++;
+            memoryBytes += delivery.getSize();
+        }
+        closeDrainedSpill();
+    }
+
+    /**
+     * Close the current spill file if it is drained and has been reconfigured, so that the new one is used from now on.
+     */
+    private void closeDrainedSpill() {
+        if (spill != null && !isSpilled() && (!spill.file.equals(spillFile) || spill.capacity != spillCapacity)) {
+            spill.close();
+            spill = null;
+        }
+    }
+
+    private boolean isSpilled() {
+        return spill != null && spill.count > 0;
+    }
+
+    private static String getRepository(WebHookDelivery delivery) {
+        return delivery.getRepository() == null ? NO_REPOSITORY : delivery.getRepository();
+    }
+
+    private int getWeight(String repository) {
+        Integer weight = weights.get(repository);
+        return weight == null ? 1 : weight;
+    }
+
+    /**
+     * @return the queue of the given repository, in the rounds - created if needed
+     */
+    private RepositoryQueue getRepositoryQueue(String repository) {
+        RepositoryQueue repositoryQueue = repositories.get(repository);
+        if (repositoryQueue == null) {
+            repositoryQueue = new RepositoryQueue(repository);
+            repositories.put(repository, repositoryQueue);
+            rounds.add(repositoryQueue);
+        }
+        return repositoryQueue;
+    }
+
+    /**
+     * @return the number of queued deliveries, in memory and spilled (not counting the superseded ones)
+     */
+    public synchronized int getSize() {
+        return memoryCount + getSpilledCount() - spilledSuperseded;
+    }
+
+    /**
+     * @return repository ID ("" for the deliveries without repository) / number of its deliveries in memory
+     */
+    public synchronized Map<String, Integer> getRepositorySizes() {
+        Map<String, Integer> sizes = new HashMap<String, Integer>();
+        for (RepositoryQueue repositoryQueue : repositories.values()) {
+            sizes.put(repositoryQueue.repository, repositoryQueue.count);
+        }
+        return sizes;
+    }
+
+    /**
+     * @return the estimated heap size (in bytes) of the deliveries kept in memory
+     */
+    public synchronized long getMemoryBytes() {
+        return memoryBytes;
+    }
+
+    /**
+     * @return the maximum heap size (in bytes) of the deliveries kept in memory
+     */
+    public synchronized long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the number of deliveries in the spill file (including the superseded ones)
+     */
+    public synchronized int getSpilledCount() {
+        return spill == null ? 0 : spill.count;
+    }
+
+    /**
+     * @return the number of bytes used in the spill file
+     */
+    public synchronized int getSpilledBytes() {
+        return spill == null ? 0 : spill.used;
+    }
+
+    /**
+     * @return the number of deliveries superseded by a more recent one (with the same compaction key) so far
+     */
+    public synchronized long getCompactedCount() {
+        return compactedCount;
+    }
+
+    /**
+     * Decides if the deliveries to a url can be taken now (see {@link WebHookQueue#take(Gate)}) : so that the takers
+     * are not blocked by a url that can't take more deliveries, while the others can. Called with the queue locked :
+     * it must not block. The queue must be told when a closed gate opens, see {@link WebHookQueue#signal()}.
+     */
+    public static interface Gate {
+
+        /**
+         * @param url of the delivery to take
+         * @return true if the delivery can be taken (it is then counted as entered), false to skip this url for now
+         */
+        boolean tryEnter(String url);
+
+    }
+
+    /**
+     * Told about the deliveries that won't be taken from the queue, because a more recent delivery (with the same
+     * compaction key) has been queued. Called with the queue locked : it must not block.
+     */
+    public static interface SupersededListener {
+
+        /**
+         * @param delivery the superseded delivery
+         * @param supersedingId ID of the more recent delivery
+         */
+        void superseded(WebHookDelivery delivery, String supersedingId);
+
+    }
+
+    /**
+     * A place in the queue, that can be given to a more recent delivery.
+     */
+    private static class Slot {
+
+        /** null once taken */
+        private WebHookDelivery delivery;
+
+        /** order of the slot in the queue */
+        private final long sequence;
+
+        /**
+         * url of the first delivery of the slot, for the index of the slots by url (the more recent deliveries with
+         * the same compaction key usually have the same url, otherwise they are not batched)
+         */
+        private final String url;
+
+        private RepositoryQueue repositoryQueue;
+
+        private Slot(WebHookDelivery delivery, long sequence) {
+            super();
+            this.delivery = delivery;
+            this.sequence = sequence;
+            this.url = delivery.getUrl();
+        }
+
+    }
+
+    /**
+     * The deliveries of a repository in memory, and its state in the deficit round-robin.
+     */
+    private static class RepositoryQueue {
+
+        private final String repository;
+
+        /** the slot of a batched delivery is emptied, instead of being removed from the middle of the list */
+        private final LinkedList<Slot> slots = new LinkedList<Slot>();
+
+        /** url / the slots with this url, in the same order - so that the batches don't walk the whole queue */
+        private final Map<String, LinkedList<Slot>> urls = new HashMap<String, LinkedList<Slot>>();
+
+        /** number of non-empty slots */
+        private int count;
+
+        /** bytes that the repository can still send in the current round */
+        private long deficit;
+
+        /** true once the quantum of the current round has been added to the deficit */
+        private boolean credited;
+
+        private RepositoryQueue(String repository) {
+            super();
+            this.repository = repository;
+        }
+
+        private void add(Slot slot) {
+            slot.repositoryQueue = this;
+            slots.add(slot);
+            LinkedList<Slot> urlSlots = urls.get(slot.url);
+            if (urlSlots == null) {
+                urlSlots = new LinkedList<Slot>();
+                urls.put(slot.url, urlSlots);
+            }
+            urlSlots.add(slot);
+            count++;
+        }
+
+        /**
+         * Remove the empty slots at the head of the slots with the given url (the slots are taken in order, so the
+         * empty ones are at the head).
+         */
+        private void prune(String url) {
+            LinkedList<Slot> urlSlots = urls.get(url);
+            while (urlSlots != null && !urlSlots.isEmpty() && urlSlots.getFirst().delivery == null) {
+                urlSlots.removeFirst();
+            }
+            if (urlSlots != null && urlSlots.isEmpty()) {
+                urls.remove(url);
+            }
+        }
+
+        /**
+         * @return the oldest non-empty slot, or null if there is none
+         */
+        private Slot peek() {
+            while (!slots.isEmpty() && slots.getFirst().delivery == null) {
+                slots.removeFirst();
+            }
+            return slots.peekFirst();
+        }
+
+        /**
+         * @param closedUrls urls to skip
+         * @return the oldest non-empty slot whose delivery is not to one of the given urls, or null if there is none
+         */
+        private Slot peek(Set<String> closedUrls) {
+            Slot oldest = peek();
+            if (oldest == null || !closedUrls.contains(oldest.delivery.getUrl())) {
+                return oldest;
+            }
+            oldest = null;
+            for (LinkedList<Slot> urlSlots : urls.values()) {
+                for (Slot slot : urlSlots) {
+                    if (slot.delivery != null && slot.delivery.getUrl().equals(slot.url)) {
+                        if (!closedUrls.contains(slot.url) && (oldest == null || slot.sequence < oldest.sequence)) {
+                            oldest = slot;
+                        }
+                        break;
+                    }
+                }
+            }
+            return oldest;
+        }
+
+    }
+
+    /**
+     * The spilled deliveries of a repository : a FIFO of length-prefixed records, in a list of chunks of the spill
+     * file. Not thread-safe, guarded by the queue.
+     */
+    private static class Segment {
+
+        private final String repository;
+
+        /** indexes of the chunks, from the oldest record to the most recent one */
+        private final LinkedList<Integer> chunks = new LinkedList<Integer>();
+
+        /** position of the oldest record, in the first chunk */
+        private int head;
+
+        /** position of the next record, in the last chunk */
+        private int tail;
+
+        private int count;
+
+        private Segment(String repository) {
+            super();
+            this.repository = repository;
+        }
+
+    }
+
+    /**
+     * Memory-mapped file, split in chunks shared by the {@link Segment segments} : a chunk is allocated to a segment
+     * when its last chunk is full, and freed once it has been read. Not thread-safe, guarded by the queue.
+     */
+    private static class SpillFile {
+
+        /** maximum size of a chunk */
+        private static final transient int MAX_CHUNK_SIZE = 64 * 1024;
+
+        /** minimum number of chunks (unless they would be too small), so that several repositories can spill */
+        private static final transient int MIN_CHUNKS = 64;
+
+        private static final transient int MIN_CHUNK_SIZE = 64;
+
+        private final File file;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        private final int capacity;
+
+        /** size of the chunks - the last one may be smaller */
+        private final int chunkSize;
+
+        /** indexes of the chunks that are not used by a segment */
+        private final LinkedList<Integer> freeChunks = new LinkedList<Integer>();
+
+        /** number of bytes used by the records */
+        private int used;
+
+        private int count;
+
+        private final byte[] lengthBytes = new byte[4];
+
+        private SpillFile(File file, int capacity) throws IOException {
+            super();
+            this.file = file;
+            this.capacity = capacity;
+            chunkSize = Math.min(capacity, Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, capacity / MIN_CHUNKS)));
+            for (int chunk = 0; chunk * chunkSize < capacity; chunk++) {
+                freeChunks.add(chunk);
+            }
+            FileUtils.forceMkdir(file.getParentFile());
+            channel = new RandomAccessFile(file, "rw").getChannel();
+            try {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } catch (IOException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * @param segment of the record
+         * @param record to append
+         * @return false if there is not enough free space for the record
+         */
+        private boolean write(Segment segment, byte[] record) {
+            int free = 0;
+            if (!segment.chunks.isEmpty()) {
+                free = getChunkSize(segment.chunks.getLast()) - segment.tail;
+            }
+            for (Iterator<Integer> it = freeChunks.iterator(); it.hasNext() && free < 4 + record.length;) {
+                free += getChunkSize(it.next());
+            }
+            if (4 + record.length > free) {
+                return false;
+            }
+            lengthBytes[0] = (byte) (record.length >>> 24);
+            lengthBytes[1] = (byte) (record.length >>> 16);
+            lengthBytes[2] = (byte) (record.length >>> 8);
+            lengthBytes[3] = (byte) record.length;
+            put(segment, lengthBytes);
+            put(segment, record);
+            segment.count++;
+            count++;
+            return true;
+        }
+
+        /**
+         * @param segment to read - must not be empty
+         * @return the oldest record of the segment
+         */
+        private byte[] read(Segment segment) {
+            get(segment, lengthBytes);
+            int length = ((lengthBytes[0] & 0xFF) << 24) | ((lengthBytes[1] & 0xFF) << 16)
+                         | ((lengthBytes[2] & 0xFF) << 8) | (lengthBytes[3] & 0xFF);
+            byte[] record = new byte[length];
+            get(segment, record);
+            segment.count--;
+            count--;
+            if (segment.count == 0) {
+                freeChunks.addAll(segment.chunks);
+                segment.chunks.clear();
+                segment.head = 0;
+                segment.tail = 0;
+            }
+            return record;
+        }
+
+        private void put(Segment segment, byte[] bytes) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (segment.chunks.isEmpty() || segment.tail == getChunkSize(segment.chunks.getLast())) {
+                    segment.chunks.add(freeChunks.removeFirst());
+                    segment.tail = 0;
+                }
+                int length = Math.min(bytes.length - offset, getChunkSize(segment.chunks.getLast()) - segment.tail);
+                buffer.position(segment.chunks.getLast() * chunkSize + segment.tail);
+                buffer.put(bytes, offset, length);
+                segment.tail += length;
+                offset += length;
+            }
+            used += bytes.length;
+        }
+
+        private void get(Segment segment, byte[] bytes) {
+            int offset = 0;
+            while (offset < bytes.length) {
+                if (segment.head == getChunkSize(segment.chunks.getFirst())) {
+                    freeChunks.add(segment.chunks.removeFirst());
+                    segment.head = 0;
+                }
+                int length = Math.min(bytes.length - offset, getChunkSize(segment.chunks.getFirst()) - segment.head);
+                buffer.position(segment.chunks.getFirst() * chunkSize + segment.head);
+                buffer.get(bytes, offset, length);
+                segment.head += length;
+                offset += length;
+            }
+            used -= bytes.length;
+        }
+
+        private int getChunkSize(int chunk) {
+            return Math.min(chunkSize, capacity - chunk * chunkSize);
+        }
+
+        /**
+         * Release the mapping and close the file : it can't be used anymore.
+         */
+        private void close() {
+            try {
+                // otherwise the mapping is only released once the buffer is garbage collected
+                Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                cleanerMethod.setAccessible(true);
+                Object cleaner = cleanerMethod.invoke(buffer);
+                if (cleaner != null) {
+                    cleaner.getClass().getMethod("clean").invoke(cleaner);
+                }
+            } catch (Exception e) {
+                // not available on this JVM : released by the garbage collector
+            }
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing more to release
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import org.apache.http.HttpEntity;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * What is kept of the body of a webhook listener's response : a short excerpt (for the {@link WebHookTrace traces}),
+ * and whether the body has been read completely.<br>
+ * The body is read as a stream, up to a maximum size : a listener that answers with a large (HTML error) page doesn't
+ * hold the worker. Once the body has been read to its end, the connection goes back to the pool. If the body is
+ * larger than the maximum size, the rest of it is not read : the connection has to be aborted.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookResponseBody {
+
+    /** maximum number of bytes kept in the excerpt */
+    public static final transient int EXCERPT_SIZE = 256;
+
+    /** a response without body */
+    private static final transient WebHookResponseBody EMPTY = new WebHookResponseBody(null, 0, true);
+
+    private final String excerpt;
+
+    private final long length;
+
+    private final boolean complete;
+
+    private WebHookResponseBody(String excerpt, long length, boolean complete) {
+        super();
+        this.excerpt = excerpt;
+        this.length = length;
+        this.complete = complete;
+    }
+
+    /**
+     * Read the given entity, up to the given size.
+     *
+     * @param entity of the response - may be null
+     * @param maxSize maximum number of bytes to read
+     * @return the body - won't be null
+     * @throws IOException in case of error when reading
+     */
+    public static WebHookResponseBody read(HttpEntity entity, long maxSize) throws IOException {
+        if (entity == null) {
+            return EMPTY;
+        }
+        if (entity.getContentLength() > maxSize) {
+            // no need to read anything, the connection will be aborted anyway
+            return new WebHookResponseBody(null, 0, false);
+        }
+        InputStream stream = entity.getContent();
+        if (stream == null) {
+            return EMPTY;
+        }
+
+        ByteArrayOutputStream excerpt = new ByteArrayOutputStream(EXCERPT_SIZE);
+        byte[] buffer = new byte[4096];
+        long length = 0;
+        boolean complete = false;
+        try {
+            while (length <= maxSize) {
+                // one byte more than the maximum size is enough to know that the body is too large
+                // (without overflowing "maxSize - length + 1", when the maximum size is Long.MAX_VALUE)
+                long remaining = maxSize - length;
+                int chunk = remaining >= buffer.length ? buffer.length : (int) remaining + 1;
+                int read = stream.read(buffer, 0, chunk);
+                if (read < 0) {
+                    complete = true;
+                    break;
+                }
+                if (excerpt.size() < EXCERPT_SIZE) {
+                    excerpt.write(buffer, 0, (int) Math.min(read, EXCERPT_SIZE - excerpt.size()));
+                }
+                length += read;
+            }
+        } finally {
+            if (complete) {
+                // at its end : releases the connection to the pool
+                stream.close();
+            }
+        }
+        return new WebHookResponseBody(toExcerpt(excerpt.toByteArray(), EntityUtils.getContentCharSet(entity)),
+                                       length,
+                                       complete);
+    }
+
+    /**
+     * @return the given bytes as a single line of text, or null if there is none
+     */
+    private static String toExcerpt(byte[] bytes, String charset) {
+        if (bytes.length == 0) {
+            return null;
+        }
+        String text = null;
+        try {
+            text = new String(bytes, charset != null ? charset : "ISO-8859-1");
+        } catch (UnsupportedEncodingException e) {
+            text = new String(bytes);
+        }
+        return text.replaceAll("\\s+", " ").trim();
+    }
+
+    /**
+     * @return the beginning of the body (at most {@link #EXCERPT_SIZE} bytes), as a single line - null if there is
+     *         none
+     */
+    public String getExcerpt() {
+        return excerpt;
+    }
+
+    /**
+     * @return the number of bytes read
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * @return true if the body has been read to its end (the connection can be reused), false if it is larger than
+     *         the maximum size (the connection must be aborted)
+     */
+    public boolean isComplete() {
+        return complete;
+    }
+
+    @Override
+    public String toString() {
+        return "WebHookResponseBody [length=" + length + ", complete=" + complete + ", excerpt=" + excerpt + "]";
+    }
+
+}
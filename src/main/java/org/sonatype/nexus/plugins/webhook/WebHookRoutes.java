@@ -0,0 +1,550 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Immutable index of the plugin's configuration : each property is parsed once (the urls are split and shared between
+ * the routes), so that looking up the webhooks of an artifact is only a few map lookups.<br>
+ * The index can be written to / read from a compact binary form (see {@link #writeTo(DataOutputStream)}), and updated
+ * incrementally (see {@link #update(Properties)}) : only the changed properties are parsed again.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookRoutes {
+
+    public static final transient String DEFAULT_KEY = "webhooks.default";
+
+    public static final transient String INHERITED_KEY = "webhooks.inherited";
+
+    /** prefix of the plugin's settings, all the other properties are routes */
+    public static final transient String SETTINGS_PREFIX = "webhooks.";
+
+    /** webhooks.template.NAME.body / webhooks.template.NAME.contentType / webhooks.template.NAME.urls */
+    public static final transient String TEMPLATE_PREFIX = SETTINGS_PREFIX + "template.";
+
+    /** "true" to send the size and checksums of the item with the events (the "item" field of the JSON) */
+    public static final transient String ITEM_KEY = SETTINGS_PREFIX + "event.item";
+
+    /** comma-separated urls for which the superseded snapshot notifications are compacted */
+    public static final transient String COMPACTION_KEY = SETTINGS_PREFIX + "compaction.urls";
+
+    /** webhooks.events.TYPE.urls : the urls subscribing to the events of the given {@link WebHookEventType} */
+    public static final transient String EVENTS_PREFIX = SETTINGS_PREFIX + "events.";
+
+    /**
+     * webhooks.endpoint.NAME.url (and the properties of its {@link WebHookEndpoint profile}) : the NAME can be used
+     * instead of the url in the routes and in the other settings
+     */
+    public static final transient String ENDPOINT_PREFIX = SETTINGS_PREFIX + "endpoint.";
+
+    private static final transient String[] NO_URLS = new String[0];
+
+    /** property key / parsed property */
+    private final Map<String, Route> routes;
+
+    private final boolean inherited;
+
+    private final boolean itemIncluded;
+
+    /** url / profile, for the urls declared as endpoints */
+    private final Map<String, WebHookEndpoint> endpoints;
+
+    /** name / url of the declared endpoints */
+    private final Map<String, String> endpointUrls;
+
+    /** url / compiled template, for the urls that don't use the default template */
+    private final Map<String, WebHookTemplate> templates;
+
+    private final Collection<String> compactedUrls;
+
+    /** url / mask of the {@link WebHookEventType}s, for the urls that don't only subscribe to the stored artifacts */
+    private final Map<String, Integer> eventMasks;
+
+    /** mask of the {@link WebHookEventType}s that at least one url subscribes to */
+    private final int subscribedMask;
+
+    /**
+     * @throws IllegalArgumentException if a template or an endpoint is invalid
+     */
+    private WebHookRoutes(Map<String, Route> routes) throws IllegalArgumentException {
+        super();
+        this.routes = routes;
+        Route inheritedRoute = routes.get(INHERITED_KEY);
+        this.inherited = inheritedRoute != null && Boolean.parseBoolean(inheritedRoute.value);
+        Route itemRoute = routes.get(ITEM_KEY);
+        this.itemIncluded = itemRoute != null && Boolean.parseBoolean(itemRoute.value);
+        this.endpoints = compileEndpoints(routes);
+        this.endpointUrls = new HashMap<String, String>();
+        for (WebHookEndpoint endpoint : endpoints.values()) {
+            endpointUrls.put(endpoint.getName(), endpoint.getUrl());
+        }
+        this.templates = compileTemplates(routes, endpoints.values());
+        Route compactionRoute = routes.get(COMPACTION_KEY);
+        this.compactedUrls = compactionRoute == null ? Collections.<String> emptySet()
+                : new HashSet<String>(Arrays.asList(compactionRoute.urls));
+        this.eventMasks = compileEventMasks(routes);
+        int mask = WebHookEventType.STORED.getBit();
+        for (Integer urlMask : eventMasks.values()) {
+            mask |= urlMask;
+        }
+        this.subscribedMask = mask;
+    }
+
+    /**
+     * Parse the endpoints declared in the given properties.
+     *
+     * @return url / profile
+     * @throws IllegalArgumentException if an endpoint is invalid, or if two endpoints have the same url
+     */
+    private static Map<String, WebHookEndpoint> compileEndpoints(Map<String, Route> routes)
+            throws IllegalArgumentException {
+        // name / property / value
+        Map<String, Map<String, String>> declarations = new HashMap<String, Map<String, String>>();
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            String key = entry.getKey();
+            int separator = key.lastIndexOf('.');
+            if (!key.startsWith(ENDPOINT_PREFIX) || separator < ENDPOINT_PREFIX.length()) {
+                continue;
+            }
+            String name = key.substring(ENDPOINT_PREFIX.length(), separator);
+            Map<String, String> properties = declarations.get(name);
+            if (properties == null) {
+                properties = new HashMap<String, String>();
+                declarations.put(name, properties);
+            }
+            properties.put(key.substring(separator + 1), entry.getValue().value);
+        }
+
+        Map<String, WebHookEndpoint> endpoints = new HashMap<String, WebHookEndpoint>();
+        for (Map.Entry<String, Map<String, String>> entry : declarations.entrySet()) {
+            WebHookEndpoint endpoint = WebHookEndpoint.parse(entry.getKey(), entry.getValue());
+            WebHookEndpoint duplicate = endpoints.put(endpoint.getUrl(), endpoint);
+            if (duplicate != null) {
+                throw new IllegalArgumentException("The endpoints " + duplicate.getName() + " and "
+                                                   + endpoint.getName() + " have the same url " + endpoint.getUrl());
+            }
+        }
+        return endpoints;
+    }
+
+    /**
+     * Compile the templates declared in the given properties, and apply the formats of the given endpoints.
+     *
+     * @return url / compiled template
+     * @throws IllegalArgumentException if a template is invalid, or if an endpoint refers to an unknown template
+     */
+    private static Map<String, WebHookTemplate> compileTemplates(Map<String, Route> routes,
+                                                                 Collection<WebHookEndpoint> endpoints)
+            throws IllegalArgumentException {
+        Map<String, WebHookTemplate> templates = new HashMap<String, WebHookTemplate>();
+        Map<String, WebHookTemplate> templatesByName = new HashMap<String, WebHookTemplate>();
+        for (String key : routes.keySet()) {
+            if (!key.startsWith(TEMPLATE_PREFIX) || !key.endsWith(".body")) {
+                continue;
+            }
+            String prefix = StringUtils.removeEnd(key, "body");
+            String name = StringUtils.removeEnd(StringUtils.removeStart(prefix, TEMPLATE_PREFIX), ".");
+            Route contentType = routes.get(prefix + "contentType");
+            WebHookTemplate template = WebHookTemplate.compile(name, contentType == null ? "application/json"
+                    : contentType.value.trim(), routes.get(key).value);
+            templatesByName.put(name, template);
+
+            Route urls = routes.get(prefix + "urls");
+            if (urls != null) {
+                for (String url : urls.urls) {
+                    templates.put(url, template);
+                }
+            }
+        }
+
+        for (WebHookEndpoint endpoint : endpoints) {
+            if (endpoint.getFormat() == null) {
+                continue;
+            }
+            WebHookTemplate template = templatesByName.get(endpoint.getFormat());
+            if (template == null) {
+                throw new IllegalArgumentException("Unknown format '" + endpoint.getFormat() + "' for the endpoint "
+                                                   + endpoint.getName());
+            }
+            templates.put(endpoint.getUrl(), template);
+        }
+        return templates;
+    }
+
+    /**
+     * Compile the event types declared in the given properties.
+     *
+     * @return url / mask of the event types
+     * @throws IllegalArgumentException if an event type is invalid
+     */
+    private static Map<String, Integer> compileEventMasks(Map<String, Route> routes) throws IllegalArgumentException {
+        Map<String, Integer> masks = new HashMap<String, Integer>();
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            String key = entry.getKey();
+            if (!key.startsWith(EVENTS_PREFIX) || !key.endsWith(".urls")) {
+                continue;
+            }
+            String name = StringUtils.removeEnd(StringUtils.removeStart(key, EVENTS_PREFIX), ".urls");
+            WebHookEventType type = WebHookEventType.fromName(name);
+            if (type == null) {
+                throw new IllegalArgumentException("Unknown event type '" + name + "' in " + key);
+            }
+            for (String url : entry.getValue().urls) {
+                Integer mask = masks.get(url);
+                masks.put(url, (mask == null ? 0 : mask) | type.getBit());
+            }
+        }
+        return masks;
+    }
+
+    /**
+     * @return an empty index, without any webhook
+     */
+    public static WebHookRoutes empty() {
+        return new WebHookRoutes(Collections.<String, Route> emptyMap());
+    }
+
+    /**
+     * Build a new index, reusing the already-parsed properties of this index when their values did not change.
+     *
+     * @param configuration the new configuration
+     * @return a new index for the given configuration
+     * @throws IllegalArgumentException if a template or an endpoint is invalid
+     */
+    public WebHookRoutes update(Properties configuration) throws IllegalArgumentException {
+        Map<String, String> newEndpointUrls = new HashMap<String, String>();
+        for (String key : configuration.stringPropertyNames()) {
+            if (key.startsWith(ENDPOINT_PREFIX) && key.endsWith(".url")) {
+                String name = StringUtils.removeEnd(StringUtils.removeStart(key, ENDPOINT_PREFIX), ".url");
+                newEndpointUrls.put(name, configuration.getProperty(key).trim());
+            }
+        }
+        // the names of the endpoints are resolved when parsing : everything is parsed again if they changed
+        boolean endpointsChanged = !newEndpointUrls.equals(endpointUrls);
+
+        Map<String, String> urls = new HashMap<String, String>();
+        Map<String, Route> newRoutes = new HashMap<String, Route>(configuration.size() * 4 / 3 + 1);
+        for (String key : configuration.stringPropertyNames()) {
+            String value = configuration.getProperty(key);
+            Route route = routes.get(key);
+            if (route == null || endpointsChanged || !route.value.equals(value)) {
+                route = new Route(value, split(value, newEndpointUrls, urls));
+            }
+            newRoutes.put(key, route);
+        }
+        return new WebHookRoutes(newRoutes);
+    }
+
+    /**
+     * @param other index to compare to
+     * @return the number of properties that are new, removed or changed compared to the other index
+     */
+    public int countChanges(WebHookRoutes other) {
+        int changes = 0;
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            if (other.routes.get(entry.getKey()) != entry.getValue()) {
+                changes++;
+            }
+        }
+        for (String key : other.routes.keySet()) {
+            if (!routes.containsKey(key)) {
+                changes++;
+            }
+        }
+        return changes;
+    }
+
+    /**
+     * Get the WebHook urls to notify for the given repository/artifact.
+     *
+     * @param repository ID of the repository
+     * @param groupId of the artifact
+     * @param artifactId of the artifact
+     * @return a {@link Collection} of urls (as String) - may be empty, won't be null
+     */
+    public Collection<String> getWebHooks(String repository, String groupId, String artifactId) {
+        String groupKey = repository + "." + groupId;
+
+        Collection<String> urls = new HashSet<String>();
+        urls.addAll(Arrays.asList(getUrls(groupKey + "." + artifactId)));
+        if (urls.isEmpty() || inherited) {
+            urls.addAll(Arrays.asList(getUrls(groupKey)));
+        }
+        if (urls.isEmpty() || inherited) {
+            urls.addAll(Arrays.asList(getUrls(repository)));
+        }
+        if (urls.isEmpty() || inherited) {
+            urls.addAll(Arrays.asList(getUrls(DEFAULT_KEY)));
+        }
+        return urls;
+    }
+
+    /**
+     * @param nameOrUrl name of a declared endpoint, or url of a webhook listener
+     * @return the url of the given endpoint, or the given url if it is referenced by the configuration - null if it is
+     *         neither a declared endpoint nor a configured url
+     */
+    public String getConfiguredUrl(String nameOrUrl) {
+        if (nameOrUrl == null) {
+            return null;
+        }
+        String url = endpointUrls.get(nameOrUrl.trim());
+        if (url != null) {
+            return url;
+        }
+        url = nameOrUrl.trim();
+        return endpoints.containsKey(url) || getAllUrls().contains(url) ? url : null;
+    }
+
+    /**
+     * @return all the (distinct) urls referenced by the configuration - won't be null
+     */
+    public Collection<String> getAllUrls() {
+        Collection<String> urls = new HashSet<String>();
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            if (!entry.getKey().startsWith(SETTINGS_PREFIX) || DEFAULT_KEY.equals(entry.getKey())) {
+                urls.addAll(Arrays.asList(entry.getValue().urls));
+            }
+        }
+        return urls;
+    }
+
+    /**
+     * @param url of the webhook listener
+     * @return the template used to render the payloads sent to the given url - won't be null
+     */
+    public WebHookTemplate getTemplate(String url) {
+        WebHookTemplate template = templates.get(url);
+        return template == null ? WebHookTemplate.DEFAULT : template;
+    }
+
+    /**
+     * @param url of the webhook listener
+     * @return the profile of the endpoint with the given url, or {@link WebHookEndpoint#DEFAULT} if the url is not
+     *         declared as an endpoint - won't be null
+     */
+    public WebHookEndpoint getEndpoint(String url) {
+        WebHookEndpoint endpoint = endpoints.get(url);
+        return endpoint == null ? WebHookEndpoint.DEFAULT : endpoint;
+    }
+
+    /**
+     * @return the declared endpoints - won't be null
+     */
+    public Collection<WebHookEndpoint> getEndpoints() {
+        return Collections.unmodifiableCollection(endpoints.values());
+    }
+
+    /**
+     * @param url of the webhook listener
+     * @param type of the event
+     * @return true if the given url subscribes to the given type of events (by default, only to the stored
+     *         artifacts)
+     */
+    public boolean accepts(String url, WebHookEventType type) {
+        Integer mask = eventMasks.get(url);
+        return mask == null ? type == WebHookEventType.STORED : (mask & type.getBit()) != 0;
+    }
+
+    /**
+     * A cheap pre-filter, before computing anything for an event.
+     *
+     * @param type of the event
+     * @return true if at least one url subscribes to the given type of events
+     */
+    public boolean isSubscribed(WebHookEventType type) {
+        return (subscribedMask & type.getBit()) != 0;
+    }
+
+    /**
+     * @return true if the size and checksums of the item are sent with the events (off by default, so that the
+     *         payload of the existing listeners doesn't change)
+     */
+    public boolean isItemIncluded() {
+        return itemIncluded;
+    }
+
+    /**
+     * @param url of the webhook listener
+     * @return true if a queued snapshot notification for the given url should be replaced by a more recent one of the
+     *         same artifact
+     */
+    public boolean isCompacted(String url) {
+        return compactedUrls.contains(url);
+    }
+
+    /**
+     * @return the configuration, as {@link Properties} - won't be null
+     */
+    public Properties toProperties() {
+        Properties properties = new Properties();
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().value);
+        }
+        return properties;
+    }
+
+    /**
+     * @return the number of indexed properties
+     */
+    public int size() {
+        return routes.size();
+    }
+
+    private String[] getUrls(String key) {
+        Route route = routes.get(key);
+        return route == null ? NO_URLS : route.urls;
+    }
+
+    /**
+     * Write the index in a compact binary form : a table of the distinct urls, followed by the properties (with the
+     * indexes of their urls in the table).
+     *
+     * @param stream to write to
+     * @throws IOException in case of error when writing
+     */
+    public void writeTo(DataOutputStream stream) throws IOException {
+        Map<String, Integer> urlIndexes = new HashMap<String, Integer>();
+        for (Route route : routes.values()) {
+            for (String url : route.urls) {
+                if (!urlIndexes.containsKey(url)) {
+                    urlIndexes.put(url, urlIndexes.size());
+                }
+            }
+        }
+        String[] urls = new String[urlIndexes.size()];
+        for (Map.Entry<String, Integer> entry : urlIndexes.entrySet()) {
+            urls[entry.getValue()] = entry.getKey();
+        }
+
+        stream.writeInt(urls.length);
+        for (String url : urls) {
+            writeString(stream, url);
+        }
+        stream.writeInt(routes.size());
+        for (Map.Entry<String, Route> entry : routes.entrySet()) {
+            writeString(stream, entry.getKey());
+            writeString(stream, entry.getValue().value);
+            stream.writeInt(entry.getValue().urls.length);
+            for (String url : entry.getValue().urls) {
+                stream.writeInt(urlIndexes.get(url));
+            }
+        }
+    }
+
+    /**
+     * Read an index previously written with {@link #writeTo(DataOutputStream)}.
+     *
+     * @param stream to read from
+     * @return the index - won't be null
+     * @throws IOException in case of error when reading, or if the content is corrupted
+     */
+    public static WebHookRoutes readFrom(DataInputStream stream) throws IOException {
+        String[] urls = new String[stream.readInt()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = readString(stream);
+        }
+        int size = stream.readInt();
+        Map<String, Route> routes = new HashMap<String, Route>(size * 4 / 3 + 1);
+        for (int i = 0; i < size; i++) {
+            String key = readString(stream);
+            String value = readString(stream);
+            String[] routeUrls = new String[stream.readInt()];
+            for (int j = 0; j < routeUrls.length; j++) {
+                int index = stream.readInt();
+                if (index < 0 || index >= urls.length) {
+                    throw new IOException("Corrupted index : invalid url " + index + " for " + key);
+                }
+                routeUrls[j] = urls[index];
+            }
+            routes.put(key, new Route(value, routeUrls));
+        }
+        return new WebHookRoutes(routes);
+    }
+
+    /**
+     * Split the given comma-separated urls (or names of endpoints, resolved to their urls), sharing the same String
+     * instance for the same url.
+     */
+    private static String[] split(String value, Map<String, String> endpointUrls, Map<String, String> sharedUrls) {
+        String[] urls = StringUtils.split(value, ",");
+        if (urls == null || urls.length == 0) {
+            return NO_URLS;
+        }
+        for (int i = 0; i < urls.length; i++) {
+            String endpointUrl = endpointUrls.get(urls[i].trim());
+            if (endpointUrl != null) {
+                urls[i] = endpointUrl;
+            }
+            String shared = sharedUrls.get(urls[i]);
+            if (shared == null) {
+                sharedUrls.put(urls[i], urls[i]);
+            } else {
+                urls[i] = shared;
+            }
+        }
+        // an endpoint referenced both by its name and its url is only notified once
+        Collection<String> distinct = new LinkedHashSet<String>(Arrays.asList(urls));
+        return distinct.size() == urls.length ? urls : distinct.toArray(new String[distinct.size()]);
+    }
+
+    private static void writeString(DataOutputStream stream, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        stream.writeInt(bytes.length);
+        stream.write(bytes);
+    }
+
+    private static String readString(DataInputStream stream) throws IOException {
+        int length = stream.readInt();
+        if (length < 0) {
+            throw new IOException("Corrupted index : invalid string length " + length);
+        }
+        byte[] bytes = new byte[length];
+        stream.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * A parsed property : its raw value, and the urls it contains.
+     */
+    private static class Route {
+
+        private final String value;
+
+        private final String[] urls;
+
+        private Route(String value, String[] urls) {
+            super();
+            this.value = value;
+            this.urls = urls;
+        }
+
+    }
+
+}
@@ -0,0 +1,362 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.lang.StringUtils;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * A payload template, compiled once (when the configuration is loaded) into a list of literals and
+ * {@link Variable}s.<br>
+ * A template body contains variables such as <code>${artifact.groupId}</code> (see {@link Variable} for the complete
+ * list), whose values are escaped according to the template's content-type : JSON-escaped for a JSON content-type,
+ * URL-encoded for a form content-type, and as-is otherwise.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookTemplate {
+
+    /** the default template : the JSON representation of the event (see {@link ArtifactStoredEvent#toJson()}) */
+    public static final transient WebHookTemplate DEFAULT = new WebHookTemplate("default",
+                                                                                "application/json",
+                                                                                new String[] { "", "" },
+                                                                                new Variable[] { Variable.EVENT });
+
+    private static final transient String VARIABLE_START = "${";
+
+    private static final transient String VARIABLE_END = "}";
+
+    private final String name;
+
+    private final String contentType;
+
+    /** literals.length == variables.length + 1 */
+    private final String[] literals;
+
+    private final Variable[] variables;
+
+    private final Escaping escaping;
+
+    private WebHookTemplate(String name, String contentType, String[] literals, Variable[] variables) {
+        super();
+        this.name = name;
+        this.contentType = contentType;
+        this.literals = literals;
+        this.variables = variables;
+        if (StringUtils.contains(contentType, "json")) {
+            this.escaping = Escaping.JSON;
+        } else if (StringUtils.contains(contentType, "x-www-form-urlencoded")) {
+            this.escaping = Escaping.FORM;
+        } else {
+            this.escaping = Escaping.NONE;
+        }
+    }
+
+    /**
+     * Compile the given template.
+     *
+     * @param name of the template
+     * @param contentType of the rendered payloads
+     * @param body of the template, with variables such as <code>${artifact.groupId}</code>
+     * @return the compiled template - won't be null
+     * @throws IllegalArgumentException if the body contains an unknown or unterminated variable
+     */
+    public static WebHookTemplate compile(String name, String contentType, String body)
+            throws IllegalArgumentException {
+        List<String> literals = new ArrayList<String>();
+        List<Variable> variables = new ArrayList<Variable>();
+
+        int position = 0;
+        while (true) {
+            int start = body.indexOf(VARIABLE_START, position);
+            if (start < 0) {
+                break;
+            }
+            int end = body.indexOf(VARIABLE_END, start);
+            if (end < 0) {
+                throw new IllegalArgumentException("Unterminated variable at position " + start + " in template "
+                                                   + name);
+            }
+            literals.add(body.substring(position, start));
+            variables.add(Variable.forName(body.substring(start + VARIABLE_START.length(), end), name));
+            position = end + VARIABLE_END.length();
+        }
+        literals.add(body.substring(position));
+
+        return new WebHookTemplate(name,
+                                   contentType,
+                                   literals.toArray(new String[literals.size()]),
+                                   variables.toArray(new Variable[variables.size()]));
+    }
+
+    /**
+     * Render the payload for the given event.
+     *
+     * @param event to render
+     * @return the rendered payload - won't be null
+     * @throws JSONException if the JSON representation of the event is used and can't be created
+     */
+    public String render(ArtifactStoredEvent event) throws JSONException {
+        StringBuilder payload = new StringBuilder();
+        for (int i = 0; i < variables.length; i++) {
+            payload.append(literals[i]);
+            String value = variables[i].value(event);
+            if (value == null) {
+                continue;
+            }
+            if (variables[i].isEscaped()) {
+                escaping.append(payload, value);
+            } else {
+                payload.append(value);
+            }
+        }
+        payload.append(literals[variables.length]);
+        return payload.toString();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getContentType() {
+        return contentType;
+    }
+
+    @Override
+    public String toString() {
+        return "WebHookTemplate [name=" + name + ", contentType=" + contentType + "]";
+    }
+
+    /**
+     * The variables that can be used in a template.
+     */
+    public static enum Variable {
+
+        /** the JSON representation of the event (see {@link ArtifactStoredEvent#toJson()}) */
+        EVENT("event") {
+
+            @Override
+            String value(ArtifactStoredEvent event) throws JSONException {
+                return event.toJson();
+            }
+
+            @Override
+            boolean isEscaped() {
+                // already a JSON document
+                return false;
+            }
+        },
+        TYPE("type") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getType().getName();
+            }
+        },
+        TIMESTAMP("timestamp") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getTimestamp() == null ? null : event.getTimestamp().toString();
+            }
+        },
+        USER("user") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getUser();
+            }
+        },
+        REPOSITORY_ID("repository.id") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getRepository().getId();
+            }
+        },
+        REPOSITORY_NAME("repository.name") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getRepository().getName();
+            }
+        },
+        GROUP_ID("artifact.groupId") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getArtifact().getGroupId();
+            }
+        },
+        ARTIFACT_ID("artifact.artifactId") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getArtifact().getArtifactId();
+            }
+        },
+        VERSION("artifact.version") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getArtifact().getVersion();
+            }
+        },
+        BASE_VERSION("artifact.baseVersion") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getArtifact().getBaseVersion();
+            }
+        },
+        CLASSIFIER("artifact.classifier") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getArtifact().getClassifier();
+            }
+        },
+        EXTENSION("artifact.extension") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getArtifact().getExtension();
+            }
+        },
+        NAME("artifact.name") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getArtifact().getName();
+            }
+        },
+        SNAPSHOT("artifact.snapshot") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return Boolean.toString(event.getArtifact().isSnapshot());
+            }
+        },
+        SIZE("item.size") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getItem() == null ? null : asString(event.getItem().getSize());
+            }
+        },
+        SHA1("item.sha1") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getItem() == null ? null : event.getItem().getSha1();
+            }
+        },
+        MD5("item.md5") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getItem() == null ? null : event.getItem().getMd5();
+            }
+        },
+        LAST_MODIFIED("item.lastModified") {
+
+            @Override
+            String value(ArtifactStoredEvent event) {
+                return event.getItem() == null ? null : asString(event.getItem().getLastModified());
+            }
+        };
+
+        private final String variableName;
+
+        private Variable(String variableName) {
+            this.variableName = variableName;
+        }
+
+        /**
+         * @param event to render
+         * @return the (unescaped) value of this variable for the given event - may be null
+         * @throws JSONException if the JSON representation of the event can't be created
+         */
+        abstract String value(ArtifactStoredEvent event) throws JSONException;
+
+        /**
+         * @return true if the value is escaped for the content-type of the template
+         */
+        boolean isEscaped() {
+            return true;
+        }
+
+        private static String asString(Long value) {
+            return value == null ? null : value.toString();
+        }
+
+        private static Variable forName(String variableName, String templateName) throws IllegalArgumentException {
+            for (Variable variable : values()) {
+                if (variable.variableName.equals(variableName)) {
+                    return variable;
+                }
+            }
+            throw new IllegalArgumentException("Unknown variable '" + variableName + "' in template " + templateName);
+        }
+
+    }
+
+    /**
+     * How the variables values are escaped, based on the template's content-type.
+     */
+    private static enum Escaping {
+
+        NONE {
+
+            @Override
+            void append(StringBuilder payload, String value) {
+                payload.append(value);
+            }
+        },
+        JSON {
+
+            @Override
+            void append(StringBuilder payload, String value) {
+                String quoted = JSONObject.quote(value);
+                // without the surrounding quotes, that are part of the template
+                payload.append(quoted, 1, quoted.length() - 1);
+            }
+        },
+        FORM {
+
+            @Override
+            void append(StringBuilder payload, String value) {
+                try {
+                    payload.append(URLEncoder.encode(value, "UTF-8"));
+                } catch (UnsupportedEncodingException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        };
+
+        /**
+         * Append the escaped value to the payload.
+         */
+        abstract void append(StringBuilder payload, String value);
+
+    }
+
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+/**
+ * The trace of a {@link WebHookDelivery} : when it went through each stage, and how it ended.<br>
+ * A trace is published (see {@link WebHookTraceRing#record(WebHookTrace)}) when its delivery is queued, then filled in
+ * place by the worker thread that handles the delivery : the queued (or stuck) deliveries are visible too.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookTrace {
+
+    private final String id;
+
+    private final String gav;
+
+    private final String url;
+
+    private final long eventTimestamp;
+
+    /** when the listeners of the event have been found - 0 if unknown (restored or claimed delivery) */
+    private volatile long routedTimestamp;
+
+    private final long queuedTimestamp;
+
+    /** when a worker took the delivery from the queue */
+    private volatile long dequeuedTimestamp;
+
+    /** when the payload has been rendered in the HTTP request (see {@link WebHookDelivery#getPayload()}) */
+    private volatile long renderedTimestamp;
+
+    /** when the HTTP request has been sent (after waiting for the concurrency limiters) */
+    private volatile long sentTimestamp;
+
+    private volatile long completedTimestamp;
+
+    /** HTTP status code of the response, or -1 if there was no response */
+    private volatile int statusCode = -1;
+
+    /** description of the failure, or null */
+    private volatile String error;
+
+    /** excerpt of the body of a failed response (see {@link WebHookResponseBody}), or null */
+    private volatile String response;
+
+    /**
+     * @param delivery to trace
+     */
+    public WebHookTrace(WebHookDelivery delivery) {
+        super();
+        this.id = delivery.getId();
+        this.gav = delivery.getGav();
+        this.url = delivery.getUrl();
+        this.eventTimestamp = delivery.getEventTimestamp();
+        this.queuedTimestamp = delivery.getQueuedTimestamp();
+    }
+
+    /**
+     * @param id of a delivery - null matches all deliveries
+     * @param url of a webhook listener - null matches all deliveries
+     * @param gav prefix of a "groupId:artifactId:version[:classifier]" string - null matches all deliveries
+     * @return true if this trace matches all the given criteria
+     */
+    public boolean matches(String id, String url, String gav) {
+        return (id == null || id.equals(this.id)) && (url == null || url.equals(this.url))
+               && (gav == null || (this.gav != null && this.gav.startsWith(gav)));
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public String getGav() {
+        return gav;
+    }
+
+    public String getUrl() {
+        return url;
+    }
+
+    public long getEventTimestamp() {
+        return eventTimestamp;
+    }
+
+    public long getRoutedTimestamp() {
+        return routedTimestamp;
+    }
+
+    public void setRoutedTimestamp(long routedTimestamp) {
+        this.routedTimestamp = routedTimestamp;
+    }
+
+    public long getQueuedTimestamp() {
+        return queuedTimestamp;
+    }
+
+    public long getDequeuedTimestamp() {
+        return dequeuedTimestamp;
+    }
+
+    public void setDequeuedTimestamp(long dequeuedTimestamp) {
+        this.dequeuedTimestamp = dequeuedTimestamp;
+    }
+
+    public long getRenderedTimestamp() {
+        return renderedTimestamp;
+    }
+
+    public void setRenderedTimestamp(long renderedTimestamp) {
+        this.renderedTimestamp = renderedTimestamp;
+    }
+
+    public long getSentTimestamp() {
+        return sentTimestamp;
+    }
+
+    public void setSentTimestamp(long sentTimestamp) {
+        this.sentTimestamp = sentTimestamp;
+    }
+
+    public long getCompletedTimestamp() {
+        return completedTimestamp;
+    }
+
+    public void setCompletedTimestamp(long completedTimestamp) {
+        this.completedTimestamp = completedTimestamp;
+    }
+
+    public int getStatusCode() {
+        return statusCode;
+    }
+
+    public void setStatusCode(int statusCode) {
+        this.statusCode = statusCode;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public void setError(String error) {
+        this.error = error;
+    }
+
+    public String getResponse() {
+        return response;
+    }
+
+    public void setResponse(String response) {
+        this.response = response;
+    }
+
+    @Override
+    public String toString() {
+        return "WebHookTrace [id=" + id + ", gav=" + gav + ", url=" + url + ", event=" + eventTimestamp + ", routed="
+               + routedTimestamp + ", queued=" + queuedTimestamp + ", dequeued=" + dequeuedTimestamp + ", rendered="
+               + renderedTimestamp + ", sent=" + sentTimestamp + ", completed=" + completedTimestamp + ", status="
+               + statusCode + (error == null ? "" : ", error=" + error)
+               + (response == null ? "" : ", response=" + response) + "]";
+    }
+
+}
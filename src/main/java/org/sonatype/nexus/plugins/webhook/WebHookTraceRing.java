@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lock-free ring of the most recent {@link WebHookTrace traces} : the workers never wait for each other (nor for a
+ * reader) when recording a trace, and the oldest traces are overwritten. The traces in the ring are indexed by the ID
+ * of their delivery, so that the workers update them in place (see {@link #get(String)}).
+ *
+ * @author Vincent Behar
+ */
+public class WebHookTraceRing {
+
+    private final AtomicReferenceArray<WebHookTrace> traces;
+
+    /** number of traces recorded so far - the next trace goes to slot (sequence % capacity) */
+    private final AtomicLong sequence = new AtomicLong();
+
+    /** delivery ID / trace, for the traces in the ring */
+    private final ConcurrentMap<String, WebHookTrace> index = new ConcurrentHashMap<String, WebHookTrace>();
+
+    /**
+     * @param capacity maximum number of traces kept
+     */
+    public WebHookTraceRing(int capacity) {
+        super();
+        traces = new AtomicReferenceArray<WebHookTrace>(capacity);
+    }
+
+    /**
+     * Record (publish) the given trace, overwriting the oldest one if the ring is full.
+     *
+     * @param trace to record
+     */
+    public void record(WebHookTrace trace) {
+        // indexed before it is in the ring : the writer that overwrites it can't unindex it first
+        index.put(trace.getId(), trace);
+        WebHookTrace overwritten = traces.getAndSet((int) (sequence.getAndIncrement() % traces.length()), trace);
+        if (overwritten != null) {
+            index.remove(overwritten.getId(), overwritten);
+        }
+    }
+
+    /**
+     * @param id of a delivery
+     * @return the trace of the given delivery, or null if it is not (or no longer) in the ring
+     */
+    public WebHookTrace get(String id) {
+        return index.get(id);
+    }
+
+    /**
+     * Find the most recent traces matching the given criteria (see
+     * {@link WebHookTrace#matches(String, String, String)}).
+     *
+     * @param id of a delivery - may be null
+     * @param url of a webhook listener - may be null
+     * @param gav prefix of a "groupId:artifactId:version[:classifier]" string - may be null
+     * @param max number of traces to return
+     * @return the matching traces, most recent first - may be empty, won't be null
+     */
+    public List<WebHookTrace> find(String id, String url, String gav, int max) {
+        List<WebHookTrace> found = new ArrayList<WebHookTrace>();
+        long last = sequence.get() - 1;
+        long first = Math.max(0, last - traces.length() + 1);
+        for (long i = last; i >= first && found.size() < max; i--) {
+            WebHookTrace trace = traces.get((int) (i % traces.length()));
+            // the slot may have been overwritten (or not yet published) by a concurrent writer : at worst, we skip a
+            // trace or report a more recent one
+            if (trace != null && trace.matches(id, url, gav) && !found.contains(trace)) {
+                found.add(trace);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the number of traces recorded so far (including the overwritten ones)
+     */
+    public long getRecordedCount() {
+        return sequence.get();
+    }
+
+}
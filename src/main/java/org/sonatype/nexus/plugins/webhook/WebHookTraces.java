@@ -0,0 +1,104 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.util.Arrays;
+import java.util.List;
+import org.apache.commons.lang.StringUtils;
+import org.codehaus.plexus.component.annotations.Component;
+import org.codehaus.plexus.component.annotations.Requirement;
+import org.restlet.Context;
+import org.restlet.data.Form;
+import org.restlet.data.MediaType;
+import org.restlet.data.Request;
+import org.restlet.data.Response;
+import org.restlet.data.Status;
+import org.restlet.resource.ResourceException;
+import org.restlet.resource.Variant;
+import org.sonatype.plexus.rest.resource.AbstractPlexusResource;
+import org.sonatype.plexus.rest.resource.PathProtectionDescriptor;
+import org.sonatype.plexus.rest.resource.PlexusResource;
+
+/**
+ * HTTP resource for querying the traces of the most recent deliveries (see {@link WebHookTraceRing}).<br>
+ * Send HTTP GET requests to "NEXUS_HOST/service/local/webhooks/traces" with the following (optional) parameters :<br>
+ * <ul>
+ * <li><strong>id</strong> : ID of a delivery (as sent in the "X-Nexus-WebHook-Delivery" header)</li>
+ * <li><strong>url</strong> : url of a webhook listener</li>
+ * <li><strong>gav</strong> : groupId:artifactId:version of an artifact (or just the beginning of it)</li>
+ * <li><strong>max</strong> : maximum number of traces (default to 100)</li>
+ * </ul>
+ * <br>
+ * Example : <code>NEXUS_HOST/service/local/webhooks/traces?gav=com.example:app:1.0.0</code> <br>
+ * The HTTP response will be "text/plain", with one trace per line, most recent first - the traces of the pending
+ * deliveries (queued, or in progress) have no completed timestamp yet.
+ *
+ * @author Vincent Behar
+ */
+@Component(role = PlexusResource.class, hint = "webHookTraces")
+public class WebHookTraces extends AbstractPlexusResource {
+
+    private static final transient int DEFAULT_MAX = 100;
+
+    @Requirement
+    private WebHookNotifier webHookNotifier;
+
+    @Override
+    public String getResourceUri() {
+        return "/webhooks/traces";
+    }
+
+    @Override
+    public Object get(Context context, Request request, Response response, Variant variant) throws ResourceException {
+        Form form = request.getResourceRef().getQueryAsForm();
+
+        int max = DEFAULT_MAX;
+        try {
+            max = Integer.parseInt(form.getFirstValue("max", Integer.toString(max)));
+        } catch (NumberFormatException e) {
+            throw new ResourceException(Status.CLIENT_ERROR_BAD_REQUEST, "Invalid max : " + e.getMessage(), e);
+        }
+
+        List<WebHookTrace> traces = webHookNotifier.getTraces()
+                                                   .find(StringUtils.trimToNull(form.getFirstValue("id")),
+                                                         StringUtils.trimToNull(form.getFirstValue("url")),
+                                                         StringUtils.trimToNull(form.getFirstValue("gav")),
+                                                         max);
+        StringBuilder lines = new StringBuilder();
+        for (WebHookTrace trace : traces) {
+            lines.append(trace).append("\n");
+        }
+        return lines.toString();
+    }
+
+    @Override
+    public PathProtectionDescriptor getResourceProtection() {
+        // should be new PathProtectionDescriptor(getResourceUri(), "anon");
+        // BUT https://issues.sonatype.org/browse/NEXUS-3951
+        return new PathProtectionDescriptor(getResourceUri(), "authcBasic");
+    }
+
+    @Override
+    public List<Variant> getVariants() {
+        return Arrays.asList(new Variant(MediaType.TEXT_PLAIN));
+    }
+
+    @Override
+    public Object getPayloadInstance() {
+        return null;
+    }
+
+}
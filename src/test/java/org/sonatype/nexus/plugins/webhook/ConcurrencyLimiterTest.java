@@ -0,0 +1,212 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the {@link ConcurrencyLimiter}
+ *
+ * @author Vincent Behar
+ */
+public class ConcurrencyLimiterTest {
+
+    private static final transient long FAST = 10000000L;
+
+    private static final transient long SLOW = 100000000L;
+
+    @Test
+    public void increaseWhenFastAndSaturated() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(3, 1, 10);
+
+        for (int i = 0; i < 200; i++) {
+            saturate(limiter, FAST, true);
+        }
+
+        Assert.assertEquals(10, limiter.getLimit());
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void decreaseOnErrors() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 10);
+
+        for (int i = 0; i < 20; i++) {
+            saturate(limiter, FAST, false);
+        }
+
+        Assert.assertEquals(1, limiter.getLimit());
+    }
+
+    @Test
+    public void decreaseOnCongestion() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 2, 10);
+        saturate(limiter, FAST, true);
+
+        for (int i = 0; i < 20; i++) {
+            saturate(limiter, SLOW, true);
+        }
+
+        Assert.assertEquals(2, limiter.getLimit());
+        Assert.assertEquals(FAST, limiter.getMinRtt());
+    }
+
+    @Test
+    public void ignoreNoiseOnFastEndpoints() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(3, 1, 10);
+        saturate(limiter, 1000000L, true);
+
+        for (int i = 0; i < 200; i++) {
+            saturate(limiter, 5000000L, true);
+        }
+
+        Assert.assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    public void sharedLimiterFollowsCongestion() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 2, 10);
+
+        for (int i = 0; i < 20; i++) {
+            saturate(limiter, true);
+        }
+        Assert.assertEquals(2, limiter.getLimit());
+
+        for (int i = 0; i < 200; i++) {
+            saturate(limiter, false);
+        }
+        Assert.assertEquals(10, limiter.getLimit());
+    }
+
+    @Test
+    public void noIncreaseWhenUnused() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 10);
+
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release(FAST, true);
+        }
+
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void lowerMaxLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(8, 1, 10);
+
+        limiter.setMaxLimit(4);
+        Assert.assertEquals(4, limiter.getLimit());
+        for (int i = 0; i < 200; i++) {
+            saturate(limiter, FAST, true);
+        }
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test(timeout = 5000)
+    public void acquireBlocksAtLimit() throws Exception {
+        final ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 1);
+        limiter.acquire();
+
+        Thread thread = new Thread(new Runnable() {
+
+            public void run() {
+                try {
+                    limiter.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        thread.start();
+        thread.join(200);
+        Assert.assertTrue(thread.isAlive());
+
+        limiter.release(FAST, true);
+        thread.join();
+        Assert.assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void tryAcquireAtLimit() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(2, 1, 2);
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertTrue(limiter.tryAcquire());
+        Assert.assertFalse(limiter.tryAcquire());
+        Assert.assertEquals(2, limiter.getInFlight());
+
+        limiter.release(FAST, true);
+        Assert.assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void releaseWithoutSample() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(4, 1, 10);
+        limiter.acquire();
+        limiter.release(FAST, true);
+
+        // not sent : neither a round-trip time nor a change of the limit
+        for (int i = 0; i < 100; i++) {
+            limiter.acquire();
+            limiter.release();
+        }
+        Assert.assertEquals(FAST, limiter.getMinRtt());
+        Assert.assertEquals(FAST, limiter.getLastRtt());
+        Assert.assertEquals(4, limiter.getLimit());
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+
+    @Test
+    public void sampleKeepsTheSlot() throws Exception {
+        ConcurrencyLimiter limiter = new ConcurrencyLimiter(1, 1, 10);
+        limiter.acquire();
+        for (int i = 0; i < 5; i++) {
+            Assert.assertFalse(limiter.sample(FAST, true));
+            Assert.assertEquals(1, limiter.getInFlight());
+        }
+        limiter.release();
+        // used at its limit : grown as with released requests
+        Assert.assertTrue(Integer.toString(limiter.getLimit()), limiter.getLimit() > 1);
+        Assert.assertEquals(0, limiter.getInFlight());
+    }
+
+    /**
+     * Acquire all the available slots of the given limiter, then release them with the given result.
+     */
+    private void saturate(ConcurrencyLimiter limiter, long rtt, boolean success) throws InterruptedException {
+        int count = limiter.getLimit();
+        for (int i = 0; i < count; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < count; i++) {
+            limiter.release(rtt, success);
+        }
+    }
+
+    /**
+     * Acquire all the available slots of the given (shared) limiter, then release them with the given congestion.
+     */
+    private void saturate(ConcurrencyLimiter limiter, boolean congested) throws InterruptedException {
+        int count = limiter.getLimit();
+        for (int i = 0; i < count; i++) {
+            limiter.acquire();
+        }
+        for (int i = 0; i < count; i++) {
+            limiter.release(congested);
+        }
+    }
+
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.io.IOUtils;
+import org.json.JSONObject;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An in-process webhook listener, for the tests, that can misbehave : add latency, fail at random (HTTP 500), close
+ * the connection without responding, or send its response slowly.<br>
+ * It listens on a free port of the loopback interface, so it doesn't need any network access.
+ *
+ * @author Vincent Behar
+ */
+public class StubReceiver {
+
+    static {
+        // the headers and the body of a response are written separately : without TCP_NODELAY, the body would wait
+        // for the (delayed) ACK of the headers, on the keep-alive connections
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+
+    private final HttpServer httpServer;
+
+    private final ExecutorService executor;
+
+    private final Random random = new Random();
+
+    /** delay (in milliseconds) before handling a request */
+    private volatile long latency;
+
+    /** probability (0 to 1) of responding with an HTTP 500 */
+    private volatile double failureRate;
+
+    /** probability (0 to 1) of closing the connection without responding */
+    private volatile double resetRate;
+
+    /** duration (in milliseconds) of sending the response body, byte after byte */
+    private volatile long slowResponse;
+
+    /** ID of the delivery (see {@link WebHookDelivery#ID_HEADER}) / number of requests received */
+    private final ConcurrentHashMap<String, AtomicInteger> deliveries = new ConcurrentHashMap<String, AtomicInteger>();
+
+    /** number of requests acknowledged (with an HTTP 200) */
+    private final AtomicInteger acknowledged = new AtomicInteger();
+
+    /** version of the artifact of each (valid) notification received */
+    private final ConcurrentLinkedQueue<String> versions = new ConcurrentLinkedQueue<String>();
+
+    /** delay (in milliseconds) between the event and its reception, for each notification received */
+    private final ConcurrentLinkedQueue<Long> latencies = new ConcurrentLinkedQueue<Long>();
+
+    /**
+     * Start a new receiver, on a free port.
+     *
+     * @throws IOException if the HTTP server can't be started
+     */
+    public StubReceiver() throws IOException {
+        super();
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 100);
+        executor = Executors.newCachedThreadPool();
+        httpServer.setExecutor(executor);
+        httpServer.createContext("/", new HttpHandler() {
+
+            public void handle(HttpExchange httpExchange) throws IOException {
+                StubReceiver.this.handle(httpExchange);
+            }
+        });
+        httpServer.start();
+    }
+
+    private void handle(HttpExchange httpExchange) throws IOException {
+        long received = System.currentTimeMillis();
+        String body = IOUtils.toString(httpExchange.getRequestBody(), "UTF-8");
+        IOUtils.closeQuietly(httpExchange.getRequestBody());
+
+        String id = httpExchange.getRequestHeaders().getFirst(WebHookDelivery.ID_HEADER);
+        if (id != null) {
+            deliveries.putIfAbsent(id, new AtomicInteger());
+            deliveries.get(id).incrementAndGet();
+        }
+        try {
+            JSONObject event = new JSONObject(body);
+            versions.add(event.getJSONObject("artifact").getString("version"));
+            latencies.add(received - event.getLong("timestamp"));
+        } catch (Exception e) {
+            // not a JSON event, just count it
+        }
+
+        try {
+            if (latency > 0) {
+                Thread.sleep(latency);
+            }
+            if (random.nextDouble() < resetRate) {
+                // no response at all
+                httpExchange.close();
+                return;
+            }
+            boolean failure = random.nextDouble() < failureRate;
+            byte[] response = (failure ? "Oops" : "Thanks").getBytes("UTF-8");
+            httpExchange.sendResponseHeaders(failure ? 500 : 200, response.length);
+            if (!failure) {
+                // counted before the body is sent : the delivery is only completed once its response has been read
+                acknowledged.incrementAndGet();
+            }
+            OutputStream stream = httpExchange.getResponseBody();
+            if (slowResponse > 0) {
+                for (byte b : response) {
+                    stream.write(b);
+                    stream.flush();
+                    Thread.sleep(slowResponse / response.length);
+                }
+            } else {
+                stream.write(response);
+            }
+            IOUtils.closeQuietly(stream);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            httpExchange.close();
+        }
+    }
+
+    /**
+     * @return the url of this receiver
+     */
+    public String getUrl() {
+        return "http://127.0.0.1:" + httpServer.getAddress().getPort() + "/";
+    }
+
+    public StubReceiver withLatency(long latency) {
+        this.latency = latency;
+        return this;
+    }
+
+    public StubReceiver withFailureRate(double failureRate) {
+        this.failureRate = failureRate;
+        return this;
+    }
+
+    public StubReceiver withResetRate(double resetRate) {
+        this.resetRate = resetRate;
+        return this;
+    }
+
+    public StubReceiver withSlowResponse(long slowResponse) {
+        this.slowResponse = slowResponse;
+        return this;
+    }
+
+    /**
+     * @return ID of the delivery / number of requests received for this delivery
+     */
+    public ConcurrentHashMap<String, AtomicInteger> getDeliveries() {
+        return deliveries;
+    }
+
+    /**
+     * @return the number of requests acknowledged (with an HTTP 200)
+     */
+    public int getAcknowledgedCount() {
+        return acknowledged.get();
+    }
+
+    /**
+     * @return the versions of the artifacts of the notifications received
+     */
+    public ConcurrentLinkedQueue<String> getVersions() {
+        return versions;
+    }
+
+    /**
+     * @return the delays (in milliseconds) between the events and their reception
+     */
+    public ConcurrentLinkedQueue<Long> getLatencies() {
+        return latencies;
+    }
+
+    public void stop() {
+        httpServer.stop(0);
+        executor.shutdownNow();
+    }
+
+}
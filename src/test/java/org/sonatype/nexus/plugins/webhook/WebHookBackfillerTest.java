@@ -0,0 +1,382 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import java.io.File;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.index.artifact.Gav;
+import org.apache.maven.index.artifact.GavCalculator;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.nexus.plugins.webhook.WebHookBackfiller.RepositoryItemPath;
+import org.sonatype.nexus.proxy.ResourceStoreRequest;
+import org.sonatype.nexus.proxy.item.StorageCollectionItem;
+import org.sonatype.nexus.proxy.item.StorageFileItem;
+import org.sonatype.nexus.proxy.item.StorageItem;
+import org.sonatype.nexus.proxy.maven.MavenRepository;
+import org.sonatype.nexus.proxy.registry.RepositoryRegistry;
+
+/**
+ * Test the {@link WebHookBackfiller}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookBackfillerTest {
+
+    private static final transient String URL = "http://localhost/backfill/";
+
+    private File directory;
+
+    private WebHookBackfiller backfiller;
+
+    /** the notifications sent by the backfiller : delivery ID / path */
+    private Map<String, String> notified;
+
+    /** delivery ID / delivery */
+    private Map<String, WebHookDelivery> deliveries;
+
+    /** true to complete the deliveries as soon as they are queued */
+    private volatile boolean completing;
+
+    private WebHookNotifier.DeliveryListener deliveryListener;
+
+    @Test
+    public void walkInOrder() throws Exception {
+        completing = true;
+        WebHookBackfiller.Job job = backfiller.start("releases", URL, 1000);
+        awaitDone(job);
+
+        Assert.assertEquals(WebHookBackfiller.State.FINISHED, job.getState());
+        Assert.assertEquals(Arrays.asList("/com/example/app/1.0/app-1.0.jar", "/com/example/app/2.0/app-2.0.jar",
+                                          "/com/example/lib/1.0/lib-1.0.jar"),
+                            new ArrayList<String>(notified.values()));
+        Assert.assertEquals("true", readCheckpoint().getProperty("finished"));
+    }
+
+    @Test
+    public void checkpointOfCompletedNotifications() throws Exception {
+        final WebHookBackfiller.Job job = backfiller.start("releases", URL, 1000);
+        awaitNotified(3);
+        List<String> deliveryIds = new ArrayList<String>(notified.keySet());
+
+        // the 2nd delivery is completed before the 1st one : the checkpoint waits for it
+        complete(deliveryIds.get(1));
+        backfiller.cancel("releases", URL);
+        awaitDone(job);
+        Assert.assertEquals(WebHookBackfiller.State.CANCELLED, job.getState());
+        Assert.assertNull(readCheckpoint().getProperty("lastPath"));
+        Assert.assertEquals("0", readCheckpoint().getProperty("count"));
+
+        notified.clear();
+        WebHookBackfiller.Job resumedJob = backfiller.start("releases", URL, 1000);
+        awaitNotified(3);
+        deliveryIds = new ArrayList<String>(notified.keySet());
+        complete(deliveryIds.get(1));
+        complete(deliveryIds.get(0));
+        backfiller.cancel("releases", URL);
+        awaitDone(resumedJob);
+        Assert.assertEquals("/com/example/app/2.0/app-2.0.jar", readCheckpoint().getProperty("lastPath"));
+        Assert.assertEquals("2", readCheckpoint().getProperty("count"));
+
+        // the 3rd notification was still queued : it is sent again
+        notified.clear();
+        completing = true;
+        awaitDone(backfiller.start("releases", URL, 1000));
+        Assert.assertEquals(Collections.singletonList("/com/example/lib/1.0/lib-1.0.jar"),
+                            new ArrayList<String>(notified.values()));
+        Assert.assertEquals("3", readCheckpoint().getProperty("count"));
+    }
+
+    @Test
+    public void startOnceRunning() throws Exception {
+        WebHookBackfiller.Job job = backfiller.start("releases", URL, 1000);
+        try {
+            backfiller.start("releases", URL, 1000);
+            Assert.fail("The job is already running");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        backfiller.cancel("releases", URL);
+        awaitDone(job);
+
+        Assert.assertNotSame(job, backfiller.start("releases", URL, 1000));
+        Assert.assertEquals(1, backfiller.getJobs().size());
+    }
+
+    @Test
+    public void onlyConfiguredEndpoints() throws Exception {
+        try {
+            backfiller.start("releases", "http://example.com/elsewhere/", 1000);
+            Assert.fail("Not a configured webhook");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        Assert.assertTrue(backfiller.getJobs().isEmpty());
+
+        // by the name of its endpoint
+        completing = true;
+        WebHookBackfiller.Job job = backfiller.start("releases", "backfill", 1000);
+        Assert.assertEquals(URL, job.getUrl());
+        awaitDone(job);
+    }
+
+    @Test
+    public void stopInterruptsTheJob() throws Exception {
+        WebHookBackfiller.Job job = backfiller.start("releases", URL, 1000);
+        awaitNotified(3);
+
+        backfiller.stop();
+        Assert.assertEquals(WebHookBackfiller.State.CANCELLED, job.getState());
+        // not cancelled by the user : resumed at the next startup
+        Assert.assertEquals("false", readCheckpoint().getProperty("cancelled"));
+        try {
+            backfiller.start("releases", URL, 1000);
+            Assert.fail("The backfills are stopped");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void pathOrder() throws Exception {
+        RepositoryItemPath path = RepositoryItemPath.parse("/com/example/app/1.0/app-1.0.jar");
+        Assert.assertEquals("/com/example/app/1.0/app-1.0.jar", path.getPath());
+        Assert.assertEquals("/", RepositoryItemPath.ROOT.getPath());
+        Assert.assertEquals(0, path.compareTo(RepositoryItemPath.ROOT.child("com").child("example").child("app")
+                                                                     .child("1.0").child("app-1.0.jar")));
+
+        // depth-first : a directory is before its children, and its children before its next sibling
+        RepositoryItemPath directory = RepositoryItemPath.parse("/com/example/app");
+        Assert.assertTrue(directory.compareTo(path) < 0);
+        Assert.assertTrue(path.compareTo(RepositoryItemPath.parse("/com/example/app2")) < 0);
+        Assert.assertTrue(path.compareTo(RepositoryItemPath.parse("/com/example/app/2.0")) < 0);
+        Assert.assertTrue(path.compareTo(RepositoryItemPath.parse("/com/example/app/1.0")) > 0);
+
+        Assert.assertTrue(directory.isAncestorOf(path));
+        Assert.assertTrue(RepositoryItemPath.ROOT.isAncestorOf(path));
+        Assert.assertFalse(path.isAncestorOf(path));
+        Assert.assertFalse(path.isAncestorOf(directory));
+        Assert.assertFalse(RepositoryItemPath.parse("/com/example/app2").isAncestorOf(path));
+        Assert.assertFalse(directory.isAncestorOf(null));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("webhooks-backfill", "");
+        directory.delete();
+        notified = Collections.synchronizedMap(new LinkedHashMap<String, String>());
+        deliveries = new ConcurrentHashMap<String, WebHookDelivery>();
+
+        final Map<String, List<String>> children = new HashMap<String, List<String>>();
+        children.put("/", Arrays.asList("com", ".index"));
+        children.put("/.index", Arrays.asList("nexus-maven-repository-index.gz"));
+        children.put("/com", Arrays.asList("example"));
+        children.put("/com/example", Arrays.asList("lib", "app"));
+        children.put("/com/example/app", Arrays.asList("2.0", "1.0"));
+        children.put("/com/example/app/1.0", Arrays.asList("app-1.0.pom.sha1", "app-1.0.jar"));
+        children.put("/com/example/app/2.0", Arrays.asList("app-2.0.jar"));
+        children.put("/com/example/lib", Arrays.asList("1.0"));
+        children.put("/com/example/lib/1.0", Arrays.asList("lib-1.0.jar"));
+        final MavenRepository repository = proxy(MavenRepository.class, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getId".equals(method.getName()) || "getName".equals(method.getName())) {
+                    return "releases";
+                } else if ("getGavCalculator".equals(method.getName())) {
+                    return gavCalculator();
+                } else if ("list".equals(method.getName())) {
+                    String path = ((ResourceStoreRequest) args[1]).getRequestPath();
+                    List<StorageItem> items = new ArrayList<StorageItem>();
+                    for (String name : children.get(path)) {
+                        String childPath = ("/".equals(path) ? "" : path) + "/" + name;
+                        items.add(item(childPath, children.containsKey(childPath)));
+                    }
+                    return items;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+        RepositoryRegistry repositoryRegistry = proxy(RepositoryRegistry.class, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getRepository".equals(method.getName())) {
+                    return repository;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+
+        WebHookPlugin plugin = new WebHookPlugin() {
+
+            @Override
+            public File getDataDirectory() {
+                return directory;
+            }
+        };
+        WebHookNotifier notifier = new WebHookNotifier() {
+
+            @Override
+            public List<String> notify(ArtifactStoredEvent event, Collection<String> urls) {
+                Gav gav = event.getArtifact();
+                WebHookDelivery delivery = new WebHookDelivery(WebHookDelivery.toGav(gav), event.getTimestamp(),
+                                                               urls.iterator().next(), "application/json", new byte[0]);
+                deliveries.put(delivery.getId(), delivery);
+                notified.put(delivery.getId(), "/" + gav.getGroupId().replace('.', '/') + "/" + gav.getArtifactId()
+                                               + "/" + gav.getVersion() + "/" + gav.getName());
+                if (completing) {
+                    complete(delivery.getId());
+                }
+                return Collections.singletonList(delivery.getId());
+            }
+
+            @Override
+            public void addDeliveryListener(DeliveryListener listener) {
+                deliveryListener = listener;
+            }
+        };
+
+        Properties configuration = new Properties();
+        configuration.setProperty("webhooks.endpoint.backfill.url", URL);
+        configuration.setProperty("releases", "backfill");
+        plugin.configure(configuration);
+
+        backfiller = new WebHookBackfiller();
+        setField("webHookPlugin", plugin);
+        setField("webHookNotifier", notifier);
+        setField("repositoryRegistry", repositoryRegistry);
+        setField("logger", new ConsoleLogger(Logger.LEVEL_DEBUG, "console"));
+        backfiller.initialize();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        backfiller.dispose();
+        FileUtils.deleteDirectory(directory);
+    }
+
+    /**
+     * Complete the given delivery, as the {@link WebHookNotifier} would once it is sent.
+     */
+    private void complete(String deliveryId) {
+        deliveryListener.completed(new WebHookTrace(deliveries.get(deliveryId)));
+    }
+
+    private void awaitNotified(final int count) throws Exception {
+        await().atMost(5, SECONDS).pollInterval(10, MILLISECONDS).until(new Callable<Boolean>() {
+
+            public Boolean call() {
+                return notified.size() >= count;
+            }
+        });
+    }
+
+    private void awaitDone(final WebHookBackfiller.Job job) throws Exception {
+        await().atMost(5, SECONDS).pollInterval(10, MILLISECONDS).until(new Callable<Boolean>() {
+
+            public Boolean call() {
+                return job.isDone();
+            }
+        });
+    }
+
+    private Properties readCheckpoint() throws Exception {
+        File[] checkpoints = new File(directory, WebHookBackfiller.CHECKPOINTS_DIRNAME).listFiles();
+        Assert.assertEquals(1, checkpoints.length);
+        Properties properties = new Properties();
+        InputStream stream = FileUtils.openInputStream(checkpoints[0]);
+        try {
+            properties.load(stream);
+        } finally {
+            stream.close();
+        }
+        return properties;
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        Field field = WebHookBackfiller.class.getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(backfiller, value);
+    }
+
+    private static GavCalculator gavCalculator() {
+        return proxy(GavCalculator.class, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("pathToGav".equals(method.getName())) {
+                    // "/groupId/as/path/artifactId/version/name"
+                    String[] parts = StringUtils.split((String) args[0], "/");
+                    String name = parts[parts.length - 1];
+                    String groupId = StringUtils.join(parts, '.', 0, parts.length - 3);
+                    return new Gav(groupId, parts[parts.length - 3], parts[parts.length - 2], null,
+                                   StringUtils.substringAfterLast(name, "."), null, null, name, name.endsWith(".sha1"),
+                                   null, false, null);
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    private static StorageItem item(final String path, boolean collection) {
+        Class<? extends StorageItem> type = collection ? StorageCollectionItem.class : StorageFileItem.class;
+        return proxy(type, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("getPath".equals(method.getName())) {
+                    return path;
+                } else if ("getName".equals(method.getName())) {
+                    return StringUtils.substringAfterLast(path, "/");
+                } else if ("getModified".equals(method.getName())) {
+                    return 1L;
+                } else if ("getLength".equals(method.getName())) {
+                    return 1L;
+                } else if ("getAttributes".equals(method.getName())) {
+                    return null;
+                }
+                throw new UnsupportedOperationException(method.getName());
+            }
+        });
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+}
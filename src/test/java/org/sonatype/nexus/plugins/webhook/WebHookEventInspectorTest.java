@@ -0,0 +1,95 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import org.apache.maven.index.artifact.Gav;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonatype.nexus.proxy.item.StorageFileItem;
+
+/**
+ * Test the {@link WebHookEventInspector}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookEventInspectorTest {
+
+    @Test
+    public void artifactMetadata() throws Exception {
+        Gav gav = WebHookEventInspector.metadataToGav("/com/example/app/maven-metadata.xml", null);
+        Assert.assertEquals("com.example", gav.getGroupId());
+        Assert.assertEquals("app", gav.getArtifactId());
+        Assert.assertEquals("", gav.getVersion());
+        Assert.assertEquals("com.example:app", WebHookDelivery.toGav(gav));
+    }
+
+    @Test
+    public void snapshotMetadata() throws Exception {
+        Gav gav = WebHookEventInspector.metadataToGav("/com/example/app/1.0.0-SNAPSHOT/maven-metadata.xml",
+                                                          null);
+        Assert.assertEquals("com.example", gav.getGroupId());
+        Assert.assertEquals("app", gav.getArtifactId());
+        Assert.assertEquals("1.0.0-SNAPSHOT", gav.getVersion());
+        Assert.assertTrue(gav.isSnapshot());
+    }
+
+    @Test
+    public void invalidMetadata() throws Exception {
+        Assert.assertNull(WebHookEventInspector.metadataToGav("/app/maven-metadata.xml", null));
+    }
+
+    @Test
+    public void groupMetadata() throws Exception {
+        String metadata = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<metadata>\n  <plugins>\n    <plugin>\n"
+                          + "      <prefix>app</prefix>\n    </plugin>\n  </plugins>\n</metadata>\n";
+        Assert.assertNull(WebHookEventInspector.metadataToGav("/com/example/app/maven-metadata.xml",
+                                                              fileItem(metadata)));
+    }
+
+    @Test
+    public void artifactMetadataContent() throws Exception {
+        String metadata = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<metadata>\n  <groupId>com.example</groupId>\n"
+                          + "  <artifactId>app</artifactId>\n  <versioning>\n    <latest>1.0</latest>\n"
+                          + "  </versioning>\n</metadata>\n";
+        Gav gav = WebHookEventInspector.metadataToGav("/com/example/app/maven-metadata.xml", fileItem(metadata));
+        Assert.assertEquals("com.example:app", WebHookDelivery.toGav(gav));
+    }
+
+    /**
+     * @param content of the file
+     * @return a {@link StorageFileItem} with the given content
+     */
+    private static StorageFileItem fileItem(final String content) {
+        return (StorageFileItem) Proxy.newProxyInstance(StorageFileItem.class.getClassLoader(),
+                                                        new Class<?>[] { StorageFileItem.class },
+                                                        new InvocationHandler() {
+
+                                                            public Object invoke(Object proxy, Method method,
+                                                                                 Object[] args) throws Exception {
+                                                                if ("getInputStream".equals(method.getName())) {
+                                                                    return new ByteArrayInputStream(
+                                                                            content.getBytes("UTF-8"));
+                                                                }
+                                                                throw new UnsupportedOperationException(method.getName());
+                                                            }
+                                                        });
+    }
+
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import org.apache.maven.index.artifact.Gav;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Item;
+import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Repository;
+
+/**
+ * Test the {@link WebHookEventRecord}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookEventRecordTest {
+
+    @Test
+    public void roundTrip() throws Exception {
+        ArtifactStoredEvent event = event("1.0-SNAPSHOT");
+        event.setArtifact(new Gav("com.example", "app", "1.0-20110412.101010-3", "sources", "jar", 3, 1302602410000L,
+                                  "app-1.0-20110412.101010-3-sources.jar", false, null, false, null));
+        event.setItem(new Item(1024L, "da39a3ee5e6b4b0d3255bfef95601890afd80709", null, 1300000000000L));
+        WebHookEventRecord record = WebHookEventRecord.of(event);
+
+        Assert.assertEquals(event.toJson(), record.toEvent().toJson());
+        Assert.assertEquals(WebHookDelivery.toGav(event.getArtifact()), record.getGav());
+        Assert.assertEquals("releases", record.getRepositoryId());
+    }
+
+    @Test
+    public void missingValues() throws Exception {
+        ArtifactStoredEvent event = event("1.0");
+        event.setTimestamp(null);
+        event.setUser(null);
+
+        Assert.assertEquals(event.toJson(), WebHookEventRecord.of(event).toEvent().toJson());
+    }
+
+    @Test
+    public void sharedIdentifiers() throws Exception {
+        WebHookEventRecord first = WebHookEventRecord.of(event(new String("1.0")));
+        WebHookEventRecord second = WebHookEventRecord.of(event(new String("1.0")));
+
+        Assert.assertSame(first.getRepositoryId(), second.getRepositoryId());
+        Assert.assertSame(first.toEvent().getRepository().getName(), second.toEvent().getRepository().getName());
+        Assert.assertSame(first.toEvent().getArtifact().getGroupId(), second.toEvent().getArtifact().getGroupId());
+        Assert.assertSame(first.toEvent().getArtifact().getArtifactId(),
+                          second.toEvent().getArtifact().getArtifactId());
+        // high cardinality : not interned
+        Assert.assertNotSame(first.toEvent().getArtifact().getVersion(), second.toEvent().getArtifact().getVersion());
+    }
+
+    @Test
+    public void renderedWhenSent() throws Exception {
+        ArtifactStoredEvent event = event("1.0");
+        WebHookDelivery delivery = new WebHookDelivery(WebHookEventRecord.of(event), 42L, "http://localhost/",
+                                                       WebHookTemplate.DEFAULT);
+
+        Assert.assertEquals("releases", delivery.getRepository());
+        Assert.assertEquals("com.example:app:1.0", delivery.getGav());
+        Assert.assertEquals(event.toJson(), new String(delivery.getPayload(), "UTF-8"));
+        // rendered only once
+        Assert.assertSame(delivery.getPayload(), delivery.getPayload());
+        // the rendered payload is not counted : the delivery is smaller than its rendered form
+        Assert.assertTrue(delivery.getSize() < WebHookDelivery.fromBytes(delivery.toBytes()).getSize());
+
+        WebHookDelivery copy = WebHookDelivery.fromBytes(delivery.toBytes());
+        Assert.assertEquals(delivery.getId(), copy.getId());
+        Assert.assertEquals(delivery.getGav(), copy.getGav());
+        Assert.assertArrayEquals(delivery.getPayload(), copy.getPayload());
+    }
+
+    @Test
+    public void renderedOncePerTemplate() throws Exception {
+        WebHookEventRecord record = WebHookEventRecord.of(event("1.0"));
+        WebHookTemplate chat = WebHookTemplate.compile("chat", null, "{\"text\":\"${artifact.version}\"}");
+        WebHookDelivery first = new WebHookDelivery(record, 42L, "http://localhost/one/", WebHookTemplate.DEFAULT);
+        WebHookDelivery second = new WebHookDelivery(record, 42L, "http://localhost/two/", WebHookTemplate.DEFAULT);
+        WebHookDelivery third = new WebHookDelivery(record, 42L, "http://localhost/three/", chat);
+
+        // a single rendering for the urls sharing the default template
+        Assert.assertSame(first.getPayload(), second.getPayload());
+        Assert.assertEquals("{\"text\":\"1.0\"}", new String(third.getPayload(), "UTF-8"));
+        Assert.assertNotSame(first.getPayload(), third.getPayload());
+    }
+
+    private static ArtifactStoredEvent event(String version) {
+        ArtifactStoredEvent event = new ArtifactStoredEvent();
+        event.setType(WebHookEventType.STORED);
+        event.setRepository(new Repository(new String("releases"), "Releases"));
+        event.setArtifact(new Gav(new String("com.example"), new String("app"), version));
+        event.setTimestamp(42L);
+        event.setUser("robert");
+        return event;
+    }
+
+}
@@ -0,0 +1,165 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonatype.nexus.proxy.item.StorageItem;
+import org.sonatype.nexus.proxy.maven.MavenRepository;
+
+/**
+ * Test the {@link WebHookEventRing}, with several producers and a small ring (so that the producers have to wait for
+ * the consumer).
+ *
+ * @author Vincent Behar
+ */
+public class WebHookEventRingTest {
+
+    private static final transient int PRODUCERS = 4;
+
+    private static final transient int EVENTS = 10000;
+
+    @Test(timeout = 30000)
+    public void everyEventIsConsumedInOrder() throws Exception {
+        final WebHookEventRing ring = new WebHookEventRing(16);
+
+        List<Thread> producers = new ArrayList<Thread>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final int producer = p;
+            Thread thread = new Thread() {
+
+                @Override
+                public void run() {
+                    for (int i = 0; i < EVENTS; i++) {
+                        if (!ring.publish(WebHookEventType.STORED, null, producer + "/" + i, null, i,
+                                          "user" + producer, 10000)) {
+                            throw new IllegalStateException("Dropped event " + producer + "/" + i);
+                        }
+                    }
+                }
+            };
+            producers.add(thread);
+            thread.start();
+        }
+
+        final int[] next = new int[PRODUCERS];
+        final int[] errors = new int[1];
+        WebHookEventRing.Handler handler = new WebHookEventRing.Handler() {
+
+            public void onEvent(WebHookEventType type, MavenRepository repository, String path, StorageItem item,
+                                long timestamp, Object user) {
+                int producer = Integer.parseInt(path.substring(0, path.indexOf('/')));
+                int i = Integer.parseInt(path.substring(path.indexOf('/') + 1));
+                // events of the same producer are consumed in the order they were published
+                if (i != next[producer] || timestamp != i || !("user" + producer).equals(user)
+                    || type != WebHookEventType.STORED) {
+                    errors[0]++;
+                }
+                next[producer] = i + 1;
+            }
+        };
+
+        int consumed = 0;
+        while (consumed < PRODUCERS * EVENTS) {
+            consumed += ring.drain(handler, 100);
+        }
+        for (Thread thread : producers) {
+            thread.join();
+        }
+
+        Assert.assertEquals(0, errors[0]);
+        Assert.assertEquals(PRODUCERS * EVENTS, consumed);
+        Assert.assertEquals(0, ring.drain(handler, 100));
+        Assert.assertEquals(0, ring.getBacklog());
+        Assert.assertEquals(0, ring.getDroppedCount());
+    }
+
+    @Test(timeout = 30000)
+    public void dropWhenFull() throws Exception {
+        WebHookEventRing ring = new WebHookEventRing(2);
+        Assert.assertTrue(ring.publish(WebHookEventType.STORED, null, "/a", null, 0, null, 10));
+        Assert.assertTrue(ring.publish(WebHookEventType.STORED, null, "/b", null, 0, null, 10));
+
+        // nobody consumes the events
+        long start = System.currentTimeMillis();
+        Assert.assertFalse(ring.publish(WebHookEventType.STORED, null, "/c", null, 0, null, 10));
+        Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+        Assert.assertEquals(1, ring.getDroppedCount());
+        Assert.assertEquals(2, ring.getBacklog());
+    }
+
+    @Test(timeout = 30000)
+    public void closeThenDrain() throws Exception {
+        WebHookEventRing ring = new WebHookEventRing(16);
+        final List<String> paths = new ArrayList<String>();
+        WebHookEventRing.Handler handler = new WebHookEventRing.Handler() {
+
+            public void onEvent(WebHookEventType type, MavenRepository repository, String path, StorageItem item,
+                                long timestamp, Object user) {
+                paths.add(path);
+            }
+        };
+        Assert.assertTrue(ring.publish(WebHookEventType.STORED, null, "/a", null, 0, null, 10));
+
+        ring.close();
+        Assert.assertTrue(ring.isClosed());
+        Assert.assertFalse(ring.isDrained());
+        Assert.assertFalse(ring.publish(WebHookEventType.STORED, null, "/b", null, 0, null, 10));
+        Assert.assertEquals(0, ring.getDroppedCount());
+
+        Assert.assertEquals(1, ring.drain(handler, 100));
+        Assert.assertTrue(ring.isDrained());
+        Assert.assertEquals(0, ring.getBacklog());
+        Assert.assertEquals(Collections.singletonList("/a"), paths);
+        // a closed ring doesn't block its consumer
+        ring.await();
+    }
+
+    @Test(timeout = 30000)
+    public void awaitIsWokenByPublish() throws Exception {
+        final WebHookEventRing ring = new WebHookEventRing(16);
+        final CountDownLatch woken = new CountDownLatch(1);
+        Thread consumer = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    ring.await();
+                    woken.countDown();
+                } catch (InterruptedException e) {
+                    // failed
+                }
+            }
+        };
+        consumer.start();
+        Assert.assertFalse(woken.await(100, TimeUnit.MILLISECONDS));
+
+        ring.publish(WebHookEventType.STORED, null, "/a", null, 0, null, 10);
+        Assert.assertTrue(woken.await(5, TimeUnit.SECONDS));
+        consumer.join();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityMustBeAPowerOf2() throws Exception {
+        new WebHookEventRing(10);
+    }
+
+}
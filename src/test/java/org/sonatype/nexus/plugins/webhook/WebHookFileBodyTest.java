@@ -0,0 +1,84 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link WebHookFileBody}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookFileBodyTest {
+
+    private File file;
+
+    private byte[] content;
+
+    @Test
+    public void streamFile() throws Exception {
+        WebHookFileBody body = new WebHookFileBody(file, "application/octet-stream", "app-1.0.jar");
+
+        Assert.assertEquals(content.length, body.getContentLength());
+        Assert.assertEquals("app-1.0.jar", body.getFilename());
+        Assert.assertEquals("application", body.getMediaType());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        body.writeTo(out);
+        Assert.assertArrayEquals(content, out.toByteArray());
+
+        // the request may be retried
+        out.reset();
+        body.writeTo(out);
+        Assert.assertArrayEquals(content, out.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void truncatedFile() throws Exception {
+        WebHookFileBody body = new WebHookFileBody(file, "application/octet-stream", "app-1.0.jar");
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(content.length / 2);
+        truncated.close();
+
+        body.writeTo(new ByteArrayOutputStream());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // more than a chunk
+        content = new byte[3 * 1024 * 1024 + 17];
+        new Random(42).nextBytes(content);
+        file = File.createTempFile("webhook-", ".jar");
+        FileOutputStream stream = new FileOutputStream(file);
+        stream.write(content);
+        stream.close();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Assert;
+import org.junit.Test;
+import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Item;
+import org.sonatype.nexus.proxy.item.StorageFileItem;
+
+/**
+ * Test the {@link WebHookItemCache}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookItemCacheTest {
+
+    private static final transient String PATH = "/com/example/app/1.0.0/app-1.0.0.jar";
+
+    private static final transient String SHA1 = "da39a3ee5e6b4b0d3255bfef95601890afd80709";
+
+    private static final transient String MD5 = "d41d8cd98f00b204e9800998ecf8427e";
+
+    @Test
+    public void fromAttributes() throws Exception {
+        Item item = WebHookItemCache.toItem(fileItem(PATH, 1024, 1300000000000L, SHA1));
+
+        Assert.assertEquals(new Item(1024L, SHA1, MD5, 1300000000000L), item);
+    }
+
+    @Test
+    public void unknownChecksums() throws Exception {
+        Item item = WebHookItemCache.toItem(fileItem(PATH, -1, 1300000000000L, null));
+
+        Assert.assertNull(item.getSize());
+        Assert.assertNull(item.getSha1());
+        Assert.assertNull(item.getMd5());
+        Assert.assertEquals(Long.valueOf(1300000000000L), item.getLastModified());
+    }
+
+    @Test
+    public void cachedPerPathAndModification() throws Exception {
+        WebHookItemCache cache = new WebHookItemCache(10);
+
+        Item item = cache.get("releases", fileItem(PATH, 1024, 1300000000000L, SHA1));
+        Assert.assertSame(item, cache.get("releases", fileItem(PATH, 1024, 1300000000000L, SHA1)));
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        // another repository
+        Assert.assertNotSame(item, cache.get("snapshots", fileItem(PATH, 1024, 1300000000000L, SHA1)));
+
+        // stored again
+        Item updated = cache.get("releases", fileItem(PATH, 2048, 1300000001000L, SHA1));
+        Assert.assertEquals(Long.valueOf(2048), updated.getSize());
+        Assert.assertEquals(3, cache.getMisses());
+
+        // deleted
+        Assert.assertSame(updated, cache.remove("releases", PATH));
+        Assert.assertNull(cache.remove("releases", PATH));
+    }
+
+    @Test
+    public void evictLeastRecentlyUsed() throws Exception {
+        WebHookItemCache cache = new WebHookItemCache(2);
+        cache.get("releases", fileItem("/a", 1, 1, SHA1));
+        cache.get("releases", fileItem("/b", 1, 1, SHA1));
+        cache.get("releases", fileItem("/a", 1, 1, SHA1));
+        cache.get("releases", fileItem("/c", 1, 1, SHA1));
+
+        Assert.assertEquals(2, cache.getSize());
+        Assert.assertNotNull(cache.remove("releases", "/a"));
+        Assert.assertNull(cache.remove("releases", "/b"));
+        Assert.assertNotNull(cache.remove("releases", "/c"));
+    }
+
+    /**
+     * @return a {@link StorageFileItem} with the given properties (and the MD5 checksum, if the SHA-1 is given)
+     */
+    private static StorageFileItem fileItem(final String path, final long length, final long modified, String sha1) {
+        final Map<String, String> attributes = new HashMap<String, String>();
+        if (sha1 != null) {
+            attributes.put(WebHookItemCache.SHA1_ATTRIBUTE, sha1);
+            attributes.put(WebHookItemCache.MD5_ATTRIBUTE, MD5);
+        }
+        return (StorageFileItem) Proxy.newProxyInstance(StorageFileItem.class.getClassLoader(),
+                                                        new Class<?>[] { StorageFileItem.class },
+                                                        new InvocationHandler() {
+
+                                                            public Object invoke(Object proxy, Method method,
+                                                                                 Object[] args) {
+                                                                if ("getPath".equals(method.getName())) {
+                                                                    return path;
+                                                                } else if ("getLength".equals(method.getName())) {
+                                                                    return length;
+                                                                } else if ("getModified".equals(method.getName())) {
+                                                                    return modified;
+                                                                } else if ("getAttributes".equals(method.getName())) {
+                                                                    return attributes;
+                                                                }
+                                                                throw new UnsupportedOperationException(method.getName());
+                                                            }
+                                                        });
+    }
+
+}
@@ -0,0 +1,86 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link WebHookLeftovers}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookLeftoversTest {
+
+    private File file;
+
+    @Test
+    public void roundTrip() throws Exception {
+        List<WebHookDelivery> deliveries = new ArrayList<WebHookDelivery>();
+        for (int i = 0; i < 100; i++) {
+            String url = "http://localhost/" + (i % 3);
+            deliveries.add(new WebHookDelivery("snapshots", "com.example:app:1.0-SNAPSHOT", i, url, "application/json",
+                                               ("{\"i\":" + i + "}").getBytes("UTF-8")));
+        }
+        deliveries.set(7, deliveries.get(7).withContentPath("/com/example/app/1.0-SNAPSHOT/app-1.0-SNAPSHOT.jar"));
+
+        Assert.assertEquals(100, WebHookLeftovers.write(file, deliveries));
+        Assert.assertFalse(new File(file.getParentFile(), file.getName() + ".tmp").exists());
+
+        List<WebHookDelivery> leftovers = WebHookLeftovers.read(file);
+        Assert.assertEquals(100, leftovers.size());
+        for (int i = 0; i < 100; i++) {
+            WebHookDelivery delivery = deliveries.get(i);
+            WebHookDelivery leftover = leftovers.get(i);
+            Assert.assertEquals(delivery.getId(), leftover.getId());
+            Assert.assertEquals(delivery.getUrl(), leftover.getUrl());
+            Assert.assertEquals(delivery.getRepository(), leftover.getRepository());
+            Assert.assertEquals(delivery.getEventTimestamp(), leftover.getEventTimestamp());
+            Assert.assertArrayEquals(delivery.getPayload(), leftover.getPayload());
+            Assert.assertEquals(delivery.getContentPath(), leftover.getContentPath());
+        }
+    }
+
+    @Test
+    public void empty() throws Exception {
+        Assert.assertEquals(0, WebHookLeftovers.write(file, new ArrayList<WebHookDelivery>()));
+        Assert.assertTrue(WebHookLeftovers.read(file).isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void invalidFile() throws Exception {
+        FileUtils.writeStringToFile(file, "not a leftovers file");
+        WebHookLeftovers.read(file);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("webhook-", ".leftovers");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        file.delete();
+    }
+
+}
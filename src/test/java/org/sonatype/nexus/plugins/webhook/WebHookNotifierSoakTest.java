@@ -0,0 +1,208 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.commons.lang.StringUtils;
+import org.apache.maven.index.artifact.Gav;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Repository;
+import org.sonatype.nexus.plugins.webhook.WebHookNotifier.DeliveryListener;
+
+/**
+ * Soak test for the {@link WebHookNotifier} : sustained load, for minutes, against misbehaving {@link StubReceiver}s
+ * (slow, flaky, ...). Checks that every delivery is completed, that each receiver acknowledged as many requests as
+ * the notifier counted successful deliveries, and the throughput, latency and heap growth.<br>
+ * Not run by default (it is long) : use the "soak" profile (<code>mvn test -Psoak</code>). The load and the thresholds
+ * can be changed with the following system properties :
+ * <ul>
+ * <li><strong>webhooks.soak.duration</strong> : duration of the load, in seconds (default to 180)</li>
+ * <li><strong>webhooks.soak.rate</strong> : number of events per second (default to 50)</li>
+ * <li><strong>webhooks.soak.minThroughput</strong> : minimum ratio of the expected deliveries per second (default to
+ * 0.9)</li>
+ * <li><strong>webhooks.soak.maxP99</strong> : maximum 99th percentile of the delivery latency, in milliseconds
+ * (default to 10000)</li>
+ * <li><strong>webhooks.soak.maxHeapGrowth</strong> : maximum heap growth, in MB (default to 64)</li>
+ * </ul>
+ *
+ * @author Vincent Behar
+ */
+public class WebHookNotifierSoakTest {
+
+    private static final Logger LOGGER = new ConsoleLogger(Logger.LEVEL_INFO, "soak");
+
+    private WebHookPlugin plugin;
+
+    private WebHookNotifier notifier;
+
+    private List<StubReceiver> receivers;
+
+    /** number of completed deliveries (successful or not) */
+    private AtomicInteger completed;
+
+    /** url / number of successful (2xx) deliveries */
+    private ConcurrentMap<String, AtomicInteger> successful;
+
+    @Test
+    public void sustainedLoad() throws Exception {
+        long duration = Long.getLong("webhooks.soak.duration", 180) * 1000;
+        int rate = Integer.getInteger("webhooks.soak.rate", 50);
+        double minThroughput = Double.parseDouble(System.getProperty("webhooks.soak.minThroughput", "0.9"));
+        long maxP99 = Long.getLong("webhooks.soak.maxP99", 10000);
+        long maxHeapGrowth = Long.getLong("webhooks.soak.maxHeapGrowth", 64) * 1024 * 1024;
+
+        // warm-up, so that the heap measure doesn't include the lazy initializations
+        send(0);
+        awaitCompletion(receivers.size(), 60000);
+        long heapBefore = usedHeap();
+
+        long start = System.currentTimeMillis();
+        int sent = 0;
+        while (System.currentTimeMillis() - start < duration) {
+            long expected = (System.currentTimeMillis() - start) * rate / 1000;
+            while (sent < expected) {
+                sent++;
+                send(sent);
+            }
+            Thread.sleep(5);
+        }
+        awaitCompletion((sent + 1) * receivers.size(), 120000);
+        long elapsed = System.currentTimeMillis() - start;
+        long heapGrowth = usedHeap() - heapBefore;
+
+        // the notifier doesn't retry : a failed request is a completed delivery, that the receiver didn't acknowledge
+        Assert.assertEquals((sent + 1) * receivers.size(), completed.get());
+        List<Long> latencies = new ArrayList<Long>();
+        for (StubReceiver receiver : receivers) {
+            Assert.assertEquals("Successful deliveries to " + receiver.getUrl(), receiver.getAcknowledgedCount(),
+                                getSuccessful(receiver.getUrl()));
+            latencies.addAll(receiver.getLatencies());
+        }
+        Collections.sort(latencies);
+        long p99 = latencies.get((int) (latencies.size() * 0.99));
+        double throughput = (double) sent * receivers.size() * 1000 / elapsed;
+
+        LOGGER.info("Soak : " + sent + " events x " + receivers.size() + " receivers in " + elapsed + " ms - "
+                    + Math.round(throughput) + " deliveries/s, p99 " + p99 + " ms, heap growth "
+                    + (heapGrowth / 1024) + " KB");
+        Assert.assertTrue("Throughput too low : " + throughput, throughput >= minThroughput * rate * receivers.size());
+        Assert.assertTrue("p99 too high : " + p99 + " ms", p99 <= maxP99);
+        Assert.assertTrue("Heap growth too high : " + heapGrowth + " bytes", heapGrowth <= maxHeapGrowth);
+    }
+
+    private void send(int i) {
+        ArtifactStoredEvent event = new ArtifactStoredEvent();
+        event.setRepository(new Repository("releases", "Releases"));
+        event.setArtifact(new Gav("com.example", "app", version(i)));
+        event.setTimestamp(System.currentTimeMillis());
+        event.setUser("soak");
+        notifier.notify(event);
+    }
+
+    private static String version(int i) {
+        return "1.0." + i;
+    }
+
+    /**
+     * Wait until the notifier completed (at least) the given number of deliveries.
+     */
+    private void awaitCompletion(int count, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (completed.get() < count) {
+            Assert.assertTrue("Timeout waiting for the deliveries : " + completed.get() + "/" + count + " completed, "
+                              + notifier.getQueue().getSize() + " queued", System.currentTimeMillis() < deadline);
+            Thread.sleep(100);
+        }
+    }
+
+    private int getSuccessful(String url) {
+        AtomicInteger count = successful.get(url);
+        return count == null ? 0 : count.get();
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        receivers = new ArrayList<StubReceiver>();
+        receivers.add(new StubReceiver());
+        receivers.add(new StubReceiver().withLatency(100));
+        receivers.add(new StubReceiver().withFailureRate(0.1).withResetRate(0.05));
+        receivers.add(new StubReceiver().withSlowResponse(500));
+
+        List<String> urls = new ArrayList<String>();
+        for (StubReceiver receiver : receivers) {
+            urls.add(receiver.getUrl());
+        }
+
+        completed = new AtomicInteger();
+        successful = new ConcurrentHashMap<String, AtomicInteger>();
+        notifier = new WebHookNotifier();
+        notifier.addDeliveryListener(new DeliveryListener() {
+
+            public void completed(WebHookTrace trace) {
+                if (trace.getError() == null && trace.getStatusCode() >= 200 && trace.getStatusCode() < 300) {
+                    successful.putIfAbsent(trace.getUrl(), new AtomicInteger());
+                    successful.get(trace.getUrl()).incrementAndGet();
+                }
+                completed.incrementAndGet();
+            }
+        });
+        plugin = new WebHookPlugin();
+        Properties configuration = new Properties();
+        configuration.setProperty("releases", StringUtils.join(urls, ","));
+        plugin.configure(configuration);
+
+        for (Field field : notifier.getClass().getDeclaredFields()) {
+            if ("logger".equals(field.getName())) {
+                field.setAccessible(true);
+                // the flaky receiver would flood the output
+                field.set(notifier, new ConsoleLogger(Logger.LEVEL_DISABLED, "console"));
+            } else if ("webHookPlugin".equals(field.getName())) {
+                field.setAccessible(true);
+                field.set(notifier, plugin);
+            }
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        notifier.stop();
+        for (StubReceiver receiver : receivers) {
+            receiver.stop();
+        }
+    }
+
+}
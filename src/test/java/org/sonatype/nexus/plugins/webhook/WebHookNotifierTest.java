@@ -20,12 +20,23 @@ import static com.jayway.awaitility.Awaitility.to;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static org.hamcrest.Matchers.equalTo;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.net.InetSocketAddress;
+import java.util.Collections;
 import java.util.Date;
+import java.util.List;
 import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.GZIPInputStream;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang.StringUtils;
 import org.apache.maven.index.artifact.Gav;
@@ -36,6 +47,9 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Repository;
+import org.sonatype.nexus.proxy.ResourceStoreRequest;
+import org.sonatype.nexus.proxy.item.StorageFileItem;
+import org.sonatype.nexus.proxy.registry.RepositoryRegistry;
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
@@ -59,6 +73,9 @@ public class WebHookNotifierTest {
     /** Map of url / json-content for each notification */
     private ConcurrentHashMap<String, String> notifications;
 
+    /** Map of url / delivery ID for each notification */
+    private ConcurrentHashMap<String, String> deliveryIds;
+
     @Test
     public void notifySingle() throws Exception {
         ArtifactStoredEvent event = new ArtifactStoredEvent();
@@ -101,14 +118,10 @@ public class WebHookNotifierTest {
 
     @Test
     public void notifyMultipleWithoutInheritance() throws Exception {
-        for (Field field : plugin.getClass().getDeclaredFields()) {
-            if ("configuration".equals(field.getName())) {
-                field.setAccessible(true);
-                Properties configuration = (Properties) field.get(plugin);
-                configuration.setProperty("webhooks.inherited", "false");
-                field.set(plugin, configuration);
-            }
-        }
+        Properties configuration = new Properties();
+        configuration.putAll(plugin.getConfiguration());
+        configuration.setProperty("webhooks.inherited", "false");
+        plugin.configure(configuration);
 
         ArtifactStoredEvent event = new ArtifactStoredEvent();
         event.setRepository(new Repository("releases", "Releases"));
@@ -128,9 +141,232 @@ public class WebHookNotifierTest {
         }
     }
 
+    @Test
+    public void notifyNamedEndpoint() throws Exception {
+        Properties configuration = new Properties();
+        configuration.putAll(plugin.getConfiguration());
+        configuration.setProperty("webhooks.endpoint.root.url", "http://localhost:" + HTTP_PORT + "/");
+        configuration.setProperty("webhooks.endpoint.root.compression", "gzip");
+        configuration.setProperty("webhooks.endpoint.root.readTimeout", "5000");
+        configuration.setProperty("webhooks.default", "root");
+        plugin.configure(configuration);
+
+        ArtifactStoredEvent event = new ArtifactStoredEvent();
+        event.setRepository(new Repository("snapshots", "Snapshots"));
+        event.setArtifact(new Gav("com.example", "app", "1.0.0-SNAPSHOT"));
+        event.setTimestamp(new Date().getTime());
+        event.setUser("robert");
+
+        notifier.notify(event);
+
+        await().atMost(5, SECONDS).pollInterval(10, MILLISECONDS).untilCall(to(notifications).size(), equalTo(1));
+
+        Assert.assertEquals(event.toJson(), notifications.get("/"));
+    }
+
+    @Test
+    public void traceDelivery() throws Exception {
+        ArtifactStoredEvent event = new ArtifactStoredEvent();
+        event.setRepository(new Repository("snapshots", "Snapshots"));
+        event.setArtifact(new Gav("com.example", "app", "1.0.0-SNAPSHOT"));
+        event.setTimestamp(new Date().getTime());
+        event.setUser("robert");
+
+        notifier.notify(event);
+
+        Assert.assertEquals(1L, notifier.getTraces().getRecordedCount());
+        final WebHookTrace trace = notifier.getTraces().find(null, null, null, 10).get(0);
+        await().atMost(5, SECONDS).pollInterval(10, MILLISECONDS).until(new Callable<Boolean>() {
+
+            public Boolean call() {
+                return trace.getCompletedTimestamp() > 0;
+            }
+        });
+
+        String id = deliveryIds.get("/");
+        Assert.assertEquals(id, trace.getId());
+        Assert.assertSame(trace, notifier.getTraces().find(id, null, null, 10).get(0));
+        Assert.assertEquals(1L, notifier.getTraces().getRecordedCount());
+        Assert.assertEquals(200, trace.getStatusCode());
+        Assert.assertNull(trace.getError());
+        Assert.assertEquals("http://localhost:" + HTTP_PORT + "/", trace.getUrl());
+        Assert.assertTrue(trace.getEventTimestamp() <= trace.getRoutedTimestamp());
+        Assert.assertTrue(trace.getRoutedTimestamp() <= trace.getQueuedTimestamp());
+        Assert.assertTrue(trace.getQueuedTimestamp() <= trace.getDequeuedTimestamp());
+        Assert.assertTrue(trace.getDequeuedTimestamp() <= trace.getRenderedTimestamp());
+        Assert.assertTrue(trace.getRenderedTimestamp() <= trace.getSentTimestamp());
+        Assert.assertTrue(trace.getSentTimestamp() <= trace.getCompletedTimestamp());
+
+        Assert.assertEquals(1, notifier.getTraces().find(null, null, "com.example:app:1.0.0-SNAPSHOT", 10).size());
+        Assert.assertEquals(0, notifier.getTraces().find(null, null, "com.example:other", 10).size());
+    }
+
+    @Test
+    public void traceQueuedDelivery() throws Exception {
+        StubReceiver slowReceiver = new StubReceiver().withLatency(2000);
+        try {
+            setField("shutdownDeadline", 1L);
+            ArtifactStoredEvent event = new ArtifactStoredEvent();
+            event.setRepository(new Repository("releases", "Releases"));
+            event.setArtifact(new Gav("com.example", "app", "1.0.0"));
+            event.setTimestamp(new Date().getTime());
+
+            String id = notifier.notify(event, Collections.singletonList(slowReceiver.getUrl())).get(0);
+            final WebHookTrace trace = notifier.getTraces().find(id, null, null, 10).get(0);
+            await().atMost(5, SECONDS).pollInterval(10, MILLISECONDS).until(new Callable<Boolean>() {
+
+                public Boolean call() {
+                    return trace.getSentTimestamp() > 0;
+                }
+            });
+
+            // stuck in the request : visible, without a status
+            Assert.assertEquals(0, trace.getCompletedTimestamp());
+            Assert.assertEquals(-1, trace.getStatusCode());
+        } finally {
+            notifier.stop();
+            slowReceiver.stop();
+        }
+    }
+
+    @Test
+    public void stopWithLeftovers() throws Exception {
+        StubReceiver slowReceiver = new StubReceiver().withLatency(10000);
+        File leftoversFile = File.createTempFile("webhook-", ".leftovers");
+        try {
+            setField("leftoversFile", leftoversFile);
+            setField("shutdownDeadline", 1L);
+
+            ArtifactStoredEvent event = new ArtifactStoredEvent();
+            event.setRepository(new Repository("snapshots", "Snapshots"));
+            event.setArtifact(new Gav("com.example", "app", "1.0.0-SNAPSHOT"));
+            event.setTimestamp(new Date().getTime());
+            event.setUser("robert");
+
+            notifier.notify(event, Collections.singletonList(slowReceiver.getUrl()));
+            await().atMost(5, SECONDS).pollInterval(10, MILLISECONDS).untilCall(to(notifier.getQueue()).getSize(),
+                                                                               equalTo(0));
+
+            // the request in progress is aborted after the deadline
+            long start = System.currentTimeMillis();
+            notifier.stop();
+            Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+
+            List<WebHookDelivery> leftovers = WebHookLeftovers.read(leftoversFile);
+            Assert.assertEquals(1, leftovers.size());
+            Assert.assertEquals(slowReceiver.getUrl(), leftovers.get(0).getUrl());
+            Assert.assertEquals(event.toJson(), new String(leftovers.get(0).getPayload(), "UTF-8"));
+
+            // too late
+            notifier.notify(event);
+            Assert.assertEquals(0, notifier.getQueue().getSize());
+            Assert.assertFalse(notifier.start());
+        } finally {
+            slowReceiver.stop();
+            leftoversFile.delete();
+        }
+    }
+
+    @Test
+    public void slowListenerDoesNotBlockTheOthers() throws Exception {
+        StubReceiver slowReceiver = new StubReceiver().withLatency(3000);
+        try {
+            setField("shutdownDeadline", 1L);
+            ArtifactStoredEvent event = new ArtifactStoredEvent();
+            event.setRepository(new Repository("releases", "Releases"));
+            event.setArtifact(new Gav("com.example", "app", "1.0.0"));
+            event.setTimestamp(new Date().getTime());
+
+            // more than the workers : only a few are sent at once, the others wait in the queue
+            for (int i = 0; i < 40; i++) {
+                notifier.notify(event, Collections.singletonList(slowReceiver.getUrl()));
+            }
+            long start = System.currentTimeMillis();
+            notifier.notify(event, Collections.singletonList("http://localhost:" + HTTP_PORT + "/fast"));
+            await().atMost(5, SECONDS).pollInterval(10, MILLISECONDS).until(new Callable<Boolean>() {
+
+                public Boolean call() {
+                    return notifications.containsKey("/fast");
+                }
+            });
+            Assert.assertTrue(System.currentTimeMillis() - start < 2000);
+            Assert.assertTrue(notifier.getQueue().getSize() > 30);
+        } finally {
+            notifier.stop();
+            slowReceiver.stop();
+        }
+    }
+
+    @Test
+    public void attachContent() throws Exception {
+        Properties configuration = new Properties();
+        configuration.setProperty("webhooks.endpoint.files.url", "http://localhost:" + HTTP_PORT + "/files/");
+        configuration.setProperty("webhooks.endpoint.files.attachContent", "true");
+        configuration.setProperty("releases", "files");
+        plugin.configure(configuration);
+        final List<String> retrievedPaths = new CopyOnWriteArrayList<String>();
+        setField("repositoryRegistry", proxy(RepositoryRegistry.class, new InvocationHandler() {
+
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                return proxy(org.sonatype.nexus.proxy.repository.Repository.class, new InvocationHandler() {
+
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                        retrievedPaths.add(((ResourceStoreRequest) args[1]).getRequestPath());
+                        return proxy(StorageFileItem.class, new InvocationHandler() {
+
+                            public Object invoke(Object proxy, Method method, Object[] args) throws Exception {
+                                if ("getLength".equals(method.getName())) {
+                                    return 5L;
+                                } else if ("getInputStream".equals(method.getName())) {
+                                    return new ByteArrayInputStream("Hello".getBytes("UTF-8"));
+                                }
+                                // not on the file system
+                                return null;
+                            }
+                        });
+                    }
+                });
+            }
+        }));
+
+        ArtifactStoredEvent event = new ArtifactStoredEvent();
+        event.setRepository(new Repository("releases", "Releases"));
+        event.setArtifact(new Gav("com.example", "app", "1.0.0-SNAPSHOT"));
+        // the stored file of a snapshot is timestamped : its path can't be rebuilt from the artifact
+        event.setPath("/com/example/app/1.0.0-SNAPSHOT/app-1.0.0-20111108.120000-1.jar");
+        event.setTimestamp(new Date().getTime());
+        event.setUser("robert");
+
+        try {
+            notifier.notify(event);
+            await().atMost(5, SECONDS).pollInterval(10, MILLISECONDS).untilCall(to(notifications).size(), equalTo(1));
+
+            Assert.assertEquals(Collections.singletonList(event.getPath()), retrievedPaths);
+            String body = notifications.get("/files/");
+            Assert.assertTrue(body.contains("name=\"event\""));
+            Assert.assertTrue(body.contains(event.toJson()));
+            Assert.assertTrue(body.contains("name=\"content\"; filename=\"app-1.0.0-20111108.120000-1.jar\""));
+            Assert.assertTrue(body.contains("Hello"));
+        } finally {
+            notifier.stop();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] { type }, handler);
+    }
+
+    private void setField(String name, Object value) throws Exception {
+        Field field = notifier.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        field.set(notifier, value);
+    }
+
     @Before
     public void setUp() throws Exception {
         notifications = new ConcurrentHashMap<String, String>();
+        deliveryIds = new ConcurrentHashMap<String, String>();
 
         notifier = new WebHookNotifier();
 
@@ -143,12 +379,7 @@ public class WebHookNotifierTest {
         configuration.setProperty("releases", "http://localhost:" + HTTP_PORT + "/releases/");
         configuration.setProperty("webhooks.default", "http://localhost:" + HTTP_PORT + "/");
         configuration.setProperty("webhooks.inherited", "true");
-        for (Field field : plugin.getClass().getDeclaredFields()) {
-            if ("configuration".equals(field.getName())) {
-                field.setAccessible(true);
-                field.set(plugin, configuration);
-            }
-        }
+        plugin.configure(configuration);
 
         for (Field field : notifier.getClass().getDeclaredFields()) {
             if ("logger".equals(field.getName())) {
@@ -164,7 +395,15 @@ public class WebHookNotifierTest {
         httpServer.createContext("/", new HttpHandler() {
 
             public void handle(HttpExchange httpExchange) throws IOException {
-                String json = IOUtils.toString(httpExchange.getRequestBody());
+                InputStream body = httpExchange.getRequestBody();
+                if ("gzip".equals(httpExchange.getRequestHeaders().getFirst("Content-Encoding"))) {
+                    body = new GZIPInputStream(body);
+                }
+                String json = IOUtils.toString(body);
+                String id = httpExchange.getRequestHeaders().getFirst(WebHookDelivery.ID_HEADER);
+                if (id != null) {
+                    deliveryIds.put(httpExchange.getRequestURI().toString(), id);
+                }
                 notifications.put(httpExchange.getRequestURI().toString(), json);
                 IOUtils.closeQuietly(httpExchange.getRequestBody());
 
@@ -0,0 +1,193 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.File;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link WebHookOutbox}, with 2 "nodes" sharing a local directory.
+ *
+ * @author Vincent Behar
+ */
+public class WebHookOutboxTest {
+
+    private File directory;
+
+    @Test
+    public void eachNotificationIsClaimedOnce() throws Exception {
+        WebHookOutbox node1 = new WebHookOutbox(directory, "node1", 60000);
+        WebHookOutbox node2 = new WebHookOutbox(directory, "node2", 60000);
+
+        for (int i = 0; i < 100; i++) {
+            (i % 2 == 0 ? node1 : node2).add(delivery("http://localhost/" + i, "{\"i\":" + i + "}"));
+        }
+        Assert.assertEquals(100, node1.getPendingCount());
+
+        Set<String> urls = new HashSet<String>();
+        int claimed = 0;
+        while (node1.getPendingCount() > 0) {
+            for (WebHookOutbox outbox : new WebHookOutbox[] { node1, node2 }) {
+                List<WebHookOutbox.Entry> entries = outbox.claim(7);
+                for (WebHookOutbox.Entry entry : entries) {
+                    urls.add(entry.getDelivery().getUrl());
+                    outbox.complete(entry);
+                }
+                claimed += entries.size();
+            }
+        }
+
+        Assert.assertEquals(100, claimed);
+        Assert.assertEquals(100, urls.size());
+        Assert.assertEquals(0, node1.getClaimedCount());
+    }
+
+    @Test
+    public void expiredClaimsAreRecovered() throws Exception {
+        WebHookOutbox deadNode = new WebHookOutbox(directory, "dead", 60000);
+        WebHookOutbox liveNode = new WebHookOutbox(directory, "live", 60000);
+
+        WebHookDelivery delivery = delivery("http://localhost/", "{}");
+        deadNode.add(delivery);
+        Assert.assertEquals(1, deadNode.claim(10).size());
+        Assert.assertEquals(0, liveNode.claim(10).size());
+
+        // lease not yet expired
+        Assert.assertEquals(0, liveNode.recoverExpiredClaims());
+
+        for (File file : new File(directory, "claimed").listFiles()) {
+            file.setLastModified(System.currentTimeMillis() - 120000);
+        }
+        Assert.assertEquals(1, liveNode.recoverExpiredClaims());
+
+        List<WebHookOutbox.Entry> entries = liveNode.claim(10);
+        Assert.assertEquals(1, entries.size());
+        Assert.assertEquals(delivery.getId(), entries.get(0).getDelivery().getId());
+        Assert.assertEquals("http://localhost/", entries.get(0).getDelivery().getUrl());
+        Assert.assertEquals("application/json", entries.get(0).getDelivery().getContentType());
+        Assert.assertEquals("{}", new String(entries.get(0).getDelivery().getPayload(), "UTF-8"));
+        Assert.assertNotNull(entries.get(0).getDelivery().getClaim());
+    }
+
+    @Test
+    public void releasedClaimsArePendingAgain() throws Exception {
+        WebHookOutbox outbox = new WebHookOutbox(directory, "node", 60000);
+        outbox.add(delivery("http://localhost/", "{}"));
+
+        List<WebHookOutbox.Entry> entries = outbox.claim(10);
+        Assert.assertEquals(0, outbox.getPendingCount());
+        Assert.assertTrue(outbox.release(entries.get(0)));
+        Assert.assertEquals(1, outbox.getPendingCount());
+        Assert.assertEquals(0, outbox.getClaimedCount());
+    }
+
+    @Test
+    public void renewedClaimsAreNotRecovered() throws Exception {
+        WebHookOutbox node1 = new WebHookOutbox(directory, "node1", 60000);
+        WebHookOutbox node2 = new WebHookOutbox(directory, "node2", 60000);
+        node1.add(delivery("http://localhost/", "{}"));
+        WebHookOutbox.Entry entry = node1.claim(10).get(0);
+
+        // queued for longer than the lease, then renewed before the delivery
+        new File(entry.getClaim()).setLastModified(System.currentTimeMillis() - 120000);
+        Assert.assertTrue(WebHookOutbox.renew(entry.getClaim()));
+        Assert.assertEquals(0, node2.recoverExpiredClaims());
+
+        // too late
+        new File(entry.getClaim()).setLastModified(System.currentTimeMillis() - 120000);
+        Assert.assertEquals(1, node2.recoverExpiredClaims());
+        Assert.assertFalse(WebHookOutbox.renew(entry.getClaim()));
+    }
+
+    @Test
+    public void staleClaimsCantRenewNorComplete() throws Exception {
+        WebHookOutbox node = new WebHookOutbox(directory, "node", 60000);
+        node.add(delivery("http://localhost/", "{}"));
+        WebHookOutbox.Entry stale = node.claim(10).get(0);
+
+        // expired and recovered, then claimed again by the same node
+        new File(stale.getClaim()).setLastModified(System.currentTimeMillis() - 120000);
+        Assert.assertEquals(1, node.recoverExpiredClaims());
+        WebHookOutbox.Entry entry = node.claim(10).get(0);
+        Assert.assertFalse(stale.getClaim().equals(entry.getClaim()));
+
+        Assert.assertFalse(WebHookOutbox.renew(stale.getClaim()));
+        node.complete(stale);
+        Assert.assertEquals(1, node.getClaimedCount());
+        Assert.assertTrue(WebHookOutbox.renew(entry.getClaim()));
+    }
+
+    @Test
+    public void interruptedRecoveriesAreRecovered() throws Exception {
+        WebHookOutbox deadNode = new WebHookOutbox(directory, "dead", 60000);
+        WebHookOutbox liveNode = new WebHookOutbox(directory, "live", 60000);
+        deadNode.add(delivery("http://localhost/", "{}"));
+        File claimed = new File(deadNode.claim(10).get(0).getClaim());
+
+        // a node died while recovering the claim
+        File recovering = new File(claimed.getParentFile(), "." + claimed.getName());
+        Assert.assertTrue(claimed.renameTo(recovering));
+        Assert.assertEquals(0, liveNode.recoverExpiredClaims());
+        recovering.setLastModified(System.currentTimeMillis() - 120000);
+        Assert.assertEquals(1, liveNode.recoverExpiredClaims());
+        Assert.assertEquals(1, liveNode.claim(10).size());
+    }
+
+    @Test
+    public void oldestBucketFirst() throws Exception {
+        WebHookOutbox outbox = new WebHookOutbox(directory, "node", 60000);
+        outbox.add(delivery("http://localhost/new", "{}"));
+
+        // a notification added a while ago, in its own bucket
+        File added = new File(directory, "pending").listFiles()[0].listFiles()[0];
+        File oldBucket = new File(directory, "pending/00000001");
+        FileUtils.copyFile(added, new File(oldBucket, "0000000100000-node-0"));
+        Assert.assertEquals(2, outbox.getPendingCount());
+
+        List<WebHookOutbox.Entry> entries = outbox.claim(1);
+        Assert.assertEquals(1, entries.size());
+        Assert.assertTrue(entries.get(0).getClaim().contains("0000000100000-node-0"));
+        Assert.assertEquals(1, outbox.claim(10).size());
+
+        // empty past buckets are removed
+        Assert.assertEquals(0, outbox.claim(10).size());
+        Assert.assertFalse(oldBucket.exists());
+        Assert.assertEquals(0, outbox.getPendingCount());
+    }
+
+    private static WebHookDelivery delivery(String url, String payload) throws Exception {
+        return new WebHookDelivery("com.example:app:1.0", 42L, url, "application/json", payload.getBytes("UTF-8"));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("webhooks-outbox", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link WebHookPipeline}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookPipelineTest {
+
+    private ThreadSafeClientConnManager connectionManager;
+
+    private WebHookPipeline pipeline;
+
+    private PipeliningReceiver receiver;
+
+    @Test
+    public void pipelined() throws Exception {
+        WebHookPipeline.Result result = pipeline.execute(posts(5), 1024);
+
+        Assert.assertNull(result.getError());
+        Assert.assertEquals(5, result.getStatuses().size());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(200, result.getStatuses().get(i).getStatusCode());
+        }
+        Assert.assertEquals("[0, 1, 2, 3, 4]", receiver.getBodies().toString());
+        Assert.assertEquals("Thanks", result.getExcerpts().get(4));
+        Assert.assertEquals(1, receiver.getConnections());
+        // the connection is kept in the pool
+        Assert.assertEquals(1, connectionManager.getConnectionsInPool());
+
+        pipeline.execute(posts(2), 1024);
+        Assert.assertEquals(1, receiver.getConnections());
+    }
+
+    @Test
+    public void closedByListener() throws Exception {
+        receiver.closeAfter(2);
+        WebHookPipeline.Result result = pipeline.execute(posts(5), 1024);
+
+        // the requests after the second one are not acknowledged
+        Assert.assertNotNull(result.getError());
+        Assert.assertEquals(2, result.getStatuses().size());
+        Assert.assertEquals(0, connectionManager.getConnectionsInPool());
+    }
+
+    @Test
+    public void largeResponse() throws Exception {
+        WebHookPipeline.Result result = pipeline.execute(posts(3), 3);
+
+        // the rest of the body is not read : the connection is closed, and the next requests are not acknowledged
+        Assert.assertNotNull(result.getError());
+        Assert.assertEquals(1, result.getStatuses().size());
+        Assert.assertEquals(0, connectionManager.getConnectionsInPool());
+    }
+
+    @Test
+    public void unreachable() throws Exception {
+        receiver.stop();
+        WebHookPipeline.Result result = pipeline.execute(posts(2), 1024);
+
+        Assert.assertNotNull(result.getError());
+        Assert.assertTrue(result.getStatuses().isEmpty());
+    }
+
+    private List<HttpPost> posts(int count) throws Exception {
+        List<HttpPost> posts = new ArrayList<HttpPost>();
+        for (int i = 0; i < count; i++) {
+            HttpPost post = new HttpPost(receiver.getUrl());
+            post.setEntity(new ByteArrayEntity(Integer.toString(i).getBytes("UTF-8")));
+            posts.add(post);
+        }
+        return posts;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        connectionManager = new ThreadSafeClientConnManager();
+        pipeline = new WebHookPipeline(connectionManager, new BasicHttpParams());
+        receiver = new PipeliningReceiver();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        receiver.stop();
+        connectionManager.shutdown();
+    }
+
+    /**
+     * A minimal HTTP/1.1 listener that answers the (pipelined) requests of a connection in order - and closes the
+     * connection after a given number of responses.
+     */
+    private static class PipeliningReceiver implements Runnable {
+
+        private final ServerSocket serverSocket;
+
+        private final ConcurrentLinkedQueue<String> bodies = new ConcurrentLinkedQueue<String>();
+
+        private final AtomicInteger connections = new AtomicInteger();
+
+        private volatile int closeAfter = Integer.MAX_VALUE;
+
+        private PipeliningReceiver() throws IOException {
+            super();
+            serverSocket = new ServerSocket(0, 10, InetAddress.getByName("127.0.0.1"));
+            Thread thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public void run() {
+            while (!serverSocket.isClosed()) {
+                try {
+                    Socket socket = serverSocket.accept();
+                    connections.incrementAndGet();
+                    try {
+                        serve(socket);
+                    } finally {
+                        socket.close();
+                    }
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void serve(Socket socket) throws IOException {
+            InputStream input = new BufferedInputStream(socket.getInputStream());
+            OutputStream output = socket.getOutputStream();
+            for (int responses = 1;; responses++) {
+                int contentLength = -1;
+                for (String line = readLine(input); line.length() > 0; line = readLine(input)) {
+                    if (line.toLowerCase().startsWith("content-length:")) {
+                        contentLength = Integer.parseInt(line.substring("content-length:".length()).trim());
+                    }
+                }
+                if (contentLength < 0) {
+                    return;
+                }
+                byte[] body = new byte[contentLength];
+                for (int read = 0; read < contentLength;) {
+                    read += input.read(body, read, contentLength - read);
+                }
+                bodies.add(new String(body, "UTF-8"));
+                boolean close = responses >= closeAfter;
+                output.write(("HTTP/1.1 200 OK\r\nContent-Length: 6\r\n" + (close ? "Connection: close\r\n" : "")
+                              + "\r\nThanks").getBytes("UTF-8"));
+                output.flush();
+                if (close) {
+                    // lingering close : the unread requests must not reset the connection before the client reads
+                    // the responses
+                    socket.shutdownOutput();
+                    while (input.read() >= 0) {
+                        continue;
+                    }
+                    return;
+                }
+            }
+        }
+
+        private static String readLine(InputStream input) throws IOException {
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            for (int b = input.read(); b != '\n'; b = input.read()) {
+                if (b < 0) {
+                    return "";
+                }
+                if (b != '\r') {
+                    line.write(b);
+                }
+            }
+            return line.toString("UTF-8");
+        }
+
+        public String getUrl() {
+            return "http://127.0.0.1:" + serverSocket.getLocalPort() + "/";
+        }
+
+        public List<String> getBodies() {
+            return new ArrayList<String>(bodies);
+        }
+
+        public int getConnections() {
+            return connections.get();
+        }
+
+        public void closeAfter(int responses) {
+            this.closeAfter = responses;
+        }
+
+        public void stop() throws IOException {
+            serverSocket.close();
+        }
+
+    }
+
+}
@@ -15,9 +15,13 @@
  */
 package org.sonatype.nexus.plugins.webhook;
 
+import java.io.File;
 import java.lang.reflect.Field;
 import java.util.Collection;
 import java.util.Properties;
+import org.apache.commons.io.FileUtils;
+import org.codehaus.plexus.logging.Logger;
+import org.codehaus.plexus.logging.console.ConsoleLogger;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -70,6 +74,42 @@ public class WebHookPluginTest {
         Assert.assertTrue(urls.contains("http://localhost/releases/com.example/app/two/"));
     }
 
+    @Test
+    public void explicitReloadReadsAnUntouchedFile() throws Exception {
+        final File directory = File.createTempFile("webhooks-plugin", "");
+        directory.delete();
+        try {
+            plugin = new WebHookPlugin() {
+
+                @Override
+                public File getConfigurationFile() {
+                    return new File(directory, "webhooks.properties");
+                }
+
+                @Override
+                public File getCacheFile() {
+                    return new File(directory, "webhooks.cache");
+                }
+            };
+            Field logger = WebHookPlugin.class.getDeclaredField("logger");
+            logger.setAccessible(true);
+            logger.set(plugin, new ConsoleLogger(Logger.LEVEL_DEBUG, "console"));
+
+            File file = plugin.getConfigurationFile();
+            FileUtils.writeStringToFile(file, "releases=http://localhost/one/");
+            plugin.reloadConfiguration();
+            long modified = file.lastModified();
+
+            // edited within the same second : same length and last-modified time
+            FileUtils.writeStringToFile(file, "releases=http://localhost/two/");
+            file.setLastModified(modified);
+            plugin.reloadConfiguration();
+            Assert.assertTrue(plugin.getWebHooks("releases", "com.example", "app").contains("http://localhost/two/"));
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
     @Before
     public void setUp() throws Exception {
         setUp(true);
@@ -86,12 +126,7 @@ public class WebHookPluginTest {
         configuration.setProperty("webhooks.default", "http://localhost/");
         configuration.setProperty("webhooks.inherited", Boolean.toString(withInheritance));
 
-        for (Field field : plugin.getClass().getDeclaredFields()) {
-            if ("configuration".equals(field.getName())) {
-                field.setAccessible(true);
-                field.set(plugin, configuration);
-            }
-        }
+        plugin.configure(configuration);
     }
 
 }
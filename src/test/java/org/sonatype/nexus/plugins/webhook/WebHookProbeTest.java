@@ -0,0 +1,92 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.net.ServerSocket;
+import java.util.Collections;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link WebHookProbe}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookProbeTest {
+
+    private ThreadSafeClientConnManager connectionManager;
+
+    private WebHookProbe probe;
+
+    private StubReceiver receiver;
+
+    @Test
+    public void reachable() throws Exception {
+        WebHookProbe.Health health = probe.probe(receiver.getUrl(), null, 2);
+
+        Assert.assertTrue(health.getError(), health.isHealthy());
+        Assert.assertTrue(probe.isHealthy(receiver.getUrl()));
+        // the warmed connections are kept in the pool, and nothing has been sent
+        Assert.assertEquals(2, connectionManager.getConnectionsInPool());
+        Assert.assertTrue(receiver.getDeliveries().isEmpty());
+    }
+
+    @Test
+    public void unreachable() throws Exception {
+        ServerSocket socket = new ServerSocket(0);
+        String url = "http://127.0.0.1:" + socket.getLocalPort() + "/";
+        socket.close();
+
+        Assert.assertTrue(probe.isHealthy(url));
+        Assert.assertFalse(probe.probe(url, null, 1).isHealthy());
+        Assert.assertFalse(probe.isHealthy(url));
+
+        // an actual delivery succeeded
+        probe.delivered(url);
+        Assert.assertTrue(probe.isHealthy(url));
+    }
+
+    @Test
+    public void unknownHost() throws Exception {
+        Assert.assertFalse(probe.probe("http://unknown.invalid/", null, 1).isHealthy());
+    }
+
+    @Test
+    public void forgetRemovedUrls() throws Exception {
+        probe.probe("http://unknown.invalid/", null, 1);
+        probe.probe(receiver.getUrl(), null, 1);
+
+        probe.retain(Collections.singleton(receiver.getUrl()));
+        Assert.assertEquals(Collections.singleton(receiver.getUrl()), probe.getHealths().keySet());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        connectionManager = new ThreadSafeClientConnManager();
+        probe = new WebHookProbe(connectionManager);
+        receiver = new StubReceiver();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        receiver.stop();
+        connectionManager.shutdown();
+    }
+
+}
@@ -0,0 +1,460 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link WebHookQueue}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookQueueTest {
+
+    private File directory;
+
+    @Test
+    public void spillAndKeepOrder() throws Exception {
+        int size = delivery(0).getSize();
+        WebHookQueue queue = new WebHookQueue(10 * size);
+        // room for 55 spilled deliveries
+        int record = delivery(10).toBytes().length + 4;
+        queue.configure(10 * size, new File(directory, "queue.spill"), 55 * record);
+
+        for (int i = 0; i < 50; i++) {
+            Assert.assertTrue(queue.offer(delivery(i)));
+        }
+        Assert.assertEquals(50, queue.getSize());
+        Assert.assertEquals(40, queue.getSpilledCount());
+        Assert.assertTrue(queue.getMemoryBytes() <= 10 * size);
+
+        // take some, and add more while the spill file is not drained : the freed chunks should be reused
+        for (int i = 0; i < 25; i++) {
+            Assert.assertEquals("http://localhost/" + i, queue.take().getUrl());
+            Assert.assertTrue(queue.getMemoryBytes() <= 10 * size);
+        }
+        for (int i = 50; i < 75; i++) {
+            Assert.assertTrue(queue.offer(delivery(i)));
+        }
+        for (int i = 25; i < 75; i++) {
+            WebHookDelivery delivery = queue.take();
+            Assert.assertEquals("http://localhost/" + i, delivery.getUrl());
+            Assert.assertEquals("{\"i\":" + i + "}", new String(delivery.getPayload(), "UTF-8"));
+        }
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(0, queue.getSpilledCount());
+        Assert.assertEquals(0, queue.getSpilledBytes());
+        Assert.assertEquals(0, queue.getMemoryBytes());
+    }
+
+    @Test
+    public void rejectWhenFull() throws Exception {
+        int size = delivery(0).getSize();
+        WebHookQueue queue = new WebHookQueue(2 * size);
+        Assert.assertTrue(queue.offer(delivery(0)));
+        Assert.assertTrue(queue.offer(delivery(1)));
+        // no spill file
+        Assert.assertFalse(queue.offer(delivery(2)));
+
+        queue.configure(2 * size, new File(directory, "queue.spill"), 2 * delivery(2).toBytes().length + 8);
+        Assert.assertTrue(queue.offer(delivery(2)));
+        Assert.assertTrue(queue.offer(delivery(3)));
+        Assert.assertFalse(queue.offer(delivery(4)));
+        Assert.assertEquals(4, queue.getSize());
+    }
+
+    @Test
+    public void reconfigureSpill() throws Exception {
+        int size = delivery(0).getSize();
+        WebHookQueue queue = new WebHookQueue(2 * size);
+        File oldFile = new File(directory, "old.spill");
+        File newFile = new File(directory, "new.spill");
+        queue.configure(2 * size, oldFile, 4096);
+        for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(queue.offer(delivery(i)));
+        }
+        Assert.assertEquals(2, queue.getSpilledCount());
+
+        // the old file is used until it is drained
+        queue.configure(2 * size, newFile, 4096);
+        Assert.assertTrue(queue.offer(delivery(4)));
+        Assert.assertFalse(newFile.exists());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals("http://localhost/" + i, queue.take().getUrl());
+        }
+
+        // then closed, and replaced by the new one
+        FileUtils.forceDelete(oldFile);
+        for (int i = 5; i < 9; i++) {
+            Assert.assertTrue(queue.offer(delivery(i)));
+        }
+        Assert.assertTrue(newFile.exists());
+        for (int i = 5; i < 9; i++) {
+            Assert.assertEquals("http://localhost/" + i, queue.take().getUrl());
+        }
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void removeAllOfUrl() throws Exception {
+        WebHookQueue queue = new WebHookQueue(1024 * 1024);
+        WebHookDelivery first = new WebHookDelivery("releases", null, 0, "http://localhost/down", "application/json",
+                                                    "{}".getBytes("UTF-8"));
+        WebHookDelivery second = new WebHookDelivery("snapshots", null, 0, "http://localhost/down",
+                                                     "application/json", "{}".getBytes("UTF-8"));
+        Assert.assertTrue(queue.offer(first));
+        Assert.assertTrue(queue.offer(delivery("releases", 1)));
+        Assert.assertTrue(queue.offer(second));
+
+        List<WebHookDelivery> removed = queue.removeAll("http://localhost/down");
+        Assert.assertEquals(2, removed.size());
+        Assert.assertTrue(removed.contains(first));
+        Assert.assertTrue(removed.contains(second));
+        Assert.assertEquals(1, queue.getSize());
+        Assert.assertEquals("http://localhost/1", queue.poll().getUrl());
+        Assert.assertNull(queue.poll());
+    }
+
+    @Test
+    public void compactInMemory() throws Exception {
+        WebHookQueue queue = new WebHookQueue(1024 * 1024);
+        List<String> superseded = recordSuperseded(queue);
+        Assert.assertTrue(queue.offer(delivery(0).withCompactionKey("snapshot")));
+        Assert.assertTrue(queue.offer(delivery(1)));
+        WebHookDelivery latest = delivery(2).withCompactionKey("snapshot");
+        Assert.assertTrue(queue.offer(latest));
+        Assert.assertTrue(queue.offer(delivery(3).withCompactionKey("other")));
+
+        Assert.assertEquals(3, queue.getSize());
+        Assert.assertEquals(1, queue.getCompactedCount());
+        Assert.assertEquals(Collections.singletonList("http://localhost/0 by " + latest.getId()), superseded);
+        // the most recent one, at the place of the superseded one
+        Assert.assertEquals("http://localhost/2", queue.poll().getUrl());
+        Assert.assertEquals("http://localhost/1", queue.poll().getUrl());
+
+        // not queued anymore : nothing to compact
+        Assert.assertTrue(queue.offer(delivery(4).withCompactionKey("snapshot")));
+        Assert.assertEquals("http://localhost/3", queue.poll().getUrl());
+        Assert.assertEquals("http://localhost/4", queue.poll().getUrl());
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(0, queue.getMemoryBytes());
+    }
+
+    @Test
+    public void compactSpilled() throws Exception {
+        int size = delivery(0).withCompactionKey("snapshot").getSize();
+        WebHookQueue queue = new WebHookQueue(2 * size);
+        queue.configure(2 * size, new File(directory, "queue.spill"), 4096);
+        List<String> superseded = recordSuperseded(queue);
+
+        Assert.assertTrue(queue.offer(delivery(0)));
+        Assert.assertTrue(queue.offer(delivery(1)));
+        // spilled
+        Assert.assertTrue(queue.offer(delivery(2).withCompactionKey("snapshot")));
+        Assert.assertTrue(queue.offer(delivery(3)));
+        WebHookDelivery latest = delivery(4).withCompactionKey("snapshot");
+        Assert.assertTrue(queue.offer(latest));
+        Assert.assertEquals(4, queue.getSize());
+        Assert.assertEquals(1, queue.getCompactedCount());
+
+        Assert.assertEquals("http://localhost/0", queue.poll().getUrl());
+        Assert.assertEquals("http://localhost/1", queue.poll().getUrl());
+        Assert.assertEquals("http://localhost/3", queue.poll().getUrl());
+        // told once paged in
+        Assert.assertEquals(Collections.singletonList("http://localhost/2 by " + latest.getId()), superseded);
+        Assert.assertEquals("http://localhost/4", queue.poll().getUrl());
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void batchSameUrl() throws Exception {
+        WebHookQueue queue = new WebHookQueue(1024 * 1024);
+        for (int i = 0; i < 6; i++) {
+            Assert.assertTrue(queue.offer(new WebHookDelivery(null, 0, "http://localhost/" + (i % 2),
+                                                              "application/json", new byte[] { (byte) i })));
+        }
+        Assert.assertTrue(queue.offer(delivery(0).withCompactionKey("snapshot")));
+
+        WebHookDelivery head = queue.take();
+        List<WebHookDelivery> batch = queue.pollBatch(head, 2);
+        Assert.assertEquals(2, batch.size());
+        Assert.assertEquals(2, batch.get(0).getPayload()[0]);
+        Assert.assertEquals(4, batch.get(1).getPayload()[0]);
+        Assert.assertEquals(4, queue.getSize());
+
+        // the compacted delivery is batched too, and can't be superseded anymore
+        Assert.assertEquals(1, queue.pollBatch(head, 10).size());
+        Assert.assertTrue(queue.offer(delivery(0).withCompactionKey("snapshot")));
+        Assert.assertEquals(0, queue.getCompactedCount());
+
+        Assert.assertEquals("http://localhost/1", queue.poll().getUrl());
+        Assert.assertEquals(1, queue.pollBatch(queue.poll(), 10).size());
+        Assert.assertEquals("http://localhost/0", queue.poll().getUrl());
+        Assert.assertNull(queue.poll());
+        Assert.assertEquals(0, queue.getMemoryBytes());
+    }
+
+    @Test
+    public void batchInterleavedUrls() throws Exception {
+        WebHookQueue queue = new WebHookQueue(1024 * 1024);
+        for (int i = 0; i < 300; i++) {
+            Assert.assertTrue(queue.offer(new WebHookDelivery(null, 0, "http://localhost/" + (i % 3),
+                                                              "application/json", new byte[] { (byte) (i / 3) })));
+        }
+
+        // each url in its order, whether taken alone or in batches
+        int[] next = new int[3];
+        int taken = 0;
+        for (WebHookDelivery head = queue.poll(); head != null; head = queue.poll()) {
+            int url = head.getUrl().charAt(head.getUrl().length() - 1) - '0';
+            Assert.assertEquals(next[url]++, head.getPayload()[0]);
+            taken++;
+            if (url > 0) {
+                for (WebHookDelivery batched : queue.pollBatch(head, 7)) {
+                    Assert.assertEquals(head.getUrl(), batched.getUrl());
+                    Assert.assertEquals(next[url]++, batched.getPayload()[0]);
+                    taken++;
+                }
+            }
+        }
+        Assert.assertEquals(300, taken);
+        Assert.assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void skipClosedUrls() throws Exception {
+        WebHookQueue queue = new WebHookQueue(1024 * 1024);
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(queue.offer(delivery("snapshots", 0)));
+        }
+        Assert.assertTrue(queue.offer(delivery("snapshots", 1)));
+        Assert.assertTrue(queue.offer(delivery("releases", 2)));
+
+        final List<String> closed = new ArrayList<String>();
+        closed.add("http://localhost/0");
+        WebHookQueue.Gate gate = new WebHookQueue.Gate() {
+
+            public boolean tryEnter(String url) {
+                return !closed.contains(url);
+            }
+        };
+        // the other urls, then nothing
+        Assert.assertEquals("http://localhost/1", queue.poll(gate).getUrl());
+        Assert.assertEquals("http://localhost/2", queue.poll(gate).getUrl());
+        Assert.assertNull(queue.poll(gate));
+        Assert.assertEquals(3, queue.getSize());
+
+        // in order once open
+        closed.clear();
+        for (int i = 0; i < 3; i++) {
+            Assert.assertEquals("http://localhost/0", queue.poll(gate).getUrl());
+        }
+        Assert.assertNull(queue.poll(gate));
+        Assert.assertEquals(0, queue.getMemoryBytes());
+    }
+
+    @Test(timeout = 5000)
+    public void signaledWhenGateOpens() throws Exception {
+        final WebHookQueue queue = new WebHookQueue(1024 * 1024);
+        Assert.assertTrue(queue.offer(delivery("releases", 0)));
+
+        final List<String> closed = Collections.synchronizedList(new ArrayList<String>());
+        closed.add("http://localhost/0");
+        final List<WebHookDelivery> taken = Collections.synchronizedList(new ArrayList<WebHookDelivery>());
+        Thread taker = new Thread() {
+
+            @Override
+            public void run() {
+                try {
+                    taken.add(queue.take(new WebHookQueue.Gate() {
+
+                        public boolean tryEnter(String url) {
+                            return !closed.contains(url);
+                        }
+                    }));
+                } catch (InterruptedException e) {
+                    // test failed
+                }
+            }
+        };
+        taker.start();
+        Thread.sleep(200);
+        Assert.assertTrue(taken.isEmpty());
+
+        // no new delivery : only the signal wakes up the taker
+        closed.clear();
+        queue.signal();
+        taker.join();
+        Assert.assertEquals("http://localhost/0", taken.get(0).getUrl());
+    }
+
+    @Test
+    public void fairAcrossRepositories() throws Exception {
+        WebHookQueue queue = new WebHookQueue(1024 * 1024);
+        for (int i = 0; i < 100; i++) {
+            Assert.assertTrue(queue.offer(delivery("snapshots", i)));
+        }
+        Assert.assertTrue(queue.offer(delivery("releases", 0)));
+
+        // the releases don't wait for all the snapshots
+        int position = 0;
+        while (!"releases".equals(queue.poll().getRepository())) {
+            position++;
+        }
+        int perRound = WebHookQueue.QUANTUM / delivery("snapshots", 0).getSize();
+        Assert.assertTrue(position + " > " + perRound, position <= perRound);
+        Assert.assertEquals(Integer.valueOf(100 - position), queue.getRepositorySizes().get("snapshots"));
+    }
+
+    @Test
+    public void weightedRepositories() throws Exception {
+        WebHookQueue queue = new WebHookQueue(1024 * 1024);
+        queue.setWeights(Collections.singletonMap("releases", 3));
+        for (int i = 0; i < 400; i++) {
+            Assert.assertTrue(queue.offer(delivery("snapshots", i)));
+            Assert.assertTrue(queue.offer(delivery("releases", i)));
+        }
+
+        int releases = 0;
+        for (int i = 0; i < 400; i++) {
+            WebHookDelivery delivery = queue.poll();
+            if ("releases".equals(delivery.getRepository())) {
+                releases++;
+            }
+        }
+        Assert.assertTrue(Integer.toString(releases), releases >= 280 && releases <= 320);
+    }
+
+    @Test
+    public void spillPerRepository() throws Exception {
+        int size = delivery("snapshots", 0).getSize();
+        WebHookQueue queue = new WebHookQueue(10 * size);
+        queue.configure(10 * size, new File(directory, "queue.spill"), 1024 * 1024);
+
+        for (int i = 0; i < 50; i++) {
+            Assert.assertTrue(queue.offer(delivery("snapshots", i)));
+        }
+        Assert.assertEquals(40, queue.getSpilledCount());
+        // half of the memory is left to the other repositories once the snapshots are paged in
+        for (int i = 0; i < 5; i++) {
+            queue.poll();
+        }
+        Assert.assertTrue(queue.offer(delivery("releases", 0)));
+        Assert.assertEquals(Integer.valueOf(1), queue.getRepositorySizes().get("releases"));
+
+        // each repository in its order
+        int snapshot = 5;
+        for (WebHookDelivery delivery = queue.poll(); delivery != null; delivery = queue.poll()) {
+            if ("snapshots".equals(delivery.getRepository())) {
+                Assert.assertEquals("http://localhost/" + snapshot++, delivery.getUrl());
+            }
+        }
+        Assert.assertEquals(50, snapshot);
+        Assert.assertEquals(0, queue.getSize());
+    }
+
+    @Test
+    public void pageInAcrossRepositories() throws Exception {
+        int size = delivery("snapshots", 0).getSize();
+        WebHookQueue queue = new WebHookQueue(10 * size);
+        queue.configure(10 * size, new File(directory, "queue.spill"), 1024 * 1024);
+
+        for (int i = 0; i < 200; i++) {
+            Assert.assertTrue(queue.offer(delivery("snapshots", i)));
+        }
+        // no memory left : spilled behind the snapshots
+        Assert.assertTrue(queue.offer(delivery("releases", 0)));
+        Assert.assertEquals(191, queue.getSpilledCount());
+
+        // but paged in with the first spilled snapshots (then served in the next round), not after all of them
+        int position = 0;
+        while (!"releases".equals(queue.poll().getRepository())) {
+            position++;
+        }
+        int perRound = WebHookQueue.QUANTUM / size;
+        Assert.assertTrue(position + " > " + (10 + perRound), position <= 10 + perRound);
+
+        int snapshot = position;
+        for (WebHookDelivery delivery = queue.poll(); delivery != null; delivery = queue.poll()) {
+            Assert.assertEquals("http://localhost/" + snapshot++, delivery.getUrl());
+        }
+        Assert.assertEquals(200, snapshot);
+        Assert.assertEquals(0, queue.getSpilledBytes());
+    }
+
+    @Test
+    public void serialization() throws Exception {
+        WebHookDelivery delivery = new WebHookDelivery("releases", "com.example:app:1.0", 42L, "http://localhost/",
+                                                       "text/plain", new byte[] { 1, 2 }).withClaim("claim");
+        delivery = delivery.withContentPath("/com/example/app/1.0/app-1.0.jar");
+        WebHookDelivery copy = WebHookDelivery.fromBytes(delivery.toBytes());
+        Assert.assertEquals(delivery.getId(), copy.getId());
+        Assert.assertEquals(delivery.getRepository(), copy.getRepository());
+        Assert.assertEquals(delivery.getGav(), copy.getGav());
+        Assert.assertEquals(delivery.getEventTimestamp(), copy.getEventTimestamp());
+        Assert.assertEquals(delivery.getQueuedTimestamp(), copy.getQueuedTimestamp());
+        Assert.assertEquals(delivery.getUrl(), copy.getUrl());
+        Assert.assertEquals(delivery.getContentType(), copy.getContentType());
+        Assert.assertEquals(delivery.getClaim(), copy.getClaim());
+        Assert.assertEquals(delivery.getContentPath(), copy.getContentPath());
+        Assert.assertArrayEquals(delivery.getPayload(), copy.getPayload());
+    }
+
+    /**
+     * @return the superseded deliveries of the given queue ("URL by ID"), as they are told
+     */
+    private static List<String> recordSuperseded(WebHookQueue queue) {
+        final List<String> superseded = new ArrayList<String>();
+        queue.setSupersededListener(new WebHookQueue.SupersededListener() {
+
+            public void superseded(WebHookDelivery delivery, String supersedingId) {
+                superseded.add(delivery.getUrl() + " by " + supersedingId);
+            }
+        });
+        return superseded;
+    }
+
+    private static WebHookDelivery delivery(String repository, int i) throws Exception {
+        return new WebHookDelivery(repository, null, 0, "http://localhost/" + i, "application/json",
+                                   ("{\"i\":" + i + "}").getBytes("UTF-8"));
+    }
+
+    private static WebHookDelivery delivery(int i) throws Exception {
+        return new WebHookDelivery(null, 0, "http://localhost/" + i, "application/json",
+                                   ("{\"i\":" + i + "}").getBytes("UTF-8"));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("webhooks-queue", "");
+        directory.delete();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteDirectory(directory);
+    }
+
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.StringEntity;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test the {@link WebHookResponseBody}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookResponseBodyTest {
+
+    @Test
+    public void smallBody() throws Exception {
+        WebHookResponseBody body = WebHookResponseBody.read(new StringEntity("Invalid\n  payload", "UTF-8"), 1024);
+
+        Assert.assertTrue(body.isComplete());
+        Assert.assertEquals(17, body.getLength());
+        Assert.assertEquals("Invalid payload", body.getExcerpt());
+    }
+
+    @Test
+    public void noBody() throws Exception {
+        WebHookResponseBody body = WebHookResponseBody.read(null, 1024);
+
+        Assert.assertTrue(body.isComplete());
+        Assert.assertNull(body.getExcerpt());
+    }
+
+    @Test
+    public void excerpt() throws Exception {
+        char[] page = new char[10000];
+        Arrays.fill(page, 'x');
+        WebHookResponseBody body = WebHookResponseBody.read(new StringEntity(new String(page), "UTF-8"), 65536);
+
+        Assert.assertTrue(body.isComplete());
+        Assert.assertEquals(10000, body.getLength());
+        Assert.assertEquals(WebHookResponseBody.EXCERPT_SIZE, body.getExcerpt().length());
+    }
+
+    @Test
+    public void largeBodyWithLength() throws Exception {
+        WebHookResponseBody body = WebHookResponseBody.read(new StringEntity("<html>Error</html>", "UTF-8"), 10);
+
+        // not even read
+        Assert.assertFalse(body.isComplete());
+        Assert.assertEquals(0, body.getLength());
+    }
+
+    @Test
+    public void largeBodyChunked() throws Exception {
+        byte[] page = new byte[100000];
+        Arrays.fill(page, (byte) 'x');
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream(page));
+        entity.setContentLength(-1);
+        WebHookResponseBody body = WebHookResponseBody.read(entity, 10000);
+
+        // read just enough to know that the body is too large
+        Assert.assertFalse(body.isComplete());
+        Assert.assertEquals(10001, body.getLength());
+        Assert.assertEquals(WebHookResponseBody.EXCERPT_SIZE, body.getExcerpt().length());
+    }
+
+    @Test(timeout = 5000)
+    public void unlimitedBodyChunked() throws Exception {
+        byte[] page = new byte[100000];
+        Arrays.fill(page, (byte) 'x');
+        BasicHttpEntity entity = new BasicHttpEntity();
+        entity.setContent(new ByteArrayInputStream(page));
+        entity.setContentLength(-1);
+        WebHookResponseBody body = WebHookResponseBody.read(entity, Long.MAX_VALUE);
+
+        Assert.assertTrue(body.isComplete());
+        Assert.assertEquals(100000, body.getLength());
+    }
+
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Collection;
+import java.util.Properties;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test the {@link WebHookRoutes}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookRoutesTest {
+
+    private Properties configuration;
+
+    @Test
+    public void incrementalUpdate() throws Exception {
+        WebHookRoutes routes = WebHookRoutes.empty().update(configuration);
+        Assert.assertEquals(4, routes.countChanges(WebHookRoutes.empty()));
+
+        Properties newConfiguration = new Properties();
+        newConfiguration.putAll(configuration);
+        newConfiguration.setProperty("releases", "http://localhost/releases/v2/");
+        newConfiguration.remove("releases.com.example");
+        WebHookRoutes newRoutes = routes.update(newConfiguration);
+
+        Assert.assertEquals(2, newRoutes.countChanges(routes));
+        Collection<String> urls = newRoutes.getWebHooks("releases", "com.example", "app");
+        Assert.assertEquals(3, urls.size());
+        Assert.assertTrue(urls.contains("http://localhost/releases/v2/"));
+        Assert.assertFalse(urls.contains("http://localhost/releases/com.example/"));
+
+        // the previous index is not affected
+        Assert.assertEquals(4, routes.getWebHooks("releases", "com.example", "app").size());
+    }
+
+    @Test
+    public void compactedUrls() throws Exception {
+        configuration.setProperty(WebHookRoutes.COMPACTION_KEY, "http://localhost/one/");
+        WebHookRoutes routes = WebHookRoutes.empty().update(configuration);
+
+        Assert.assertTrue(routes.isCompacted("http://localhost/one/"));
+        Assert.assertFalse(routes.isCompacted("http://localhost/two/"));
+        Assert.assertFalse(WebHookRoutes.empty().isCompacted("http://localhost/one/"));
+    }
+
+    @Test
+    public void itemIncluded() throws Exception {
+        Assert.assertFalse(WebHookRoutes.empty().update(configuration).isItemIncluded());
+        configuration.setProperty(WebHookRoutes.ITEM_KEY, "true");
+        Assert.assertTrue(WebHookRoutes.empty().update(configuration).isItemIncluded());
+    }
+
+    @Test
+    public void eventTypes() throws Exception {
+        WebHookRoutes routes = WebHookRoutes.empty().update(configuration);
+        Assert.assertTrue(routes.isSubscribed(WebHookEventType.STORED));
+        Assert.assertFalse(routes.isSubscribed(WebHookEventType.CACHED));
+        Assert.assertTrue(routes.accepts("http://localhost/one/", WebHookEventType.STORED));
+        Assert.assertFalse(routes.accepts("http://localhost/one/", WebHookEventType.DELETED));
+
+        configuration.setProperty(WebHookRoutes.EVENTS_PREFIX + "deleted.urls", "http://localhost/one/");
+        configuration.setProperty(WebHookRoutes.EVENTS_PREFIX + "metadata.urls", "http://localhost/one/");
+        routes = routes.update(configuration);
+        Assert.assertTrue(routes.isSubscribed(WebHookEventType.DELETED));
+        Assert.assertTrue(routes.isSubscribed(WebHookEventType.METADATA));
+        Assert.assertFalse(routes.isSubscribed(WebHookEventType.CACHED));
+        Assert.assertTrue(routes.accepts("http://localhost/one/", WebHookEventType.DELETED));
+        Assert.assertTrue(routes.accepts("http://localhost/one/", WebHookEventType.METADATA));
+        // only the listed types
+        Assert.assertFalse(routes.accepts("http://localhost/one/", WebHookEventType.STORED));
+        Assert.assertTrue(routes.accepts("http://localhost/two/", WebHookEventType.STORED));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownEventType() throws Exception {
+        configuration.setProperty(WebHookRoutes.EVENTS_PREFIX + "unknown.urls", "http://localhost/one/");
+        WebHookRoutes.empty().update(configuration);
+    }
+
+    @Test
+    public void namedEndpoints() throws Exception {
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "ci.url", "http://localhost/ci/");
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "ci.poolShare", "0.25");
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "ci.batchSize", "10");
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "ci.compression", "gzip");
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "ci.pipelineDepth", "4");
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "ci.attachContent", "true");
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "ci.maxContentSize", "1048576");
+        configuration.setProperty("releases.com.example", "ci,http://localhost/ci/");
+        configuration.setProperty("releases", "ci");
+        WebHookRoutes routes = WebHookRoutes.empty().update(configuration);
+
+        // referenced twice, notified once
+        Collection<String> urls = routes.getWebHooks("releases", "com.example", "app");
+        Assert.assertEquals(3, urls.size());
+        Assert.assertTrue(urls.contains("http://localhost/ci/"));
+        Assert.assertFalse(urls.contains("ci"));
+
+        WebHookEndpoint endpoint = routes.getEndpoint("http://localhost/ci/");
+        Assert.assertEquals("ci", endpoint.getName());
+        Assert.assertEquals(8, endpoint.getMaxConcurrency(32));
+        Assert.assertEquals(10, endpoint.getBatchSize());
+        Assert.assertTrue(endpoint.isCompressed());
+        Assert.assertEquals(4, endpoint.getPipelineDepth());
+        Assert.assertEquals(1, WebHookEndpoint.DEFAULT.getPipelineDepth());
+        Assert.assertTrue(endpoint.isAttachContent());
+        Assert.assertEquals(1048576, endpoint.getMaxContentSize());
+        Assert.assertFalse(WebHookEndpoint.DEFAULT.isAttachContent());
+        Assert.assertSame(WebHookEndpoint.DEFAULT, routes.getEndpoint("http://localhost/releases/"));
+
+        // moving the endpoint moves all its routes
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "ci.url", "http://localhost/ci/v2/");
+        routes = routes.update(configuration);
+        Assert.assertTrue(routes.getWebHooks("releases", "com.example", "app").contains("http://localhost/ci/v2/"));
+        Assert.assertEquals("ci", routes.getEndpoint("http://localhost/ci/v2/").getName());
+    }
+
+    @Test
+    public void endpointFormat() throws Exception {
+        configuration.setProperty(WebHookRoutes.TEMPLATE_PREFIX + "text.body", "${artifact.artifactId}");
+        configuration.setProperty(WebHookRoutes.TEMPLATE_PREFIX + "text.contentType", "text/plain");
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "chat.url", "http://localhost/chat/");
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "chat.format", "text");
+        WebHookRoutes routes = WebHookRoutes.empty().update(configuration);
+
+        Assert.assertEquals("text/plain", routes.getTemplate("http://localhost/chat/").getContentType());
+        Assert.assertSame(WebHookTemplate.DEFAULT, routes.getTemplate("http://localhost/releases/"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void endpointsWithSameUrl() throws Exception {
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "one.url", "http://localhost/ci/");
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "two.url", "http://localhost/ci/");
+        WebHookRoutes.empty().update(configuration);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidEndpoint() throws Exception {
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "ci.url", "http://localhost/ci/");
+        configuration.setProperty(WebHookRoutes.ENDPOINT_PREFIX + "ci.poolShare", "2");
+        WebHookRoutes.empty().update(configuration);
+    }
+
+    @Test
+    public void binaryRoundTrip() throws Exception {
+        WebHookRoutes routes = WebHookRoutes.empty().update(configuration);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        routes.writeTo(new DataOutputStream(bytes));
+        ByteArrayInputStream input = new ByteArrayInputStream(bytes.toByteArray());
+        WebHookRoutes readRoutes = WebHookRoutes.readFrom(new DataInputStream(input));
+
+        Assert.assertEquals(routes.size(), readRoutes.size());
+        Assert.assertEquals(configuration, readRoutes.toProperties());
+        Assert.assertEquals(routes.getWebHooks("releases", "com.example", "app"),
+                            readRoutes.getWebHooks("releases", "com.example", "app"));
+        Assert.assertEquals(routes.getAllUrls(), readRoutes.getAllUrls());
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        configuration = new Properties();
+        configuration.setProperty("releases.com.example.app", "http://localhost/releases/com.example/app/one/,"
+                                                              + "http://localhost/releases/com.example/app/two/");
+        configuration.setProperty("releases.com.example", "http://localhost/releases/com.example/");
+        configuration.setProperty("releases", "http://localhost/releases/");
+        configuration.setProperty("webhooks.inherited", "true");
+    }
+
+}
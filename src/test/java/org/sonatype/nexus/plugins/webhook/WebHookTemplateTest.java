@@ -0,0 +1,108 @@
+/*
+ * Copyright 2011 Vincent Behar
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.sonatype.nexus.plugins.webhook;
+
+import java.util.Properties;
+import org.apache.maven.index.artifact.Gav;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Item;
+import org.sonatype.nexus.plugins.webhook.ArtifactStoredEvent.Repository;
+
+/**
+ * Test the {@link WebHookTemplate}
+ *
+ * @author Vincent Behar
+ */
+public class WebHookTemplateTest {
+
+    private ArtifactStoredEvent event;
+
+    @Test
+    public void defaultTemplate() throws Exception {
+        Assert.assertEquals(event.toJson(), WebHookTemplate.DEFAULT.render(event));
+    }
+
+    @Test
+    public void formTemplate() throws Exception {
+        WebHookTemplate template = WebHookTemplate.compile("jenkins",
+                                                           "application/x-www-form-urlencoded",
+                                                           "token=secret&VERSION=${artifact.version}&USER=${user}");
+
+        Assert.assertEquals("token=secret&VERSION=1.0.0&USER=robert+%26+co", template.render(event));
+    }
+
+    @Test
+    public void jsonTemplate() throws Exception {
+        WebHookTemplate template = WebHookTemplate.compile("chat",
+                                                           "application/json",
+                                                           "{\"text\":\"${user} deployed ${artifact.artifactId}"
+                                                                   + "${artifact.classifier}\",\"event\":${event}}");
+
+        Assert.assertEquals("{\"text\":\"robert & co deployed \\\"app\\\"\",\"event\":" + event.toJson() + "}",
+                            template.render(event));
+    }
+
+    @Test
+    public void eventVariable() throws Exception {
+        Assert.assertEquals(event.toJson(), WebHookTemplate.Variable.EVENT.value(event));
+        // embedded as is, even in a form
+        WebHookTemplate template = WebHookTemplate.compile("form", "application/x-www-form-urlencoded",
+                                                           "payload=${event}");
+        Assert.assertEquals("payload=" + event.toJson(), template.render(event));
+    }
+
+    @Test
+    public void itemVariables() throws Exception {
+        WebHookTemplate template = WebHookTemplate.compile("check",
+                                                           "text/plain",
+                                                           "${item.size} ${item.sha1} ${item.md5}.");
+        Assert.assertEquals("  .", template.render(event));
+
+        event.setItem(new Item(1024L, "da39a3ee5e6b4b0d3255bfef95601890afd80709", null, 1300000000000L));
+        Assert.assertEquals("1024 da39a3ee5e6b4b0d3255bfef95601890afd80709 .", template.render(event));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownVariable() throws Exception {
+        WebHookTemplate.compile("invalid", "text/plain", "${artifact.unknown}");
+    }
+
+    @Test
+    public void templatesByUrl() throws Exception {
+        Properties configuration = new Properties();
+        configuration.setProperty("releases", "http://localhost/one/,http://localhost/two/");
+        configuration.setProperty("webhooks.template.text.body", "${repository.id}");
+        configuration.setProperty("webhooks.template.text.contentType", "text/plain");
+        configuration.setProperty("webhooks.template.text.urls", "http://localhost/two/");
+        WebHookRoutes routes = WebHookRoutes.empty().update(configuration);
+
+        Assert.assertSame(WebHookTemplate.DEFAULT, routes.getTemplate("http://localhost/one/"));
+        Assert.assertEquals("text", routes.getTemplate("http://localhost/two/").getName());
+        Assert.assertEquals("releases", routes.getTemplate("http://localhost/two/").render(event));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        event = new ArtifactStoredEvent();
+        event.setRepository(new Repository("releases", "Releases"));
+        event.setArtifact(new Gav("com.example", "\"app\"", "1.0.0"));
+        event.setTimestamp(42L);
+        event.setUser("robert & co");
+    }
+
+}